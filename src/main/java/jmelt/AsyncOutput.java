@@ -0,0 +1,178 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/******************************************************************************
+ * File: AsyncOutput.java                                                     *
+ * Aim : output of the batch mode written by a thread of its own. The        *
+ *       computing thread fills a direct buffer while the writer thread      *
+ *       empties the other one into the channel (the outfile or stdout).     *
+ *       When the writer falls behind, i.e. both buffers are full, the       *
+ *       producer waits for it: the memory used stays bounded whatever the   *
+ *       speed of the disk or of the pipe, and the computation only stops    *
+ *       when it is a whole buffer ahead.                                     *
+ *                                                                            *
+ *       The stream is wrapped in a PrintStream, so that the printf of       *
+ *       do_results are unchanged. close() writes what remains; a shutdown  *
+ *       hook does it if the program ends by exit() in the middle of a       *
+ *       batch.                                                               *
+ ******************************************************************************/
+
+public class AsyncOutput extends OutputStream implements Runnable {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    final WritableByteChannel channel;
+    final boolean b_close_channel;   /* false for stdout, which stays open */
+    ByteBuffer filling;              /* buffer of the producers */
+    ByteBuffer pending;              /* full buffer given to the writer, null if none */
+    ByteBuffer spare;                /* empty buffer, null while the writer has it */
+    boolean b_closed;
+    IOException error;               /* first failure of the writer, reported to the producers */
+    final Thread writer;
+    final Thread hook;
+
+    AsyncOutput(WritableByteChannel channel, boolean b_close_channel) {
+        this.channel = channel;
+        this.b_close_channel = b_close_channel;
+        filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        writer = new Thread(this, "melting-output");
+        writer.setDaemon(true);
+        writer.start();
+        hook = new Thread(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                /* nothing to do anymore */
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /* PrintStream on the file ps_file, written asynchronously */
+    public static PrintStream open(String ps_file) throws IOException {
+        return new PrintStream(new AsyncOutput(new FileOutputStream(ps_file).getChannel(), true), false);
+    }
+
+    /* PrintStream writing asynchronously to out (written directly to the descriptor for System.out) */
+    public static PrintStream wrap(PrintStream out) {
+        out.flush();
+        WritableByteChannel channel = (out == System.out)
+                ? new FileOutputStream(FileDescriptor.out).getChannel() : Channels.newChannel(out);
+        return new PrintStream(new AsyncOutput(channel, false), false);
+    }
+
+    public void write(int b) throws IOException {
+        synchronized (this) {
+            if (!filling.hasRemaining()) swap();
+            filling.put((byte) b);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (this) {
+            while (len > 0) {
+                if (!filling.hasRemaining()) swap();
+                int n = Math.min(len, filling.remaining());
+                filling.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /* give the filled buffer to the writer and take the empty one, waiting for it if needed */
+    private void swap() throws IOException {
+        if (b_closed) throw new IOException("output closed");
+        while (pending != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (error != null) throw error;
+        pending = filling;
+        filling = spare;
+        spare = null;
+        notifyAll();
+    }
+
+    /* everything written so far is in the channel */
+    public void flush() throws IOException {
+        synchronized (this) {
+            if (filling.position() > 0) swap();
+            while (pending != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (error != null) throw error;
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (b_closed) return;
+            try {
+                flush();
+            } finally {
+                b_closed = true;
+                notifyAll();
+            }
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (b_close_channel) channel.close();
+        if (Thread.currentThread() != hook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                /* already shutting down */
+            }
+        }
+    }
+
+    /* the writer thread */
+    public void run() {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                while (pending == null && !b_closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending == null) return;   /* closed, and all written */
+                buffer = pending;
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (error == null) error = e;
+                }
+            }
+            buffer.clear();
+            synchronized (this) {
+                spare = buffer;
+                pending = null;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+
+package jmelt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: BatchPipeline.java                                                   *
+ * Aim : the duplexes of a batch computed on several threads when only an   *
+ *       aggregate of their results is written (--summary, --top).          *
+ *                                                                            *
+ *       The duplexes are read (and checked) by the batch loop, put in       *
+ *       chunks of CHUNK and computed on the fork/join pool: get_results,    *
+ *       without the warnings, with a copy of the parameters taken at the    *
+ *       start. Each thread adds the results to an accumulator of its own,  *
+ *       so that nothing is shared while computing; they are merged at the  *
+ *       end. A bounded number of chunks is in flight, so that the memory    *
+ *       used depends on the accumulators only.                               *
+ ******************************************************************************/
+
+public class BatchPipeline<A extends BatchPipeline.Accumulator<A>> {
+
+    static final int CHUNK = 1024;             /* duplexes computed by one task */
+
+    /* what is kept of the results */
+    public interface Accumulator<A> {
+        /* l_record: number of the duplex in the batch, from 1 */
+        void add(long l_record, String ps_sequence, String ps_complement, Thermodynamic pst_results);
+
+        void merge(A other);
+    }
+
+    final MeltingParams pst_param;             /* snapshot of the parameters */
+    final Supplier<A> factory;
+    final List<A> accumulators = Collections.synchronizedList(new ArrayList<A>());
+    final ThreadLocal<A> local;
+    final ForkJoinPool pool = ForkJoinPool.commonPool();
+    final int i_inflight = 2 * pool.getParallelism() + 1;  /* max number of chunks waiting */
+    final ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+    String[] ps_chunk = new String[2 * CHUNK];  /* sequence and complement of each duplex */
+    int i_used;
+    long l_records;                            /* duplexes given so far */
+
+    public BatchPipeline(MeltingParams pst_param, Supplier<A> factory) {
+        this.pst_param = new MeltingParams(pst_param);
+        this.factory = factory;
+        this.local = ThreadLocal.withInitial(() -> {
+            A accumulator = factory.get();
+            accumulators.add(accumulator);
+            return accumulator;
+        });
+    }
+
+    public void add(String ps_sequence, String ps_complement) throws ExecutionException {
+        ps_chunk[2 * i_used] = ps_sequence;
+        ps_chunk[2 * i_used + 1] = ps_complement;
+        if (++i_used == CHUNK) submit();
+    }
+
+    private void submit() throws ExecutionException {
+        while (pending.size() >= i_inflight) await(pending.removeFirst());
+        String[] ps_duplexes = ps_chunk;
+        int i_count = i_used;
+        long l_first = l_records + 1;
+        l_records += i_count;
+        pending.addLast(pool.submit(() -> compute(l_first, ps_duplexes, i_count)));
+        ps_chunk = new String[2 * CHUNK];
+        i_used = 0;
+    }
+
+    private void compute(long l_first, String[] ps_duplexes, int i_count) {
+        A accumulator = local.get();
+        for (int i = 0; i < i_count; i++) {
+            String ps_sequence = ps_duplexes[2 * i], ps_complement = ps_duplexes[2 * i + 1];
+            accumulator.add(l_first + i, ps_sequence, ps_complement,
+                    Melting.get_results(pst_param, ps_sequence, ps_complement, false, false));
+        }
+    }
+
+    private static void await(Future<?> task) throws ExecutionException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+
+    /* the accumulators of all the threads merged, once every chunk is computed */
+    public A finish() throws ExecutionException {
+        if (i_used > 0) submit();
+        while (!pending.isEmpty()) await(pending.removeFirst());
+        A total = factory.get();
+        synchronized (accumulators) {
+            for (A accumulator : accumulators) total.merge(accumulator);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,512 @@
+
+package jmelt;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/******************************************************************************
+ * File: Benchmark.java                                                       *
+ * Aim : end-to-end throughput of the program, run in process through        *
+ *       Melting.run with the real command line. A synthetic corpus of probes *
+ *       is generated from a seed (lengths, mismatches and dangling ends     *
+ *       drawn as asked), then run in one of the modes:                       *
+ *         batch       one -B run reading all the sequences from its input   *
+ *         infile      one -I run per probe, the options in a file           *
+ *         complement  one -S -C run per probe                               *
+ *       Reported: probes per second, latency per probe (p50, p99),          *
+ *       allocated bytes and rate, garbage collections, peak RSS. The        *
+ *       results can be saved as JSON to compare two versions.              *
+ *                                                                            *
+ *   java -cp melting.jar jmelt.Benchmark [--mode=all|batch|infile|complement]*
+ *        [--records=n] [--lengths=uniform:min:max|normal:mean:sd|fixed:n]    *
+ *        [--mismatches=rate] [--dangling=rate] [--seed=n] [--warmup=n]      *
+ *        [--label=name] [--json=file]                                       *
+ ******************************************************************************/
+
+public class Benchmark {
+
+    static final String BASES = "ACGT";
+    static final String[] OPTIONS = {"-Hdnadna", "-N0.1", "-P1e-6", "-q"};
+
+    /* a probe of the corpus; ps_complement is aligned on ps_sequence, as for -C */
+    static class Record {
+        final String ps_sequence;
+        final String ps_complement;
+        final boolean b_perfect;    /* no mismatch nor dangling end */
+
+        Record(String ps_sequence, String ps_complement, boolean b_perfect) {
+            this.ps_sequence = ps_sequence;
+            this.ps_complement = ps_complement;
+            this.b_perfect = b_perfect;
+        }
+    }
+
+    /*+----------------------------------------------------------------+
+      | deterministic corpus. Mismatches are single ones, away from    |
+      | the ends and from each other, and only where the default set   |
+      | has parameters for both pairs, as get_results accepts them; a  |
+      | dangling end is a base facing a '-' on either strand.          |
+      +----------------------------------------------------------------+*/
+
+    static class Corpus {
+        final String ps_lengths;
+        final double d_mismatches;   /* probability of a mismatch at each inner position */
+        final double d_dangling;     /* probability of a dangling end at each end */
+        final long l_seed;
+        final String ps_kind;
+        final double d_a, d_b;
+        final Set<String> known = new HashSet<String>();   /* mismatched pairs having parameters */
+
+        Corpus(String ps_lengths, double d_mismatches, double d_dangling, long l_seed) {
+            this.ps_lengths = ps_lengths;
+            this.d_mismatches = d_mismatches;
+            this.d_dangling = d_dangling;
+            this.l_seed = l_seed;
+            String[] ps_fields = ps_lengths.split(":");
+            ps_kind = ps_fields[0];
+            if (ps_kind.equals("fixed") && ps_fields.length == 2) {
+                d_a = d_b = Double.parseDouble(ps_fields[1]);
+            } else if ((ps_kind.equals("uniform") || ps_kind.equals("normal")) && ps_fields.length == 3) {
+                d_a = Double.parseDouble(ps_fields[1]);
+                d_b = Double.parseDouble(ps_fields[2]);
+            } else {
+                throw new IllegalArgumentException("bad length distribution " + ps_lengths);
+            }
+            if (d_mismatches > 0) {
+                Melting.dataset pst_mm = Melting.read_mismatches(Melting.DEFAULT_DNADNA_MISMATCHES);
+                for (Melting.calor_const pst_entry : pst_mm.data())
+                    if (pst_entry != null && pst_entry.s_crick_pair != null && pst_entry.d_enthalpy != 99999)
+                        known.add(pst_entry.s_crick_pair);
+            }
+        }
+
+        /* can the complement have c_wrong at i? */
+        boolean known(char[] c_seq, char[] c_comp, int i, char c_wrong) {
+            return known.contains("" + c_seq[i - 1] + c_seq[i] + "/" + c_comp[i - 1] + c_wrong)
+                    && known.contains("" + c_seq[i] + c_seq[i + 1] + "/" + c_wrong + c_comp[i + 1]);
+        }
+
+        int length(Random random) {
+            double d_length;
+            if (ps_kind.equals("uniform")) d_length = d_a + random.nextInt((int) (d_b - d_a) + 1);
+            else if (ps_kind.equals("normal")) d_length = Math.round(d_a + d_b * random.nextGaussian());
+            else d_length = d_a;
+            return Math.max(6, (int) d_length);
+        }
+
+        List<Record> generate(int i_records) {
+            Random random = new Random(l_seed);
+            List<Record> records = new ArrayList<Record>(i_records);
+            for (int r = 0; r < i_records; r++) {
+                int i_length = length(random);
+                char[] c_seq = new char[i_length];
+                char[] c_comp = new char[i_length];
+                for (int i = 0; i < i_length; i++) {
+                    c_seq[i] = BASES.charAt(random.nextInt(4));
+                    c_comp[i] = complement(c_seq[i]);
+                }
+                boolean b_perfect = true;
+                for (int i = 2; i <= i_length - 4; i++) {
+                    if (random.nextDouble() < d_mismatches) {
+                        int i_shift = random.nextInt(3);       /* one of the three wrong bases */
+                        for (int k = 0; k < 3; k++) {
+                            char c_wrong = BASES.charAt((BASES.indexOf(c_comp[i]) + 1 + (i_shift + k) % 3) % 4);
+                            if (known(c_seq, c_comp, i, c_wrong)) {
+                                c_comp[i] = c_wrong;
+                                b_perfect = false;
+                                i++;    /* never two mismatches side by side */
+                                break;
+                            }
+                        }
+                    }
+                }
+                StringBuilder s_seq = new StringBuilder(i_length + 2).append(c_seq);
+                StringBuilder s_comp = new StringBuilder(i_length + 2).append(c_comp);
+                if (random.nextDouble() < d_dangling) {
+                    char c_base = BASES.charAt(random.nextInt(4));
+                    boolean b_top = random.nextBoolean();
+                    s_seq.insert(0, b_top ? c_base : '-');
+                    s_comp.insert(0, b_top ? '-' : c_base);
+                    b_perfect = false;
+                }
+                if (random.nextDouble() < d_dangling) {
+                    char c_base = BASES.charAt(random.nextInt(4));
+                    boolean b_top = random.nextBoolean();
+                    s_seq.append(b_top ? c_base : '-');
+                    s_comp.append(b_top ? '-' : c_base);
+                    b_perfect = false;
+                }
+                records.add(new Record(s_seq.toString(), s_comp.toString(), b_perfect));
+            }
+            return records;
+        }
+    }
+
+    static char complement(char c) {
+        switch (c) {
+            case 'A': return 'T';
+            case 'C': return 'G';
+            case 'G': return 'C';
+            default: return 'A';
+        }
+    }
+
+    /* the output of the program is formatted, then counted and dropped */
+    static class CountingStream extends OutputStream {
+        long l_bytes;
+
+        public void write(int b) {
+            l_bytes++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            l_bytes += len;
+        }
+    }
+
+    /* input of a batch run, noting when each line is taken */
+    static class TimedReader extends BufferedReader {
+        final long[] l_times;
+        int i_lines;
+
+        TimedReader(String ps_text, int i_records) {
+            super(new StringReader(ps_text));
+            l_times = new long[i_records + 1];
+        }
+
+        public String readLine() throws IOException {
+            String ps_line = super.readLine();
+            if (i_lines < l_times.length) l_times[i_lines++] = System.nanoTime();
+            return ps_line;
+        }
+    }
+
+    /* measures of a run */
+    static class Result {
+        String ps_mode;
+        int i_records;
+        int i_failures;
+        String ps_first_failure;
+        double d_seconds;
+        long[] l_latency;             /* ns, per probe */
+        long l_allocated = -1;        /* bytes allocated by the thread of the runs */
+        long l_output;                /* bytes written by the program */
+        long l_gc_count, l_gc_millis;
+        long l_peak_rss_kb = -1;      /* VmHWM */
+        long l_peak_heap;             /* sum of the peaks of the heap pools */
+
+        double percentile(double d_percent) {
+            if (l_latency.length == 0) return 0;
+            long[] l_sorted = l_latency.clone();
+            Arrays.sort(l_sorted);
+            int i_rank = (int) Math.ceil(d_percent / 100 * l_sorted.length) - 1;
+            return l_sorted[Math.max(0, Math.min(i_rank, l_sorted.length - 1))];
+        }
+    }
+
+    final List<Record> records;
+    final Path work;                  /* infiles of the infile mode */
+    final CountingStream output = new CountingStream();
+    final PrintStream out = new PrintStream(output);
+    final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    final PrintStream err = new PrintStream(errors);
+
+    Benchmark(List<Record> records) throws IOException {
+        this.records = records;
+        this.work = Files.createTempDirectory("melting-benchmark");
+    }
+
+    /*+--------------------------------------------------------------+
+      | one record run in process; the error output of the first     |
+      | failure is kept for the report                               |
+      +--------------------------------------------------------------+*/
+
+    int invoke(String[] args, BufferedReader in, Result result) {
+        errors.reset();
+        int i_status;
+        try {
+            i_status = Melting.run(args, in, out, err);
+        } catch (RuntimeException e) {   /* die() of get_results and the like */
+            err.print(e.getMessage());
+            i_status = -1;
+        }
+        if (i_status != 0 && result != null) {
+            if (result.i_failures++ == 0) {
+                err.flush();
+                result.ps_first_failure = String.join(" ", args) + ": "
+                        + new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+            }
+        }
+        return i_status;
+    }
+
+    String[] args(String... ps_extra) {
+        String[] args = Arrays.copyOf(OPTIONS, OPTIONS.length + ps_extra.length);
+        System.arraycopy(ps_extra, 0, args, OPTIONS.length, ps_extra.length);
+        return args;
+    }
+
+    Path infile(int i) throws IOException {
+        Path path = work.resolve("record-" + i + ".in");
+        if (!Files.exists(path)) {
+            Record record = records.get(i);
+            StringBuilder s_file = new StringBuilder();
+            for (String ps_option : OPTIONS) s_file.append(ps_option).append('\n');
+            s_file.append("-S").append(record.ps_sequence).append('\n');
+            if (!record.b_perfect) s_file.append("-C").append(record.ps_complement).append('\n');
+            s_file.append('\n');
+            Files.write(path, s_file.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        return path;
+    }
+
+    /* one record of a per-record mode */
+    void record(String ps_mode, int i, Result result) throws IOException {
+        Record record = records.get(i);
+        if (ps_mode.equals("infile"))
+            invoke(new String[]{"-I" + infile(i)}, empty(), result);
+        else
+            invoke(args("-S" + record.ps_sequence, "-C" + record.ps_complement), empty(), result);
+    }
+
+    static BufferedReader empty() {
+        return new BufferedReader(new StringReader(""));
+    }
+
+    /* batch input: the sequences only, as -B computes the complements */
+    String batch_input(int i_from, int i_to) {
+        StringBuilder s_input = new StringBuilder();
+        for (int i = i_from; i < i_to; i++) s_input.append(records.get(i).ps_sequence.replace("-", "")).append('\n');
+        return s_input.toString();
+    }
+
+    Result measure(String ps_mode, int i_warmup) throws IOException {
+        int i_records = records.size();
+        /* warm-up on the first records, not measured */
+        if (ps_mode.equals("batch")) {
+            invoke(args("-B"), new BufferedReader(new StringReader(batch_input(0, Math.min(i_warmup, i_records)))), null);
+        } else {
+            for (int i = 0; i < Math.min(i_warmup, i_records); i++) record(ps_mode, i, null);
+        }
+        String ps_input = ps_mode.equals("batch") ? batch_input(0, i_records) : null;
+        if (ps_mode.equals("infile"))
+            for (int i = 0; i < i_records; i++) infile(i);   /* written before the measure */
+
+        Result result = new Result();
+        result.ps_mode = ps_mode;
+        result.i_records = i_records;
+        result.l_latency = new long[i_records];
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        long l_gc_count = 0, l_gc_millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            l_gc_count -= gc.getCollectionCount();
+            l_gc_millis -= gc.getCollectionTime();
+        }
+        long l_allocated = allocated();
+        long l_output = output.l_bytes;
+        long l_start = System.nanoTime();
+
+        if (ps_mode.equals("batch")) {
+            TimedReader in = new TimedReader(ps_input, i_records);
+            invoke(args("-B"), in, result);
+            for (int i = 0; i < i_records && i + 1 < in.i_lines; i++)
+                result.l_latency[i] = in.l_times[i + 1] - in.l_times[i];
+        } else {
+            for (int i = 0; i < i_records; i++) {
+                long l_before = System.nanoTime();
+                record(ps_mode, i, result);
+                result.l_latency[i] = System.nanoTime() - l_before;
+            }
+        }
+
+        result.d_seconds = (System.nanoTime() - l_start) / 1e9;
+        if (l_allocated >= 0) result.l_allocated = allocated() - l_allocated;
+        result.l_output = output.l_bytes - l_output;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            l_gc_count += gc.getCollectionCount();
+            l_gc_millis += gc.getCollectionTime();
+        }
+        result.l_gc_count = l_gc_count;
+        result.l_gc_millis = l_gc_millis;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) result.l_peak_heap += pool.getPeakUsage().getUsed();
+        result.l_peak_rss_kb = peak_rss_kb();
+        return result;
+    }
+
+    /* bytes allocated by the current thread, -1 if the JVM does not tell */
+    static long allocated() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /* peak resident set size of the process (Linux), -1 elsewhere */
+    static long peak_rss_kb() {
+        try {
+            for (String ps_line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII))
+                if (ps_line.startsWith("VmHWM:"))
+                    return Long.parseLong(ps_line.replaceAll("[^0-9]", ""));
+        } catch (IOException | NumberFormatException e) {
+            /* not available */
+        }
+        return -1;
+    }
+
+    void close() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(work)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(work);
+    }
+
+    /************
+     * Reports  *
+     ************/
+
+    static void print(Result result, PrintStream out) {
+        out.printf("%-10s %8d probes %8.3f s %10.0f probes/s  p50 %8.1f us  p99 %8.1f us"
+                        + "  %6.1f MB/s allocated  %4d gc  peak rss %d kB%s\n",
+                result.ps_mode, result.i_records, result.d_seconds, result.i_records / result.d_seconds,
+                result.percentile(50) / 1e3, result.percentile(99) / 1e3,
+                result.l_allocated / result.d_seconds / 1e6, result.l_gc_count, result.l_peak_rss_kb,
+                result.i_failures > 0 ? "  " + result.i_failures + " failure(s)" : "");
+        if (result.ps_first_failure != null) out.printf("           first failure: %s\n", result.ps_first_failure);
+    }
+
+    static String json_string(String ps_value) {
+        if (ps_value == null) return "null";
+        StringBuilder s_out = new StringBuilder("\"");
+        for (char c : ps_value.toCharArray()) {
+            if (c == '"' || c == '\\') s_out.append('\\').append(c);
+            else if (c < 0x20) s_out.append(String.format("\\u%04x", (int) c));
+            else s_out.append(c);
+        }
+        return s_out.append('"').toString();
+    }
+
+    static String json(String ps_label, Corpus corpus, int i_records, int i_warmup, List<Result> results) {
+        StringBuilder s_json = new StringBuilder();
+        s_json.append("{\n");
+        s_json.append("  \"label\": ").append(json_string(ps_label)).append(",\n");
+        s_json.append("  \"melting_version\": ").append(json_string(Melting.VERSION)).append(",\n");
+        s_json.append("  \"java_version\": ").append(json_string(System.getProperty("java.version"))).append(",\n");
+        s_json.append("  \"os\": ").append(json_string(System.getProperty("os.name") + " " + System.getProperty("os.arch"))).append(",\n");
+        s_json.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        s_json.append("  \"corpus\": {\"records\": ").append(i_records)
+                .append(", \"lengths\": ").append(json_string(corpus.ps_lengths))
+                .append(", \"mismatches\": ").append(corpus.d_mismatches)
+                .append(", \"dangling\": ").append(corpus.d_dangling)
+                .append(", \"seed\": ").append(corpus.l_seed)
+                .append(", \"warmup\": ").append(i_warmup).append("},\n");
+        s_json.append("  \"runs\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            s_json.append(i == 0 ? "\n" : ",\n");
+            s_json.append("    {\"mode\": ").append(json_string(result.ps_mode))
+                    .append(", \"records\": ").append(result.i_records)
+                    .append(", \"failures\": ").append(result.i_failures)
+                    .append(", \"seconds\": ").append(result.d_seconds)
+                    .append(", \"records_per_second\": ").append(result.i_records / result.d_seconds)
+                    .append(", \"latency_p50_ns\": ").append((long) result.percentile(50))
+                    .append(", \"latency_p99_ns\": ").append((long) result.percentile(99))
+                    .append(", \"allocated_bytes\": ").append(result.l_allocated)
+                    .append(", \"allocation_rate_bytes_per_second\": ").append((long) (result.l_allocated / result.d_seconds))
+                    .append(", \"output_bytes\": ").append(result.l_output)
+                    .append(", \"gc_count\": ").append(result.l_gc_count)
+                    .append(", \"gc_millis\": ").append(result.l_gc_millis)
+                    .append(", \"peak_heap_bytes\": ").append(result.l_peak_heap)
+                    .append(", \"peak_rss_kb\": ").append(result.l_peak_rss_kb)
+                    .append(", \"first_failure\": ").append(json_string(result.ps_first_failure))
+                    .append('}');
+        }
+        s_json.append("\n  ]\n}\n");
+        return s_json.toString();
+    }
+
+    static void usage() {
+        Melting.ERROR.printf("  Usage is 'jmelt.Benchmark OPTIONS' where OPTIONS are:\n" +
+                "     --mode=[all|batch|infile|complement] Default is all\n" +
+                "     --records=[XXX]   Number of probes. Default is 10000\n" +
+                "     --lengths=[uniform:min:max|normal:mean:sd|fixed:n] Default is uniform:15:40\n" +
+                "     --mismatches=[x.xx] Probability of a mismatch at each inner position\n" +
+                "     --dangling=[x.xx] Probability of a dangling end at each end\n" +
+                "     --seed=[XXX]      Seed of the corpus. Default is 1\n" +
+                "     --warmup=[XXX]    Probes run before the measure. Default is 2000\n" +
+                "     --label=[XXX]     Name of the run in the JSON results\n" +
+                "     --json=[XXXXXX]   File where to save the results as JSON\n" +
+                "  Mismatches and dangling ends are ignored in batch mode (-B).\n");
+    }
+
+    public static void main(String args[]) throws IOException {
+        String ps_mode = "all", ps_lengths = "uniform:15:40", ps_label = null, ps_json = null;
+        int i_records = 10000, i_warmup = 2000;
+        double d_mismatches = 0, d_dangling = 0;
+        long l_seed = 1;
+        try {
+            for (String ps_arg : args) {
+                int i_equal = ps_arg.indexOf('=');
+                String ps_name = (i_equal < 0) ? ps_arg : ps_arg.substring(0, i_equal);
+                String arg = (i_equal < 0) ? "" : ps_arg.substring(i_equal + 1);
+                if (ps_name.equals("--mode")) ps_mode = arg;
+                else if (ps_name.equals("--records")) i_records = Integer.parseInt(arg);
+                else if (ps_name.equals("--lengths")) ps_lengths = arg;
+                else if (ps_name.equals("--mismatches")) d_mismatches = Double.parseDouble(arg);
+                else if (ps_name.equals("--dangling")) d_dangling = Double.parseDouble(arg);
+                else if (ps_name.equals("--seed")) l_seed = Long.parseLong(arg);
+                else if (ps_name.equals("--warmup")) i_warmup = Integer.parseInt(arg);
+                else if (ps_name.equals("--label")) ps_label = arg;
+                else if (ps_name.equals("--json")) ps_json = arg;
+                else throw new IllegalArgumentException(ps_arg);
+            }
+        } catch (IllegalArgumentException e) {
+            Melting.ERROR.printf(" I did not understand the option %s\n", e.getMessage());
+            usage();
+            System.exit(-1);
+        }
+        List<String> modes = ps_mode.equals("all") ? Arrays.asList("batch", "infile", "complement")
+                : Arrays.asList(ps_mode);
+        for (String ps_one : modes) {
+            if (!ps_one.equals("batch") && !ps_one.equals("infile") && !ps_one.equals("complement")) {
+                Melting.ERROR.printf(" I do not know the mode %s\n", ps_one);
+                usage();
+                System.exit(-1);
+            }
+        }
+        Corpus corpus = null;
+        try {
+            corpus = new Corpus(ps_lengths, d_mismatches, d_dangling, l_seed);
+        } catch (IllegalArgumentException e) {
+            Melting.ERROR.printf(" I did not understand the lengths %s\n", ps_lengths);
+            usage();
+            System.exit(-1);
+        }
+
+        Benchmark benchmark = new Benchmark(corpus.generate(i_records));
+        PrintStream console = System.out;
+        List<Result> results = new ArrayList<Result>();
+        try {
+            for (String ps_one : modes) {
+                Result result = benchmark.measure(ps_one, i_warmup);
+                print(result, console);
+                results.add(result);
+            }
+        } finally {
+            benchmark.close();
+        }
+        if (ps_json != null) {
+            Files.write(Paths.get(ps_json),
+                    json(ps_label, corpus, i_records, i_warmup, results).getBytes(StandardCharsets.UTF_8));
+            console.printf("results saved in %s\n", ps_json);
+        }
+    }
+}
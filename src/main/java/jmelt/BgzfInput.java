@@ -0,0 +1,225 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/******************************************************************************
+ * File: BgzfInput.java                                                       *
+ * Aim : reading of gzip files, e.g. a bgzipped FASTA given to --input,      *
+ *       inflated on several threads when the file is BGZF.                  *
+ *                                                                            *
+ *       A BGZF file (bgzip, samtools) is a series of gzip members of 64 KB  *
+ *       of data at most, each with its compressed size in an extra field    *
+ *       ("BC"): the members can be found without inflating them and are     *
+ *       inflated independently. They are grouped in tasks of about TASK   *
+ *       compressed bytes, inflated on the fork/join pool; a bounded number *
+ *       of tasks is in flight and their data is read in the order of the   *
+ *       file, so that the memory used does not depend on its size. When     *
+ *       there is an index FILE.gzi (bgzip -i, samtools faidx), the members  *
+ *       are taken from it; otherwise their headers are read one after the  *
+ *       other, which costs 18 bytes a member.                              *
+ *                                                                            *
+ *       Any other gzip file is inflated by GZIPInputStream, on one thread; *
+ *       a file which is not gzip is read as it is.                          *
+ ******************************************************************************/
+
+public class BgzfInput extends InputStream {
+
+    static final int HEADER = 18;                 /* bytes of a BGZF member header, BSIZE included */
+    static final int TASK = 1 << 20;              /* compressed bytes inflated by a task */
+
+    final FileChannel channel;
+    final long l_size;
+    final long[] l_index;                         /* offsets of the members (.gzi), null if none */
+    int i_member;                                 /* next member of l_index to give to a task */
+    long l_next;                                  /* offset of the next member to give to a task */
+
+    final ForkJoinPool pool = ForkJoinPool.commonPool();
+    final int i_inflight = 2 * pool.getParallelism() + 1;  /* max number of tasks waiting to be read */
+    final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    byte[] b_data = new byte[0];                  /* data of the task being read */
+    int i_position;
+
+    BgzfInput(FileChannel channel, long[] l_index) throws IOException {
+        this.channel = channel;
+        this.l_size = channel.size();
+        this.l_index = l_index;
+    }
+
+    /* the data of the file, inflated if it is gzip */
+    public static InputStream open(String ps_file) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(ps_file));
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16);
+        if (!gzip(header)) return in;
+        if (!bgzf(header, 0)) return new GZIPInputStream(in, 1 << 16);
+        return new BgzfInput(channel, read_index(Paths.get(ps_file + ".gzi"), channel.size()));
+    }
+
+    /* the file starts like gzip */
+    public static boolean compressed(String ps_file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(ps_file))) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            return gzip(header);
+        }
+    }
+
+    static boolean gzip(ByteBuffer header) {
+        return header.limit() >= 10 && (header.get(0) & 0xff) == 0x1f && (header.get(1) & 0xff) == 0x8b
+                && header.get(2) == 8;
+    }
+
+    /* gzip member with the extra field of BGZF: FEXTRA, XLEN 6, subfield BC of 2 bytes */
+    static boolean bgzf(ByteBuffer b, int p) {
+        return b.limit() - p >= HEADER && (b.get(p) & 0xff) == 0x1f && (b.get(p + 1) & 0xff) == 0x8b
+                && (b.get(p + 3) & 4) != 0 && b.getShort(p + 10) == 6
+                && b.get(p + 12) == 'B' && b.get(p + 13) == 'C' && b.getShort(p + 14) == 2;
+    }
+
+    /* offsets of the members, from the .gzi: count, then (compressed, data) pairs after the first member */
+    static long[] read_index(Path gzi, long l_size) throws IOException {
+        if (!Files.isReadable(gzi)) return null;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(gzi)).order(ByteOrder.LITTLE_ENDIAN);
+        if (index.remaining() < 8) return null;
+        long l_entries = index.getLong();
+        if (l_entries < 0 || index.remaining() != l_entries * 16) return null;   /* not an index: ignored */
+        long[] l_offsets = new long[(int) l_entries + 1];
+        for (int i = 1; i < l_offsets.length; i++) {
+            l_offsets[i] = index.getLong();
+            index.getLong();
+            if (l_offsets[i] <= l_offsets[i - 1] || l_offsets[i] >= l_size) return null;  /* of another file */
+        }
+        return l_offsets;
+    }
+
+    /*+------------------------------------------------------------------+
+      | the tasks: members [l_from, l_to) of the file                    |
+      +------------------------------------------------------------------+*/
+
+    /* end of the members of the next task, from the index or from the headers */
+    long next_task() throws IOException {
+        if (l_index != null) {   /* l_index[i_member] is l_next */
+            do i_member++; while (i_member < l_index.length && l_index[i_member] - l_next < TASK);
+            return (i_member < l_index.length) ? l_index[i_member] : l_size;
+        }
+        long l_to = l_next;
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (l_to < l_size && l_to - l_next < TASK) {
+            header.clear();
+            channel.read(header, l_to);
+            header.flip();
+            if (!bgzf(header, 0)) throw new IOException("the BGZF member at " + l_to + " is damaged");
+            l_to += (header.getShort(16) & 0xffff) + 1;
+        }
+        return Math.min(l_to, l_size);
+    }
+
+    void submit() throws IOException {
+        while (pending.size() < i_inflight && l_next < l_size) {
+            long l_from = l_next, l_to = next_task();
+            l_next = l_to;
+            pending.addLast(pool.submit(() -> inflate(l_from, l_to)));
+        }
+    }
+
+    /* data of the members of [l_from, l_to), their CRC checked */
+    byte[] inflate(long l_from, long l_to) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate((int) (l_to - l_from)).order(ByteOrder.LITTLE_ENDIAN);
+        while (compressed.hasRemaining())
+            if (channel.read(compressed, l_from + compressed.position()) < 0)
+                throw new IOException("the BGZF file ends in a member");
+        byte[] b_compressed = compressed.array();
+
+        int i_data = 0;                           /* size of the data, from the ISIZE of the members */
+        for (int p = 0; p < b_compressed.length; ) {
+            int i_bsize = bgzf(compressed, p) ? (compressed.getShort(p + 16) & 0xffff) + 1 : 0;
+            if (i_bsize < HEADER + 8 || p + i_bsize > b_compressed.length)
+                throw new IOException("the BGZF member at " + (l_from + p) + " is damaged");
+            i_data += compressed.getInt(p + i_bsize - 4);
+            p += i_bsize;
+        }
+        byte[] b_out = new byte[i_data];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int i_out = 0;
+            for (int p = 0; p < b_compressed.length; ) {
+                int i_bsize = (compressed.getShort(p + 16) & 0xffff) + 1;
+                int i_isize = compressed.getInt(p + i_bsize - 4);
+                inflater.reset();
+                inflater.setInput(b_compressed, p + HEADER, i_bsize - HEADER - 8);
+                int n = 0;
+                while (n < i_isize && !inflater.finished()) {
+                    int i_inflated = inflater.inflate(b_out, i_out + n, i_isize - n);
+                    if (i_inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    n += i_inflated;
+                }
+                crc.reset();
+                crc.update(b_out, i_out, n);
+                if (n != i_isize || (int) crc.getValue() != compressed.getInt(p + i_bsize - 8))
+                    throw new IOException("the BGZF member at " + (l_from + p) + " is damaged");
+                i_out += n;
+                p += i_bsize;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("the BGZF data from " + l_from + " is damaged");
+        } finally {
+            inflater.end();
+        }
+        return b_out;
+    }
+
+    /*+------------------------------------------------------------------+
+      | the data, task after task                                        |
+      +------------------------------------------------------------------+*/
+
+    /* false at the end of the file */
+    boolean fill() throws IOException {
+        while (i_position == b_data.length) {
+            submit();
+            if (pending.isEmpty()) return false;
+            try {
+                b_data = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();     /* the pool wraps the IOException of the task */
+                while (!(cause instanceof IOException) && cause.getCause() != null) cause = cause.getCause();
+                throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+            }
+            i_position = 0;
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        return fill() ? b_data[i_position++] & 0xff : -1;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, b_data.length - i_position);
+        System.arraycopy(b_data, i_position, b, off, n);
+        i_position += n;
+        return n;
+    }
+
+    public void close() throws IOException {
+        for (Future<byte[]> task : pending) task.cancel(false);
+        pending.clear();
+        channel.close();
+    }
+}
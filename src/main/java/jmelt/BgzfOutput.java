@@ -0,0 +1,187 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/******************************************************************************
+ * File: BgzfOutput.java                                                      *
+ * Aim : results written as BGZF (--bgzf): gzip which gunzip and zcat read  *
+ *       as usual, and which BgzfInput, bgzip and samtools can seek in.      *
+ *                                                                            *
+ *       The data is cut in blocks of BLOCK bytes, each deflated on the      *
+ *       fork/join pool into a gzip member of its own (with the BC extra     *
+ *       field giving its compressed size). A bounded number of blocks is   *
+ *       in flight and the members are written in order, so that the memory *
+ *       used does not depend on the size of the output. flush() ends the    *
+ *       block being filled: everything written is then in whole members.   *
+ *       close() writes the empty member which ends a BGZF file and, for a  *
+ *       file, its index FILE.gzi (the offsets of the members, as bgzip -i). *
+ *       A shutdown hook does it if the program ends by exit().              *
+ ******************************************************************************/
+
+public class BgzfOutput extends OutputStream {
+
+    static final int BLOCK = 0xff00;              /* data of a member, as bgzip */
+    static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    final OutputStream out;
+    final boolean b_close_out;                    /* false for stdout, which stays open */
+    final Path gzi;                               /* index written at the end, null if none */
+    final ForkJoinPool pool = ForkJoinPool.commonPool();
+    final int i_inflight = 2 * pool.getParallelism() + 1;  /* max number of blocks waiting to be written */
+    final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    byte[] b_block = new byte[BLOCK];
+    int i_used;
+    long l_compressed, l_data;                    /* written so far */
+    final ByteArrayOutputStream index = new ByteArrayOutputStream();  /* (compressed, data) offsets */
+    long l_entries;
+    boolean b_closed;
+    final Thread hook;
+
+    BgzfOutput(OutputStream out, boolean b_close_out, Path gzi) {
+        this.out = out;
+        this.b_close_out = b_close_out;
+        this.gzi = gzi;
+        hook = new Thread(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                /* nothing to do anymore */
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /* PrintStream on the file ps_file, in BGZF, with its index */
+    public static PrintStream open(String ps_file) throws IOException {
+        return new PrintStream(new BgzfOutput(new FileOutputStream(ps_file), true, Paths.get(ps_file + ".gzi")), false);
+    }
+
+    /* PrintStream writing out in BGZF (directly to the descriptor for System.out), which stays open */
+    public static PrintStream wrap(PrintStream out) {
+        out.flush();
+        OutputStream stream = (out == System.out) ? new FileOutputStream(FileDescriptor.out) : out;
+        return new PrintStream(new BgzfOutput(stream, false, null), false);
+    }
+
+    public synchronized void write(int b) throws IOException {
+        if (i_used == BLOCK) submit();
+        b_block[i_used++] = (byte) b;
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (i_used == BLOCK) submit();
+            int n = Math.min(len, BLOCK - i_used);
+            System.arraycopy(b, off, b_block, i_used, n);
+            i_used += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /* the block to the pool, writing the oldest members if too many are waiting */
+    private void submit() throws IOException {
+        if (b_closed) throw new IOException("output closed");
+        while (pending.size() >= i_inflight) write_member();
+        byte[] b_data = b_block;
+        int i_length = i_used;
+        pending.addLast(pool.submit(() -> member(b_data, i_length)));
+        b_block = new byte[BLOCK];
+        i_used = 0;
+    }
+
+    private void write_member() throws IOException {
+        byte[] b_member;
+        try {
+            b_member = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (l_compressed > 0) {   /* the first member is not in the index */
+            entry(l_compressed);
+            entry(l_data);
+            l_entries++;
+        }
+        out.write(b_member);
+        l_compressed += b_member.length;
+        l_data += ByteBuffer.wrap(b_member, b_member.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private void entry(long l) {
+        for (int i = 0; i < 8; i++) index.write((int) (l >>> (8 * i)));
+    }
+
+    /* a gzip member of BGZF: header with the BC field, raw deflate, CRC and size */
+    static byte[] member(byte[] b_data, int i_length) {
+        Deflater deflater = new Deflater(LEVEL, true);
+        byte[] b_member = new byte[BgzfInput.HEADER + i_length + i_length / 1000 + 64 + 8];
+        int n;
+        try {
+            deflater.setInput(b_data, 0, i_length);
+            deflater.finish();
+            n = 0;
+            while (!deflater.finished()) {
+                if (BgzfInput.HEADER + n == b_member.length - 8)
+                    b_member = Arrays.copyOf(b_member, b_member.length + 1024);
+                n += deflater.deflate(b_member, BgzfInput.HEADER + n, b_member.length - 8 - BgzfInput.HEADER - n);
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer member = ByteBuffer.wrap(b_member).order(ByteOrder.LITTLE_ENDIAN);
+        member.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4)   /* FEXTRA */
+                .putInt(0).put((byte) 0).put((byte) 0xff)                    /* no time, unknown OS */
+                .putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2)
+                .putShort((short) (BgzfInput.HEADER + n + 8 - 1));           /* BSIZE - 1 */
+        CRC32 crc = new CRC32();
+        crc.update(b_data, 0, i_length);
+        member.position(BgzfInput.HEADER + n);
+        member.putInt((int) crc.getValue()).putInt(i_length);
+        return Arrays.copyOf(b_member, member.position());
+    }
+
+    /* what is written is in whole members, written out */
+    public synchronized void flush() throws IOException {
+        if (i_used > 0) submit();
+        while (!pending.isEmpty()) write_member();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (b_closed) return;
+            try {
+                flush();
+                if (b_close_out || l_compressed > 0)  /* nothing at all on stdout if nothing was written */
+                    out.write(member(new byte[0], 0));   /* end of the file */
+                if (b_close_out) out.close();
+                else out.flush();
+                if (gzi != null) {
+                    ByteArrayOutputStream file = new ByteArrayOutputStream();
+                    for (int i = 0; i < 8; i++) file.write((int) (l_entries >>> (8 * i)));
+                    index.writeTo(file);
+                    Files.write(gzi, file.toByteArray());
+                }
+            } finally {
+                b_closed = true;
+            }
+        }
+        if (Thread.currentThread() != hook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                /* already shutting down */
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+
+package jmelt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+import jmelt.Melting.calor_const;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: BinarySet.java                                                       *
+ * Aim : compact binary image of a parameter file (.nnb). The text .nn files *
+ *       remain the source of truth; an image is compiled from one of them   *
+ *       with the same readers (read_nn, read_mismatches, read_dangends) and *
+ *       is loaded by mapping it in memory, without any parsing. The tables  *
+ *       of a perfect match are used in the buffer; the entries are only    *
+ *       built for the computations which search them by name (dataset.data). *
+ *       An image older than its text file (CRC of the source) is not used:  *
+ *       the text file is read. A bundled image is mapped in place, in the  *
+ *       classes directory or in the jar (its entries are stored).           *
+ *                                                                            *
+ * Layout (big endian):                                                       *
+ *   0   magic "JMNB"                                                         *
+ *   4   int    version                                                       *
+ *   8   int    kind of set (KIND_NN, KIND_MM or KIND_DE)                     *
+ *   12  int    number of entries                                             *
+ *   16  int    number of references                                          *
+ *   20  long   CRC32 of the text file the image was compiled from           *
+ *   28  long   CRC32 of the rest of the image (from offset HEADER_SIZE)      *
+ *   36  int    reserved                                                      *
+ *   40  dense tables of NnTable: 16 enthalpies, 16 entropies of the         *
+ *       dinucleotides, 4 + 4 initiation terms (zero for mm and de sets)     *
+ *   360 entries: 8 bytes of Crick's pair (ASCII, zero padded), enthalpy,    *
+ *       entropy                                                              *
+ *   ... references: int length, then the bytes (UTF-8)                      *
+ ******************************************************************************/
+
+public class BinarySet {
+
+    static final int MAGIC = 0x4a4d4e42;     /* "JMNB" */
+    static final int VERSION = 1;
+    static final int KIND_NN = 0;            /* regular nearest-neighbors */
+    static final int KIND_MM = 1;            /* mismatches */
+    static final int KIND_DE = 2;            /* dangling ends */
+    static final String SUFFIX = ".nnb";
+
+    static final int HEADER_SIZE = 40;
+    static final int TABLES = HEADER_SIZE;
+    static final int TABLES_SIZE = 40 * 8;
+    static final int ENTRIES = TABLES + TABLES_SIZE;
+    static final int PAIR_SIZE = 8;
+    static final int ENTRY_SIZE = PAIR_SIZE + 16;
+
+    /* a loaded image; all the accessors read the mapped buffer */
+    public static class Image {
+        final ByteBuffer buffer;
+
+        Image(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int version() {
+            return buffer.getInt(4);
+        }
+
+        public int kind() {
+            return buffer.getInt(8);
+        }
+
+        public int size() {
+            return buffer.getInt(12);
+        }
+
+        public long source_crc() {
+            return buffer.getLong(20);
+        }
+
+        public String pair(int i) {
+            int i_offset = ENTRIES + i * ENTRY_SIZE;
+            int i_length = 0;
+            while (i_length < PAIR_SIZE && buffer.get(i_offset + i_length) != 0) i_length++;
+            byte[] b_pair = new byte[i_length];
+            for (int j = 0; j < i_length; j++) b_pair[j] = buffer.get(i_offset + j);
+            return new String(b_pair, StandardCharsets.US_ASCII);
+        }
+
+        public double enthalpy(int i) {
+            return buffer.getDouble(ENTRIES + i * ENTRY_SIZE + PAIR_SIZE);
+        }
+
+        public double entropy(int i) {
+            return buffer.getDouble(ENTRIES + i * ENTRY_SIZE + PAIR_SIZE + 8);
+        }
+
+        /* the dense tables, directly as the NnTable of the set */
+        void tables(NnTable pst_table) {
+            DoubleBuffer tables = buffer.duplicate().position(TABLES).asDoubleBuffer();
+            tables.get(pst_table.d_enthalpy);
+            tables.get(pst_table.d_entropy);
+            tables.get(pst_table.d_init_enthalpy);
+            tables.get(pst_table.d_init_entropy);
+        }
+
+        /* the entries, as the objects get_results searches by name */
+        calor_const[] entries() {
+            calor_const[] pst_entries = new calor_const[Melting.NB];
+            for (int i = 0; i < pst_entries.length; i++) pst_entries[i] = new calor_const();
+            int i_size = size();
+            for (int i = 0; i < i_size; i++) {
+                pst_entries[i].s_crick_pair = pair(i);
+                pst_entries[i].d_enthalpy = enthalpy(i);
+                pst_entries[i].d_entropy = entropy(i);
+            }
+            return pst_entries;
+        }
+
+        /* dataset for get_results: the tables and the entries stay in the buffer, only the
+           references (a few strings) are read */
+        dataset to_dataset() {
+            dataset pst_set = new dataset(this);
+            int i_offset = ENTRIES + size() * ENTRY_SIZE;
+            int i_references = buffer.getInt(16);
+            for (int i = 0; i < i_references; i++) {
+                int i_length = buffer.getInt(i_offset);
+                byte[] b_reference = new byte[i_length];
+                buffer.duplicate().position(i_offset + 4).get(b_reference);
+                pst_set.reference[i] = new String(b_reference, StandardCharsets.UTF_8);
+                i_offset += 4 + i_length;
+            }
+            if (kind() == KIND_NN) pst_set.nn_table = new NnTable(this);
+            return pst_set;
+        }
+    }
+
+    /*********************************************
+     * Compile the text file ps_source to ps_out *
+     *********************************************/
+
+    public static void compile(String ps_source, int i_kind, String ps_out) throws IOException {
+        String ps_path = new File(ps_source).getAbsolutePath();
+        dataset pst_set = read_text(ps_path, i_kind);
+
+        int i_size = 0;
+        while (i_size < Melting.NB && pst_set.data()[i_size].s_crick_pair != null) i_size++;
+        int i_references = 0;
+        while (i_references < Melting.NUM_REF && pst_set.reference[i_references].length() > 0) i_references++;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        NnTable pst_table = (i_kind == KIND_NN) ? new NnTable(pst_set) : null;
+        double[][] d_tables = (pst_table != null)
+                ? new double[][]{pst_table.d_enthalpy, pst_table.d_entropy, pst_table.d_init_enthalpy, pst_table.d_init_entropy}
+                : new double[][]{new double[16], new double[16], new double[4], new double[4]};
+        for (double[] d_table : d_tables)
+            for (double d : d_table) out.writeDouble(d);
+        for (int i = 0; i < i_size; i++) {
+            calor_const pst_entry = pst_set.data()[i];
+            byte[] b_pair = pst_entry.s_crick_pair.getBytes(StandardCharsets.US_ASCII);
+            if (b_pair.length > PAIR_SIZE)
+                throw new IOException("Crick's pair too long: " + pst_entry.s_crick_pair);
+            out.write(b_pair);
+            out.write(new byte[PAIR_SIZE - b_pair.length]);
+            out.writeDouble(pst_entry.d_enthalpy);
+            out.writeDouble(pst_entry.d_entropy);
+        }
+        for (int i = 0; i < i_references; i++) {
+            byte[] b_reference = pst_set.reference[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b_reference.length);
+            out.write(b_reference);
+        }
+        out.flush();
+        byte[] b_body = body.toByteArray();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(i_kind).putInt(i_size).putInt(i_references);
+        header.putLong(crc(Files.readAllBytes(Paths.get(ps_path))));
+        header.putLong(crc(b_body));
+        header.putInt(0);
+
+        Path out_path = Paths.get(ps_out);
+        Path tmp_path = out_path.resolveSibling(out_path.getFileName() + ".tmp");
+        try (OutputStream file = new FileOutputStream(tmp_path.toFile())) {
+            file.write(header.array());
+            file.write(b_body);
+        }
+        Files.move(tmp_path, out_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static long crc(byte[] b_data) {
+        CRC32 crc = new CRC32();
+        crc.update(b_data);
+        return crc.getValue();
+    }
+
+    /* kind of a set from the name of its file, as for the bundled sets */
+    static int kind_of(String ps_file) {
+        String ps_name = new File(ps_file).getName();
+        if (ps_name.endsWith("mm.nn")) return KIND_MM;
+        if (ps_name.endsWith("de.nn")) return KIND_DE;
+        return KIND_NN;
+    }
+
+    /******************
+     * Load an image  *
+     ******************/
+
+    /* map the file ps_path in memory */
+    public static Image map(String ps_path) throws IOException {
+        try (FileChannel fc = FileChannel.open(Paths.get(ps_path), StandardOpenOption.READ)) {
+            return check(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), ps_path);
+        }
+    }
+
+    /* image bundled as a resource, mapped in place; read in memory only from a jar entry
+       which is compressed. null if there is none */
+    static Image resource(String ps_path) throws IOException {
+        URL url = Melting.class.getResource(ps_path);
+        if (url == null) return null;
+        ByteBuffer buffer = null;
+        try {
+            if (url.getProtocol().equals("file")) {
+                return map(Paths.get(url.toURI()).toString());
+            } else if (url.getProtocol().equals("jar")) {
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                buffer = map_entry(Paths.get(connection.getJarFileURL().toURI()), connection.getEntryName());
+            }
+        } catch (URISyntaxException | FileSystemNotFoundException e) {
+            /* not a local file: read */
+        }
+        if (buffer == null) {
+            try (InputStream in = url.openStream()) {
+                buffer = ByteBuffer.wrap(in.readAllBytes());
+            }
+        }
+        return check(buffer, ps_path);
+    }
+
+    /*+---------------------------------------------------------------+
+      | the data of an entry stored without compression in a zip     |
+      | file, mapped: found through the central directory at the end |
+      | of the file. null if the entry is compressed or not found    |
+      | (or if the zip is a zip64 one)                                |
+      +---------------------------------------------------------------+*/
+
+    static ByteBuffer map_entry(Path zip, String ps_entry) throws IOException {
+        try (FileChannel fc = FileChannel.open(zip, StandardOpenOption.READ)) {
+            long l_size = fc.size();
+            int i_tail = (int) Math.min(l_size, 22 + 0xffff);   /* end of central directory, and its comment */
+            ByteBuffer tail = read(fc, l_size - i_tail, i_tail);
+            int i_end = i_tail - 22;
+            while (i_end >= 0 && tail.getInt(i_end) != 0x06054b50) i_end--;
+            if (i_end < 0) return null;
+            int i_count = tail.getShort(i_end + 10) & 0xffff;
+            ByteBuffer directory = read(fc, tail.getInt(i_end + 16) & 0xffffffffL, tail.getInt(i_end + 12));
+            byte[] b_name = ps_entry.getBytes(StandardCharsets.UTF_8);
+            int i_entry = 0;
+            for (int i = 0; i < i_count && directory.getInt(i_entry) == 0x02014b50; i++) {
+                int i_name = directory.getShort(i_entry + 28) & 0xffff;
+                int i_next = i_entry + 46 + i_name + (directory.getShort(i_entry + 30) & 0xffff)
+                        + (directory.getShort(i_entry + 32) & 0xffff);
+                if (i_name == b_name.length && directory.duplicate().position(i_entry + 46).limit(i_entry + 46 + i_name)
+                        .equals(ByteBuffer.wrap(b_name))) {
+                    if (directory.getShort(i_entry + 10) != 0) return null;   /* compressed */
+                    long l_local = directory.getInt(i_entry + 42) & 0xffffffffL;
+                    ByteBuffer local = read(fc, l_local, 30);
+                    long l_data = l_local + 30 + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+                    return fc.map(FileChannel.MapMode.READ_ONLY, l_data, directory.getInt(i_entry + 20) & 0xffffffffL);
+                }
+                i_entry = i_next;
+            }
+            return null;
+        }
+    }
+
+    /* i_length bytes of fc from l_position, little endian as in a zip file */
+    static ByteBuffer read(FileChannel fc, long l_position, int i_length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(i_length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+            if (fc.read(buffer, l_position + buffer.position()) < 0) throw new EOFException();
+        return buffer.flip();
+    }
+
+    static Image check(ByteBuffer buffer, String ps_path) throws IOException {
+        if (buffer.capacity() < ENTRIES || buffer.getInt(0) != MAGIC)
+            throw new IOException(ps_path + " is not a binary parameter file");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException(ps_path + " has version " + buffer.getInt(4) + ", expected " + VERSION);
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != buffer.getLong(28))
+            throw new IOException(ps_path + " is corrupted (bad checksum)");
+        return new Image(buffer);
+    }
+
+    /*+---------------------------------------------------------------+
+      | set for a path given to read_nn, read_mismatches or           |
+      | read_dangends: an explicit .nnb file, or the image compiled   |
+      | by the build for a bundled set. null if the text file is to   |
+      | be read, i.e. if it exists on disk (it is the reference), or  |
+      | if the bundled image is older than it.                        |
+      +---------------------------------------------------------------+*/
+
+    static dataset lookup(String ps_path, int i_kind) {
+        if (ps_path.endsWith(SUFFIX)) {
+            String ps_text = ps_path.substring(0, ps_path.length() - 1);
+            dataset pst_set = read(ps_path, ps_text, i_kind);
+            return (pst_set != null) ? pst_set : read_text(ps_text.substring(1), i_kind);
+        }
+        if (!new File(ps_path).exists() && Melting.class.getResource(ps_path + "b") != null)
+            return read(ps_path + "b", ps_path, i_kind);
+        return null;
+    }
+
+    /* read a set from an image, with the same error handling as the text readers;
+       null if the image is older than its text file ps_text */
+    static dataset read(String ps_path, String ps_text, int i_kind) {
+        Image pst_image;
+        long l_source;
+        try {
+            pst_image = new File(ps_path).exists() ? map(ps_path) : resource(ps_path);
+            if (pst_image == null) throw new FileNotFoundException(ps_path);
+            l_source = source_crc(ps_text);
+        } catch (IOException e) {
+            Melting.ERROR.printf(" I was not able to read the binary parameter file %s: %s\n", ps_path, e.getMessage());
+            Melting.exit(-1);
+            return null;
+        }
+        if (pst_image.kind() != i_kind) {
+            Melting.ERROR.printf(" The binary parameter file %s does not contain the expected kind of parameters.\n", ps_path);
+            Melting.exit(-1);
+        }
+        if (l_source >= 0 && l_source != pst_image.source_crc()) {
+            Melting.ERROR.printf(" The binary parameter file %s is older than %s, which is read instead.\n", ps_path, ps_text);
+            return null;
+        }
+        return pst_image.to_dataset();
+    }
+
+    /* CRC32 of the text file of an image, on disk or bundled; -1 if there is none */
+    static long source_crc(String ps_text) throws IOException {
+        if (new File(ps_text).exists()) return crc(Files.readAllBytes(Paths.get(ps_text)));
+        try (InputStream in = Melting.class.getResourceAsStream(ps_text)) {
+            return (in == null) ? -1 : crc(in.readAllBytes());
+        }
+    }
+
+    static dataset read_text(String ps_set, int i_kind) {
+        if (i_kind == KIND_NN) return Melting.read_nn(ps_set);
+        if (i_kind == KIND_MM) return Melting.read_mismatches(ps_set);
+        return Melting.read_dangends(ps_set);
+    }
+
+    /*+-------------------------------------------------------------+
+      | compile the text files given as arguments; the first one   |
+      | is the output directory:                                    |
+      |   java -cp melting.jar jmelt.BinarySet outdir a.nn b.nn ... |
+      +-------------------------------------------------------------+*/
+
+    public static void main(String args[]) throws IOException {
+        if (args.length < 2) {
+            Melting.ERROR.printf("  Usage is 'jmelt.BinarySet OUTDIR FILE.nn...'\n" +
+                    "  The kind of set is taken from the name: *mm.nn for mismatches,\n" +
+                    "  *de.nn for dangling ends, nearest-neighbors otherwise.\n");
+            System.exit(-1);
+        }
+        File dir = new File(args[0]);
+        dir.mkdirs();
+        for (int i = 1; i < args.length; i++) {
+            String ps_name = new File(args[i]).getName();
+            String ps_out = new File(dir, ps_name.replaceFirst("\\.nn$", "") + SUFFIX).getPath();
+            compile(args[i], kind_of(args[i]), ps_out);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+
+package jmelt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/******************************************************************************
+ * File: Client.java                                                          *
+ * Aim : command line of a daemon (see Daemon): the arguments are sent to    *
+ *       the daemon listening on the socket, its output is written on the    *
+ *       standard output and error, and the client exits with its status.    *
+ *       The standard input is only read if the run reads it (batch mode).  *
+ *                                                                            *
+ *       java -cp melting.jar jmelt.Client SOCKET [options of melting]       *
+ *                                                                            *
+ *       The files named in the options are opened by the daemon: their      *
+ *       paths are relative to its directory, not to the one of the client. *
+ ******************************************************************************/
+
+public class Client {
+
+    public static void main(String args[]) {
+        if (args.length < 1) {
+            System.err.printf(" Usage: jmelt.Client SOCKET [options of melting]\n");
+            System.exit(-1);
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Daemon.output(channel)));
+            request.writeInt(args.length - 1);
+            for (int i = 1; i < args.length; i++) request.writeUTF(args[i]);
+            request.flush();
+
+            DataInputStream frames = new DataInputStream(new BufferedInputStream(Daemon.input(channel), 1 << 16));
+            byte[] b_frame = new byte[Daemon.FRAME_SIZE];
+            while (true) {
+                byte i_type = frames.readByte();
+                if (i_type == Daemon.STATUS) {
+                    int i_status = frames.readInt();
+                    System.out.flush();
+                    System.exit(i_status);
+                } else if (i_type == Daemon.INPUT) {
+                    Thread forward = new Thread(() -> forward(channel), "melting-input");
+                    forward.setDaemon(true);
+                    forward.start();
+                } else {
+                    int i_length = frames.readInt();
+                    if (i_length > b_frame.length) b_frame = new byte[i_length];
+                    frames.readFully(b_frame, 0, i_length);
+                    (i_type == Daemon.ERR ? System.err : System.out).write(b_frame, 0, i_length);
+                }
+            }
+        } catch (IOException e) {
+            System.out.flush();
+            System.err.printf(" I was not able to run melting by the daemon at %s: %s\n", args[0], e);
+            System.exit(-1);
+        }
+    }
+
+    /* standard input to the daemon, whose side is closed at the end */
+    static void forward(SocketChannel channel) {
+        try {
+            OutputStream out = Daemon.output(channel);
+            byte[] b = new byte[1 << 16];
+            int n;
+            while ((n = System.in.read(b)) >= 0) out.write(b, 0, n);
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            /* the daemon answered without reading everything */
+        }
+    }
+}
@@ -0,0 +1,358 @@
+
+package jmelt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/******************************************************************************
+ * File: Coordinator.java                                                     *
+ * Aim : a batch file (--input) computed by several JVMs (--workers=n,        *
+ *       --listen=[host:]port).                                               *
+ *                                                                            *
+ *       The file is cut in chunks of whole lines (byte ranges starting       *
+ *       after a newline), several per worker. The workers are JVMs of the    *
+ *       program started with --worker=ADDRESS: the ones of this host, which  *
+ *       it starts, connect to the coordinator on a Unix domain socket; the   *
+ *       ones of other hosts, started by hand, on the TCP port of --listen.   *
+ *       They ask for a chunk whenever they are done with the previous one,   *
+ *       so that a worker which is ahead takes the chunks the others have not *
+ *       reached yet. A chunk is computed by the batch mode (Melting.run)     *
+ *       with the options of the run, its output written in a file of its     *
+ *       own, next to the input file: the workers of other hosts read and     *
+ *       write these paths, so the directory is shared by all the hosts,      *
+ *       at the same place.                                                   *
+ *                                                                            *
+ *       The coordinator copies the outputs of the chunks in the order of     *
+ *       the input as soon as they are complete, and gives again to another   *
+ *       worker the chunk of a worker which died. The chunks after the first  *
+ *       are computed as if the header of their mode (--json, --curve...)     *
+ *       were written already, so that the outputs are copied unchanged.      *
+ *                                                                            *
+ *       The lines before each chunk are counted while the file is cut, so  *
+ *       that its duplexes go on with the numbers of the previous chunks     *
+ *       (the "id" of --json).                                               *
+ *                                                                            *
+ *       Protocol. The coordinator first sends the options of the run (int,   *
+ *       then UTF each), then a chunk: its number, start and end offsets, the *
+ *       number of lines before it, the input and output files (DataOutput    *
+ *       long, long, long, long, UTF, UTF), or -1 when there is no chunk      *
+ *       left; the worker answers with the exit status of the batch.          *
+ ******************************************************************************/
+
+public class Coordinator {
+
+    static final int CHUNKS_PER_WORKER = 8;
+    static final long MIN_CHUNK = 1 << 16;      /* bytes */
+    static final long NO_MORE = -1;
+
+    final String ps_input;
+    final String[] ps_args;               /* options given to the workers */
+    final int i_workers;                  /* JVMs started on this host */
+    final String ps_listen;               /* [host:]port where the workers of other hosts join, or null */
+    long[] l_bounds;                      /* chunk i: [l_bounds[i], l_bounds[i + 1]) */
+    long[] l_first;                       /* duplexes before chunk i, so that it numbers them on */
+    Path work_dir;
+    final BlockingQueue<Integer> pending = new LinkedBlockingQueue<Integer>();
+    int[] i_status;                       /* exit status of each chunk, -1 while not done */
+    int i_done;                           /* chunks done */
+    int i_alive;                          /* worker JVMs running, workers of other hosts connected */
+    String ps_failure;                    /* first error, which stops the run */
+
+    public Coordinator(String ps_input, String[] ps_args, int i_workers, String ps_listen) {
+        this.ps_input = ps_input;
+        this.ps_args = ps_args;
+        this.i_workers = i_workers;
+        this.ps_listen = ps_listen;
+    }
+
+    /*+------------------------------------------------------------------+
+      | chunks of whole lines, of about size / (CHUNKS_PER_WORKER x n),  |
+      | with the number of lines before each one                         |
+      +------------------------------------------------------------------+*/
+
+    void split(FileChannel channel, int i_chunks) throws IOException {
+        long l_size = channel.size();
+        long l_chunk = Math.max(MIN_CHUNK, l_size / Math.max(1, i_chunks));
+        List<Long> bounds = new ArrayList<Long>();
+        List<Long> first = new ArrayList<Long>();
+        bounds.add(0L);
+        first.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long l_lines = 0;                             /* newlines before l_offset */
+        long l_cut = l_chunk;                         /* the next chunk starts at the first line from there */
+        long l_offset = 0;
+        while (l_offset < l_size) {
+            buffer.clear();
+            int n = channel.read(buffer, l_offset);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) != '\n') continue;
+                l_lines++;
+                long l_line = l_offset + i + 1;        /* start of the next line */
+                if (l_line >= l_cut && l_line < l_size) {
+                    bounds.add(l_line);
+                    first.add(l_lines);
+                    l_cut = l_line + l_chunk;
+                }
+            }
+            l_offset += n;
+        }
+        bounds.add(l_size);
+        l_bounds = new long[bounds.size()];
+        for (int i = 0; i < l_bounds.length; i++) l_bounds[i] = bounds.get(i);
+        l_first = new long[first.size()];
+        for (int i = 0; i < l_first.length; i++) l_first[i] = first.get(i);
+    }
+
+    /*+------------------------------------------------------------------+
+      | the run: workers started, chunks given, outputs merged in out    |
+      +------------------------------------------------------------------+*/
+
+    public void run(OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(ps_input))) {
+            split(channel, Math.max(1, i_workers) * CHUNKS_PER_WORKER);
+        }
+        int i_chunks = l_bounds.length - 1;
+        i_status = new int[i_chunks];
+        Arrays.fill(i_status, -1);
+        for (int i = 0; i < i_chunks; i++) pending.add(i);
+
+        Path input_dir = Paths.get(ps_input).toAbsolutePath().getParent();
+        work_dir = Files.createTempDirectory(input_dir, ".melting-");
+        Path socket = work_dir.resolve("coordinator.sock");
+        List<Process> processes = new ArrayList<Process>();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             ServerSocketChannel remote = (ps_listen == null) ? null : ServerSocketChannel.open()) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            if (remote != null) {
+                remote.bind(address(ps_listen));
+                int i = ps_listen.lastIndexOf(':');
+                Melting.ERROR.printf(" The workers of other hosts join with --worker=%s:%d\n",
+                        (i > 0) ? ps_listen.substring(0, i) : InetAddress.getLocalHost().getHostName(),
+                        ((InetSocketAddress) remote.getLocalAddress()).getPort());
+            }
+            for (int w = 0; w < Math.min(i_workers, i_chunks); w++) {
+                Process process = start(socket);
+                processes.add(process);
+                alive(1);
+                process.onExit().thenRun(() -> alive(-1));
+            }
+            accept(server, false);
+            if (remote != null) accept(remote, true);
+            merge(out);
+        } finally {
+            for (Process process : processes) process.destroy();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(work_dir)) {
+                for (Path file : files) Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(work_dir);
+        }
+    }
+
+    /* [host:]port, on every interface of this host if there is no host */
+    static InetSocketAddress address(String ps_address) throws IOException {
+        int i = ps_address.lastIndexOf(':');
+        try {
+            int i_port = Integer.parseInt(ps_address.substring(i + 1));
+            return (i < 0) ? new InetSocketAddress(i_port) : new InetSocketAddress(ps_address.substring(0, i), i_port);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("the address " + ps_address + " is not [host:]port");
+        }
+    }
+
+    /* the workers connecting on server, each served by a thread of its own */
+    void accept(ServerSocketChannel server, boolean b_remote) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel worker = server.accept();
+                    Thread thread = new Thread(() -> serve(worker, b_remote), "melting-coordinator");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                /* closed at the end of the run */
+            }
+        }, "melting-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /* a worker JVM; it gets the options of the run from the coordinator */
+    Process start(Path socket) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Melting.class.getName());
+        command.add("--worker=" + socket);
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /* the chunks computed by a worker, until there is none left or it dies */
+    void serve(SocketChannel worker, boolean b_remote) {
+        Integer i_chunk = null;
+        if (b_remote) alive(1);
+        try (SocketChannel channel = worker) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Daemon.output(channel)));
+            DataInputStream answer = new DataInputStream(Daemon.input(channel));
+            request.writeInt(ps_args.length);
+            for (String ps_arg : ps_args) request.writeUTF(ps_arg);
+            while ((i_chunk = next()) != null) {
+                request.writeLong(i_chunk);
+                request.writeLong(l_bounds[i_chunk]);
+                request.writeLong(l_bounds[i_chunk + 1]);
+                request.writeLong(l_first[i_chunk]);
+                request.writeUTF(Paths.get(ps_input).toAbsolutePath().toString());
+                request.writeUTF(output(i_chunk).toString());
+                request.flush();
+                int i_exit = answer.readInt();
+                done(i_chunk, i_exit);
+                i_chunk = null;
+            }
+            request.writeLong(NO_MORE);
+            request.flush();
+        } catch (IOException e) {
+            /* the worker died: its chunk goes to another one */
+        } finally {
+            if (i_chunk != null) pending.add(i_chunk);
+            if (b_remote) alive(-1);
+        }
+    }
+
+    synchronized void alive(int i_change) {
+        i_alive += i_change;
+        notifyAll();
+    }
+
+    /* next chunk to compute, waiting while the others may still give one back; null at the end */
+    Integer next() throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (ps_failure != null || i_done == i_status.length) return null;
+            }
+            try {
+                Integer i_chunk = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (i_chunk != null) return i_chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    Path output(int i_chunk) {
+        return work_dir.resolve("chunk-" + i_chunk + ".out");
+    }
+
+    synchronized void done(int i_chunk, int i_exit) {
+        i_status[i_chunk] = i_exit;
+        i_done++;
+        if (i_exit != 0 && ps_failure == null)
+            ps_failure = "the lines from byte " + l_bounds[i_chunk] + " of " + ps_input + " ended with status " + i_exit;
+        notifyAll();
+    }
+
+    synchronized boolean failed() {
+        return ps_failure != null;
+    }
+
+    /* the outputs of the chunks in order, each as soon as it is there */
+    void merge(OutputStream out) throws IOException {
+        for (int i_chunk = 0; i_chunk < i_status.length; i_chunk++) {
+            synchronized (this) {
+                while (i_status[i_chunk] < 0 && ps_failure == null) {
+                    if (i_alive == 0 && ps_listen == null) ps_failure = "all the workers died";
+                    else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+                if (ps_failure != null) throw new IOException(ps_failure);
+            }
+            try (InputStream in = Files.newInputStream(output(i_chunk))) {
+                in.transferTo(out);     /* streamed, whatever the size of the chunk */
+            }
+            Files.delete(output(i_chunk));
+        }
+        out.flush();
+    }
+
+    /*+------------------------------------------------------------------+
+      | worker side: the chunks given by the coordinator, computed by    |
+      | the batch mode with the options of the run                       |
+      +------------------------------------------------------------------+*/
+
+    /* the number of the next chunk; the coordinator may end without sending NO_MORE to a worker
+       which is not done yet (its chunks were given back and computed by the others) */
+    static long next_chunk(DataInputStream request) throws IOException {
+        try {
+            return request.readLong();
+        } catch (EOFException e) {
+            return NO_MORE;
+        }
+    }
+
+    /* ps_address: the socket of a coordinator of this host, or host:port */
+    static void work(String ps_address) throws IOException {
+        Melting.keep_sets();
+        try (SocketChannel channel = ps_address.matches("[^/]*:[0-9]+")
+                ? SocketChannel.open(address(ps_address)) : SocketChannel.open(UnixDomainSocketAddress.of(ps_address))) {
+            DataInputStream request = new DataInputStream(new BufferedInputStream(Daemon.input(channel)));
+            DataOutputStream answer = new DataOutputStream(Daemon.output(channel));
+            String[] ps_batch;
+            try {
+                ps_batch = new String[request.readInt() + 1];
+            } catch (EOFException e) {
+                return;                 /* the coordinator was done before this worker joined */
+            }
+            for (int i = 0; i < ps_batch.length - 1; i++) ps_batch[i] = request.readUTF();
+            ps_batch[ps_batch.length - 1] = "-B";
+            long l_chunk;
+            while ((l_chunk = next_chunk(request)) != NO_MORE) {
+                long l_start = request.readLong();
+                long l_end = request.readLong();
+                long l_records = request.readLong();
+                String ps_file = request.readUTF();
+                String ps_output = request.readUTF();
+                int i_exit;
+                try (FileChannel input = FileChannel.open(Paths.get(ps_file));
+                     PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(ps_output), 1 << 16), false)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(
+                            new BufferedInputStream(Channels.newInputStream(input.position(l_start)), 1 << 16) {
+                                long l_left = l_end - l_start;   /* bytes of the range not read yet */
+
+                                public synchronized int read() throws IOException {
+                                    if (l_left <= 0) return -1;
+                                    int b = super.read();
+                                    if (b >= 0) l_left--;
+                                    return b;
+                                }
+
+                                public synchronized int read(byte[] b, int off, int len) throws IOException {
+                                    if (l_left <= 0) return -1;
+                                    int n = super.read(b, off, (int) Math.min(len, l_left));
+                                    if (n > 0) l_left -= n;
+                                    return n;
+                                }
+                            }));
+                    i_exit = Melting.run(ps_batch, in, out, System.err, l_records, l_chunk > 0);
+                }
+                answer.writeInt(i_exit);
+                answer.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+
+package jmelt;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/******************************************************************************
+ * File: Daemon.java                                                          *
+ * Aim : keep a warm JVM, with the parameter sets read, answering the        *
+ *       command lines sent by Client over a Unix domain socket.             *
+ *                                                                            *
+ *       The program keeps its state in static variables, so that two runs  *
+ *       cannot share them. Each thread of the pool has an engine of its     *
+ *       own: the classes of the program loaded again by a class loader of   *
+ *       the engine, i.e. its own copy of the variables, of the parameter    *
+ *       sets already read (kept_set) and of the compiled code. The clients  *
+ *       are then served concurrently, a run being a call of Melting.run.    *
+ *                                                                            *
+ *       Protocol. The client sends the number of arguments and the          *
+ *       arguments (DataOutput int and UTF). The daemon answers by frames:   *
+ *       a type byte, then for OUT and ERR a length and the bytes, for       *
+ *       STATUS the exit status (last frame), INPUT having no content: the   *
+ *       run reads its standard input, which the client then streams until  *
+ *       it closes its side of the socket.                                    *
+ ******************************************************************************/
+
+public class Daemon {
+
+    static final byte STATUS = 0;     /* frames sent by the daemon */
+    static final byte OUT = 1;
+    static final byte ERR = 2;
+    static final byte INPUT = 3;
+    static final int FRAME_SIZE = 1 << 13;   /* bytes of output gathered in a frame */
+
+    final Path socket;
+    final ExecutorService pool;
+    final ThreadLocal<Engine> engines = ThreadLocal.withInitial(Engine::new);
+
+    public Daemon(String ps_socket, int i_threads) {
+        this.socket = Paths.get(ps_socket);
+        this.pool = Executors.newFixedThreadPool(i_threads, r -> {
+            Thread thread = new Thread(r, "melting-daemon");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* accept the clients until the JVM is stopped */
+    public void serve() throws IOException {
+        Files.deleteIfExists(socket);   /* left by a daemon which was killed */
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                /* nothing to do anymore */
+            }
+        }));
+        while (true) {
+            SocketChannel client = server.accept();
+            pool.execute(() -> answer(client));
+        }
+    }
+
+    /* one command line of a client */
+    void answer(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            InputStream in = input(channel);
+            DataInputStream request = new DataInputStream(in);
+            String[] ps_args = new String[request.readInt()];
+            for (int i = 0; i < ps_args.length; i++) ps_args[i] = request.readUTF();
+
+            DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(output(channel), FRAME_SIZE + 8));
+            PrintStream out = new PrintStream(new BufferedOutputStream(new Frames(frames, OUT), FRAME_SIZE), false);
+            PrintStream err = new PrintStream(new BufferedOutputStream(new Frames(frames, ERR), FRAME_SIZE), false);
+            BufferedReader stdin = new BufferedReader(new InputStreamReader(new OnDemand(in, frames)));
+            int i_status = engines.get().run(ps_args, stdin, out, err);
+            out.flush();
+            err.flush();
+            frames.writeByte(STATUS);
+            frames.writeInt(i_status);
+            frames.flush();
+        } catch (IOException e) {
+            /* the client went away: nothing to answer */
+        }
+    }
+
+    /*+----------------------------------------------------------------+
+      | the classes of the program, loaded again from the class path   |
+      | (the parent is the platform loader, which does not know them)  |
+      +----------------------------------------------------------------+*/
+
+    static class Engine {
+        final Method run;
+
+        Engine() {
+            try {
+                String[] ps_paths = System.getProperty("java.class.path").split(File.pathSeparator);
+                URL[] urls = new URL[ps_paths.length];
+                for (int i = 0; i < ps_paths.length; i++) urls[i] = Paths.get(ps_paths[i]).toUri().toURL();
+                ClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+                Class<?> melting = Class.forName("jmelt.Melting", true, loader);
+                melting.getMethod("keep_sets").invoke(null);
+                run = melting.getMethod("run", String[].class, BufferedReader.class, PrintStream.class, PrintStream.class);
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new IllegalStateException("cannot load the program: " + e, e);
+            }
+        }
+
+        int run(String[] ps_args, BufferedReader in, PrintStream out, PrintStream err) {
+            try {
+                return (Integer) run.invoke(null, ps_args, in, out, err);
+            } catch (InvocationTargetException e) {   /* as the JVM would report it */
+                err.println("Exception in thread \"main\" " + e.getCause());
+                return 1;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /* output of a run, sent as frames of one type */
+    static class Frames extends OutputStream {
+        final DataOutputStream frames;
+        final byte i_type;
+
+        Frames(DataOutputStream frames, byte i_type) {
+            this.frames = frames;
+            this.i_type = i_type;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            synchronized (frames) {
+                frames.writeByte(i_type);
+                frames.writeInt(len);
+                frames.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            synchronized (frames) {
+                frames.flush();
+            }
+        }
+    }
+
+    /* standard input of a run: asked to the client at the first read */
+    static class OnDemand extends InputStream {
+        final InputStream in;
+        final DataOutputStream frames;
+        boolean b_asked;
+
+        OnDemand(InputStream in, DataOutputStream frames) {
+            this.in = in;
+            this.frames = frames;
+        }
+
+        private void ask() throws IOException {
+            if (b_asked) return;
+            b_asked = true;
+            synchronized (frames) {
+                frames.writeByte(INPUT);
+                frames.flush();
+            }
+        }
+
+        public int read() throws IOException {
+            ask();
+            return in.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            ask();
+            return in.read(b, off, len);
+        }
+    }
+
+    /*+-----------------------------------------------------------------+
+      | streams on a socket channel. Not those of Channels, which lock  |
+      | the channel for a read: the client writes its input while it    |
+      | reads the output.                                                 |
+      +-----------------------------------------------------------------+*/
+
+    static InputStream input(SocketChannel channel) {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    static OutputStream output(SocketChannel channel) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        };
+    }
+}
@@ -0,0 +1,280 @@
+
+package jmelt;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: DimerScreen.java                                                     *
+ * Aim : primer-dimer and self-complementarity screen. For every primer and  *
+ *       every pair of primers, the most stable duplex the two can form in   *
+ *       any antiparallel alignment.                                          *
+ *                                                                            *
+ *       A primer is packed in two bitplanes (high and low bit of the code   *
+ *       A=0, C=1, G=2, T=3; bit i is base i). As the complement of a code   *
+ *       is its bitwise not, the base i of A pairs with the base facing it  *
+ *       in B (B reversed, shifted by the offset) if both planes differ:     *
+ *            match = (hi_A ^ hi_R) & (lo_A ^ lo_R)                           *
+ *       which gives all the paired positions of an offset in a few          *
+ *       operations. The stretches of pairs are then scored:                 *
+ *         - each run of pairs, from cumulated sums of the dinucleotides of  *
+ *           A (a perfectly matched stretch only depends on A);              *
+ *         - two runs of at least two pairs separated by one mismatch, by    *
+ *           get_results with the mismatch tables. If the mismatch has no    *
+ *           parameters, the stretch is left to its two runs.                *
+ *       The most stable stretch is the lowest free energy at the           *
+ *       temperature of the assay. The primers are screened in parallel.    *
+ ******************************************************************************/
+
+public class DimerScreen {
+
+    static final int MAX_LENGTH = 64;      /* one word per bitplane */
+
+    /* a primer, packed */
+    static class Primer {
+        final String ps_name;
+        final String ps_sequence;
+        final int i_length;
+        final long l_hi, l_lo;             /* bitplanes of the codes */
+        final long l_hi_reverse, l_lo_reverse;  /* same for the reversed sequence */
+        final double[] d_cum_h, d_cum_s;   /* dinucleotides before each position */
+
+        Primer(String ps_name, String ps_sequence, NnTable pst_table) {
+            this.ps_name = ps_name;
+            this.ps_sequence = ps_sequence;
+            i_length = ps_sequence.length();
+            long l_hi = 0, l_lo = 0, l_hi_reverse = 0, l_lo_reverse = 0;
+            for (int i = 0; i < i_length; i++) {
+                int i_code = NnTable.code(ps_sequence.charAt(i));
+                l_hi |= (long) (i_code >> 1) << i;
+                l_lo |= (long) (i_code & 1) << i;
+                l_hi_reverse |= (long) (i_code >> 1) << (i_length - 1 - i);
+                l_lo_reverse |= (long) (i_code & 1) << (i_length - 1 - i);
+            }
+            this.l_hi = l_hi;
+            this.l_lo = l_lo;
+            this.l_hi_reverse = l_hi_reverse;
+            this.l_lo_reverse = l_lo_reverse;
+            d_cum_h = new double[i_length];
+            d_cum_s = new double[i_length];
+            for (int i = 1; i < i_length; i++) {
+                int i_pair = NnTable.pair(ps_sequence, i - 1);
+                d_cum_h[i] = d_cum_h[i - 1] + pst_table.d_enthalpy[i_pair];
+                d_cum_s[i] = d_cum_s[i - 1] + pst_table.d_entropy[i_pair];
+            }
+        }
+    }
+
+    /* most stable dimer of two primers */
+    public static class Dimer {
+        public int i_first, i_second;   /* indices of the primers */
+        public int i_offset;            /* base i of the first faces base i - offset of the second, reversed */
+        public int i_start, i_length;   /* stretch, in the first primer */
+        public int i_mismatches;
+        public double d_enthalpy, d_entropy;  /* cal.mol-1, entropy with the salt correction */
+        public double d_dg = Double.POSITIVE_INFINITY;   /* cal.mol-1, at the temperature of the assay */
+        public double d_tm;
+        public String ps_top, ps_bottom; /* the stretch, as -S and -C would give it */
+    }
+
+    final MeltingParams pst_param;
+    final NnTable pst_table;
+    final double d_kelvin;                 /* temperature of the assay */
+    final List<Primer> primers = new ArrayList<Primer>();
+
+    public DimerScreen(MeltingParams pst_param, double d_assay) {
+        this.pst_param = pst_param;
+        this.pst_table = pst_param.pst_present_nn.nn_table();
+        this.d_kelvin = d_assay + 273.15;
+    }
+
+    /* one primer per line: a sequence, or a name and a sequence */
+    public void read(String ps_file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(ps_file))) {
+            String ps_line;
+            while ((ps_line = in.readLine()) != null) {
+                ps_line = ps_line.trim();
+                if (ps_line.length() == 0 || ps_line.startsWith("#")) continue;
+                String[] ps_fields = ps_line.split("\\s+");
+                String ps_sequence = ps_fields[ps_fields.length - 1].toUpperCase();
+                String ps_name = (ps_fields.length > 1) ? ps_fields[0] : "primer" + (primers.size() + 1);
+                add(ps_name, ps_sequence);
+            }
+        }
+    }
+
+    public void add(String ps_name, String ps_sequence) throws IOException {
+        if (ps_sequence.length() < 2 || ps_sequence.length() > MAX_LENGTH)
+            throw new IOException(ps_name + ": primers of 2 to " + MAX_LENGTH + " bases are screened");
+        for (int i = 0; i < ps_sequence.length(); i++)
+            if (NnTable.code(ps_sequence.charAt(i)) < 0)
+                throw new IOException(ps_name + ": " + ps_sequence.charAt(i) + " is not A, C, G or T");
+        primers.add(new Primer(ps_name, ps_sequence, pst_table));
+    }
+
+    /*+----------------------------------------------------------------+
+      | most stable dimer of the primers a and b (a == b: self-dimer)  |
+      +----------------------------------------------------------------+*/
+
+    Dimer screen(int a, int b) {
+        Primer pst_a = primers.get(a), pst_b = primers.get(b);
+        Dimer pst_best = new Dimer();
+        pst_best.i_first = a;
+        pst_best.i_second = b;
+        for (int i_offset = 1 - pst_b.i_length; i_offset < pst_a.i_length; i_offset++) {
+            long l_hi, l_lo;
+            if (i_offset >= 0) {
+                l_hi = pst_b.l_hi_reverse << i_offset;
+                l_lo = pst_b.l_lo_reverse << i_offset;
+            } else {
+                l_hi = pst_b.l_hi_reverse >>> -i_offset;
+                l_lo = pst_b.l_lo_reverse >>> -i_offset;
+            }
+            int i_from = Math.max(0, i_offset);
+            int i_to = Math.min(pst_a.i_length, pst_b.i_length + i_offset);
+            long l_match = (pst_a.l_hi ^ l_hi) & (pst_a.l_lo ^ l_lo) & mask(i_from, i_to);
+
+            int i_previous_start = -1, i_previous_end = -1;
+            while (l_match != 0) {
+                int i_start = Long.numberOfTrailingZeros(l_match);
+                long l_rest = ~(l_match >>> i_start);
+                int i_end = (l_rest == 0) ? 64 : i_start + Long.numberOfTrailingZeros(l_rest);
+                l_match &= ~mask(i_start, i_end);
+                if (i_end - i_start >= 2)
+                    run(pst_a, i_start, i_end, i_offset, pst_best);
+                if (i_previous_start >= 0 && i_start == i_previous_end + 1
+                        && i_end - i_start >= 2 && i_previous_end - i_previous_start >= 2)
+                    bridge(pst_a, pst_b, i_previous_start, i_end, i_offset, pst_best);
+                i_previous_start = i_start;
+                i_previous_end = i_end;
+            }
+        }
+        return pst_best;
+    }
+
+    static long mask(int i_from, int i_to) {
+        if (i_to <= i_from) return 0;
+        long l_high = (i_to >= 64) ? -1L : (1L << i_to) - 1;
+        return l_high & ~((1L << i_from) - 1);
+    }
+
+    /* perfectly paired stretch [i_start, i_end) of a */
+    void run(Primer pst_a, int i_start, int i_end, int i_offset, Dimer pst_best) {
+        int i_last = i_end - 1;
+        int i_first_code = NnTable.code(pst_a.ps_sequence.charAt(i_start));
+        int i_last_code = NnTable.code(pst_a.ps_sequence.charAt(i_last));
+        double d_h = pst_table.d_init_enthalpy[i_first_code] + pst_table.d_init_enthalpy[i_last_code]
+                + pst_a.d_cum_h[i_last] - pst_a.d_cum_h[i_start];
+        double d_s = pst_table.d_init_entropy[i_first_code] + pst_table.d_init_entropy[i_last_code]
+                + pst_a.d_cum_s[i_last] - pst_a.d_cum_s[i_start]
+                + Melting.salt_entropy(pst_param, i_end - i_start);
+        keep(pst_best, i_offset, i_start, i_end, 0, d_h, d_s, null);
+    }
+
+    /* stretch [i_start, i_end) of a with one mismatch, scored by get_results */
+    void bridge(Primer pst_a, Primer pst_b, int i_start, int i_end, int i_offset, Dimer pst_best) {
+        String ps_top = pst_a.ps_sequence.substring(i_start, i_end);
+        String ps_bottom = facing(pst_b, i_start, i_end, i_offset);
+        Thermodynamic pst_results;
+        try {
+            pst_results = Melting.get_results(pst_param, ps_top, ps_bottom, false, false);
+        } catch (RuntimeException e) {   /* no parameters for this mismatch: the runs stand alone */
+            return;
+        }
+        if (pst_results.i_approx) return;
+        keep(pst_best, i_offset, i_start, i_end, 1, pst_results.d_total_enthalpy, pst_results.d_total_entropy, ps_bottom);
+    }
+
+    /* bases of b facing [i_start, i_end) of a */
+    static String facing(Primer pst_b, int i_start, int i_end, int i_offset) {
+        StringBuilder s_bottom = new StringBuilder(i_end - i_start);
+        for (int i = i_start; i < i_end; i++)
+            s_bottom.append(pst_b.ps_sequence.charAt(pst_b.i_length - 1 - (i - i_offset)));
+        return s_bottom.toString();
+    }
+
+    void keep(Dimer pst_best, int i_offset, int i_start, int i_end, int i_mismatches,
+              double d_h, double d_s, String ps_bottom) {
+        double d_dg = d_h - d_kelvin * d_s;
+        if (d_dg >= pst_best.d_dg) return;
+        pst_best.i_offset = i_offset;
+        pst_best.i_start = i_start;
+        pst_best.i_length = i_end - i_start;
+        pst_best.i_mismatches = i_mismatches;
+        pst_best.d_enthalpy = d_h;
+        pst_best.d_entropy = d_s;
+        pst_best.d_dg = d_dg;
+        pst_best.d_tm = Melting.tm_exact(pst_param, d_h, d_s);
+        pst_best.ps_bottom = ps_bottom;   /* the perfect ones are written when printed */
+    }
+
+    /* most stable dimer of every pair of primers, self-dimers included, in the order of the list */
+    public Dimer[] screen_all() {
+        int i_count = primers.size();
+        Dimer[][] pst_rows = new Dimer[i_count][];
+        IntStream.range(0, i_count).parallel().forEach(a -> {
+            Dimer[] pst_row = new Dimer[i_count - a];
+            for (int b = a; b < i_count; b++) pst_row[b - a] = screen(a, b);
+            pst_rows[a] = pst_row;
+        });
+        return Arrays.stream(pst_rows).flatMap(Arrays::stream).toArray(Dimer[]::new);
+    }
+
+    /* for each primer, the most stable of its dimers with any primer of the list */
+    public Dimer[] worst_per_primer(Dimer[] pst_dimers) {
+        Dimer[] pst_worst = new Dimer[primers.size()];
+        for (Dimer pst_dimer : pst_dimers) {
+            for (int i_primer : new int[]{pst_dimer.i_first, pst_dimer.i_second}) {
+                if (pst_worst[i_primer] == null || pst_dimer.d_dg < pst_worst[i_primer].d_dg)
+                    pst_worst[i_primer] = pst_dimer;
+            }
+        }
+        return pst_worst;
+    }
+
+    /*+------------------------------------------------------------------+
+      | one line per pair (or per primer): names, free energy (J.mol-1)  |
+      | and Tm of the most stable dimer, its position in the first       |
+      | primer (from 1), its number of mismatches and the stretch as     |
+      | sequence/facing bases                                            |
+      +------------------------------------------------------------------+*/
+
+    public void print(boolean b_per_primer, PrintStream out) {
+        Dimer[] pst_dimers = screen_all();
+        if (b_per_primer) pst_dimers = worst_per_primer(pst_dimers);
+        out.printf("#%s\tpartner\tdG(%.1f)J.mol-1\tTm\tstart\tlength\tmismatches\tduplex\n",
+                b_per_primer ? "primer" : "first", d_kelvin - 273.15);
+        StringBuilder s_line = new StringBuilder();
+        for (int i = 0; i < pst_dimers.length; i++) {
+            Dimer pst_dimer = pst_dimers[i];
+            Primer pst_a = primers.get(pst_dimer.i_first), pst_b = primers.get(pst_dimer.i_second);
+            s_line.setLength(0);
+            if (b_per_primer) {
+                s_line.append(primers.get(i).ps_name).append('\t');
+                s_line.append((pst_dimer.i_first == i ? pst_b : pst_a).ps_name);
+            } else {
+                s_line.append(pst_a.ps_name).append('\t').append(pst_b.ps_name);
+            }
+            if (pst_dimer.i_length == 0) {   /* not even two consecutive pairs */
+                out.println(s_line.append("\t-\t-\t-\t-\t-\t-"));
+                continue;
+            }
+            s_line.append('\t');
+            WindowMap.append_fixed(s_line, pst_dimer.d_dg * 4.18, 0);
+            s_line.append('\t');
+            WindowMap.append_fixed2(s_line, pst_dimer.d_tm);
+            s_line.append('\t').append(pst_dimer.i_start + 1);
+            s_line.append('\t').append(pst_dimer.i_length);
+            s_line.append('\t').append(pst_dimer.i_mismatches);
+            int i_end = pst_dimer.i_start + pst_dimer.i_length;
+            String ps_bottom = (pst_dimer.ps_bottom != null) ? pst_dimer.ps_bottom
+                    : facing(pst_b, pst_dimer.i_start, i_end, pst_dimer.i_offset);
+            s_line.append('\t').append(pst_a.ps_sequence, pst_dimer.i_start, i_end).append('/').append(ps_bottom);
+            out.println(s_line);
+        }
+    }
+}
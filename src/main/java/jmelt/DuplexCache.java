@@ -0,0 +1,174 @@
+
+package jmelt;
+
+import java.util.Arrays;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: DuplexCache.java                                                     *
+ * Aim : results of the perfectly matched duplexes already computed in a     *
+ *       batch, so that a probe found several times is computed once.        *
+ *                                                                            *
+ *       A sequence is packed on 2 bits per base (A=0, C=1, G=2, T=3, the    *
+ *       first base in the high bits of the first word), which keeps the     *
+ *       lexicographic order in the unsigned order of the words. If the nn   *
+ *       set gives the same parameters to a dinucleotide and to its reverse  *
+ *       complement (it does for DNA/DNA, not for DNA/RNA), a duplex has the *
+ *       same enthalpy and entropy whichever strand is given: the key is     *
+ *       then the smallest of the sequence and of its reverse complement.    *
+ *                                                                            *
+ *       The keys are stored one after the other in an array of longs, and  *
+ *       found by open addressing (linear probing) in a table of indices.   *
+ *       Only what the results print is kept: enthalpy, entropy, tm.        *
+ ******************************************************************************/
+
+public class DuplexCache {
+
+    static final int DEFAULT_MAX = 1 << 22;   /* duplexes kept at most */
+    static final int ABSENT = -1;              /* not in the cache; the key is ready for add */
+    static final int UNCACHEABLE = -2;         /* something else than A, C, G, T */
+
+    final dataset pst_nn, pst_mm, pst_de;      /* sets the results were computed with */
+    final boolean b_symmetric;                 /* reverse complements share their entry */
+    final int i_max;
+
+    int[] i_slots;              /* index of an entry + 1, 0 if the slot is empty */
+    int i_mask;
+    long[] l_keys = new long[1024];   /* packed sequences of the entries, one after the other */
+    int i_keys_used;
+    int[] i_key_start = new int[256];
+    int[] i_key_length = new int[256]; /* in bases */
+    double[] d_enthalpy = new double[256];
+    double[] d_entropy = new double[256];
+    double[] d_tm = new double[256];
+    boolean[] b_approx = new boolean[256];
+    int i_size;
+
+    long[] l_forward = new long[4];   /* key of the last find */
+    long[] l_reverse = new long[4];
+    long[] l_key;
+    int i_length, i_words, i_slot;
+
+    public DuplexCache(MeltingParams pst_param, int i_max) {
+        this.pst_nn = pst_param.pst_present_nn;
+        this.pst_mm = pst_param.pst_present_mm;
+        this.pst_de = pst_param.pst_present_de;
+        this.b_symmetric = symmetric(pst_nn.nn_table());
+        this.i_max = i_max;
+        i_slots = new int[1024];
+        i_mask = i_slots.length - 1;
+    }
+
+    /* does every dinucleotide have the parameters of its reverse complement? */
+    static boolean symmetric(NnTable pst_table) {
+        for (int i_pair = 0; i_pair < 16; i_pair++) {
+            int i_reverse = (3 - (i_pair & 3)) << 2 | (3 - (i_pair >> 2));
+            if (pst_table.d_enthalpy[i_pair] != pst_table.d_enthalpy[i_reverse]
+                    || pst_table.d_entropy[i_pair] != pst_table.d_entropy[i_reverse])
+                return false;
+        }
+        for (int i_base = 0; i_base < 4; i_base++)
+            if (pst_table.d_init_enthalpy[i_base] != pst_table.d_init_enthalpy[3 - i_base]
+                    || pst_table.d_init_entropy[i_base] != pst_table.d_init_entropy[3 - i_base])
+                return false;
+        return true;
+    }
+
+    /* were the results computed with the sets of pst_param (see ParamWatcher)? */
+    public boolean valid_for(MeltingParams pst_param) {
+        return pst_param.pst_present_nn == pst_nn && pst_param.pst_present_mm == pst_mm
+                && pst_param.pst_present_de == pst_de;
+    }
+
+    /*+----------------------------------------------------------------+
+      | entry of the duplex formed by ps_sequence and its complement,  |
+      | ABSENT or UNCACHEABLE. After ABSENT, add() stores the results  |
+      | under the same key.                                            |
+      +----------------------------------------------------------------+*/
+
+    public int find(CharSequence ps_sequence) {
+        i_length = ps_sequence.length();
+        i_words = (i_length + 31) >>> 5;
+        if (l_forward.length < i_words) {
+            l_forward = new long[i_words];
+            l_reverse = new long[i_words];
+        }
+        Arrays.fill(l_forward, 0, i_words, 0);
+        Arrays.fill(l_reverse, 0, i_words, 0);
+        for (int i = 0; i < i_length; i++) {
+            int i_code = NnTable.code(ps_sequence.charAt(i));
+            if (i_code < 0) return UNCACHEABLE;
+            int i_shift = 62 - 2 * (i & 31);
+            l_forward[i >>> 5] |= (long) i_code << i_shift;
+            int j = i_length - 1 - i;             /* position in the reverse complement */
+            l_reverse[j >>> 5] |= (long) (3 - i_code) << (62 - 2 * (j & 31));
+        }
+        l_key = (b_symmetric && smaller(l_reverse, l_forward, i_words)) ? l_reverse : l_forward;
+
+        for (i_slot = hash(l_key, 0, i_length) & i_mask; i_slots[i_slot] != 0; i_slot = (i_slot + 1) & i_mask) {
+            int i_entry = i_slots[i_slot] - 1;
+            if (i_key_length[i_entry] == i_length && same(i_key_start[i_entry]))
+                return i_entry;
+        }
+        return ABSENT;
+    }
+
+    static int hash(long[] l_words, int i_start, int i_length) {
+        long l_hash = i_length * 0x9E3779B97F4A7C15L;
+        for (int k = 0; k < (i_length + 31) >>> 5; k++)
+            l_hash = (l_hash ^ l_words[i_start + k]) * 0xbf58476d1ce4e5b9L;
+        return (int) (l_hash ^ (l_hash >>> 31));
+    }
+
+    static boolean smaller(long[] l_a, long[] l_b, int i_words) {
+        for (int k = 0; k < i_words; k++)
+            if (l_a[k] != l_b[k]) return Long.compareUnsigned(l_a[k], l_b[k]) < 0;
+        return false;
+    }
+
+    private boolean same(int i_start) {
+        for (int k = 0; k < i_words; k++)
+            if (l_keys[i_start + k] != l_key[k]) return false;
+        return true;
+    }
+
+    /* store the results of the duplex of the last find, which returned ABSENT */
+    public void add(Thermodynamic pst_results) {
+        if (i_size >= i_max) return;   /* full: the next ones are computed each time */
+        if (i_size == i_key_start.length) {
+            int i_capacity = 2 * i_size;
+            i_key_start = Arrays.copyOf(i_key_start, i_capacity);
+            i_key_length = Arrays.copyOf(i_key_length, i_capacity);
+            d_enthalpy = Arrays.copyOf(d_enthalpy, i_capacity);
+            d_entropy = Arrays.copyOf(d_entropy, i_capacity);
+            d_tm = Arrays.copyOf(d_tm, i_capacity);
+            b_approx = Arrays.copyOf(b_approx, i_capacity);
+        }
+        if (i_keys_used + i_words > l_keys.length)
+            l_keys = Arrays.copyOf(l_keys, Math.max(2 * l_keys.length, i_keys_used + i_words));
+        System.arraycopy(l_key, 0, l_keys, i_keys_used, i_words);
+        i_key_start[i_size] = i_keys_used;
+        i_key_length[i_size] = i_length;
+        i_keys_used += i_words;
+        d_enthalpy[i_size] = pst_results.d_total_enthalpy;
+        d_entropy[i_size] = pst_results.d_total_entropy;
+        d_tm[i_size] = pst_results.d_tm;
+        b_approx[i_size] = pst_results.i_approx;
+        i_slots[i_slot] = ++i_size;
+        if (2 * i_size > i_slots.length) rehash();
+    }
+
+    /* table twice as large; the keys are not packed again */
+    private void rehash() {
+        i_slots = new int[2 * i_slots.length];
+        i_mask = i_slots.length - 1;
+        for (int i_entry = 0; i_entry < i_size; i_entry++) {
+            int i = hash(l_keys, i_key_start[i_entry], i_key_length[i_entry]) & i_mask;
+            while (i_slots[i] != 0) i = (i + 1) & i_mask;
+            i_slots[i] = i_entry + 1;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+
+package jmelt;
+
+import java.util.Arrays;
+
+import jmelt.Melting.MeltingParams;
+
+/******************************************************************************
+ * File: EditableDuplex.java                                                  *
+ * Aim : a sequence edited base by base (substitutions, insertions,          *
+ *       deletions), whose nearest-neighbor Tm, with its perfect complement, *
+ *       is known at any time for the whole sequence or for any region,      *
+ *       without summing it again after each edit.                           *
+ *                                                                            *
+ *       The bases are the nodes of an implicit treap: a binary tree in the  *
+ *       order of the sequence (the position of a node is the size of what   *
+ *       is on its left), balanced by random priorities. Each node holds,   *
+ *       for its subtree, the number of bases, the first and last bases and  *
+ *       the sums of the enthalpies and entropies of the dinucleotides. Two  *
+ *       subtrees put side by side add the dinucleotide at their junction.  *
+ *       An edit or a region is a split and a merge of the tree: O(log n).  *
+ *                                                                            *
+ *       The values are the ones of get_results for a perfectly matched      *
+ *       duplex: the dinucleotides, the initiation terms of the two ends,    *
+ *       the salt correction of the entropy (san98a) and tm_exact. The Tm   *
+ *       is the nearest-neighbor one whatever the length (-T is ignored).   *
+ ******************************************************************************/
+
+public class EditableDuplex {
+
+    static final int NIL = 0;                /* node 0: the empty tree */
+
+    final MeltingParams pst_param;
+    final NnTable pst_table;
+
+    int[] i_left = new int[64];
+    int[] i_right = new int[64];
+    int[] i_priority = new int[64];
+    int[] i_size = new int[64];            /* bases of the subtree */
+    byte[] i_base = new byte[64];          /* code of the base of the node */
+    byte[] i_first = new byte[64];         /* code of the first and last bases of the subtree */
+    byte[] i_last = new byte[64];
+    double[] d_enthalpy = new double[64];  /* dinucleotides of the subtree */
+    double[] d_entropy = new double[64];
+    int i_nodes = 1;                       /* nodes used, node 0 included */
+    int i_free = NIL;                      /* deleted nodes, chained by i_left */
+    int i_root = NIL;
+    int i_seed = 0x2545F491;               /* generator of the priorities (xorshift) */
+
+    public EditableDuplex(MeltingParams pst_param, CharSequence ps_sequence) {
+        this.pst_param = pst_param;
+        this.pst_table = pst_param.pst_present_nn.nn_table();
+        insert(0, ps_sequence);
+    }
+
+    public int length() {
+        return i_size[i_root];
+    }
+
+    public char base(int i) {
+        check(i, i + 1);
+        int t = i_root;
+        while (true) {
+            int i_left_size = i_size[i_left[t]];
+            if (i < i_left_size) {
+                t = i_left[t];
+            } else if (i == i_left_size) {
+                return NnTable.BASES.charAt(i_base[t]);
+            } else {
+                i -= i_left_size + 1;
+                t = i_right[t];
+            }
+        }
+    }
+
+    public String toString() {
+        StringBuilder s_sequence = new StringBuilder(length());
+        append(i_root, s_sequence);
+        return s_sequence.toString();
+    }
+
+    private void append(int t, StringBuilder s_sequence) {
+        if (t == NIL) return;
+        append(i_left[t], s_sequence);
+        s_sequence.append(NnTable.BASES.charAt(i_base[t]));
+        append(i_right[t], s_sequence);
+    }
+
+    /*+------------------------------------------------------------------+
+      | edits                                                            |
+      +------------------------------------------------------------------+*/
+
+    /* the base at i becomes c */
+    public void set(int i, char c) {
+        check(i, i + 1);
+        byte i_code = code(c);
+        int[] i_parts = new int[2];
+        split(i_root, i, i_parts);
+        int t_left = i_parts[0];
+        split(i_parts[1], 1, i_parts);
+        int t = i_parts[0];
+        i_base[t] = i_code;
+        update(t);
+        i_root = merge(merge(t_left, t), i_parts[1]);
+    }
+
+    /* ps_bases inserted before the base at i (at the end if i is the length) */
+    public void insert(int i, CharSequence ps_bases) {
+        check(i, i);
+        byte[] i_codes = new byte[ps_bases.length()];   /* all checked before the tree is changed */
+        for (int k = 0; k < i_codes.length; k++) i_codes[k] = code(ps_bases.charAt(k));
+        int t_middle = NIL;
+        for (byte i_code : i_codes) t_middle = merge(t_middle, node(i_code));
+        int[] i_parts = new int[2];
+        split(i_root, i, i_parts);
+        i_root = merge(merge(i_parts[0], t_middle), i_parts[1]);
+    }
+
+    /* i_count bases removed from i */
+    public void delete(int i, int i_count) {
+        check(i, i + i_count);
+        int[] i_parts = new int[2];
+        split(i_root, i, i_parts);
+        int t_left = i_parts[0];
+        split(i_parts[1], i_count, i_parts);
+        release(i_parts[0]);
+        i_root = merge(t_left, i_parts[1]);
+    }
+
+    /*+------------------------------------------------------------------+
+      | thermodynamics of the duplex formed by the region [from, to)     |
+      | and its complement: { enthalpy, entropy with the salt            |
+      | correction }, in cal.mol-1 and cal.K-1.mol-1, as get_results     |
+      +------------------------------------------------------------------+*/
+
+    public double[] thermodynamics(int i_from, int i_to) {
+        check(i_from, i_to);
+        if (i_to - i_from < 2) throw new IllegalArgumentException("a duplex has at least two base pairs");
+        int[] i_parts = new int[2];
+        split(i_root, i_from, i_parts);
+        int t_left = i_parts[0];
+        split(i_parts[1], i_to - i_from, i_parts);
+        int t = i_parts[0];
+        double[] d_result = {
+                d_enthalpy[t] + pst_table.d_init_enthalpy[i_first[t]] + pst_table.d_init_enthalpy[i_last[t]],
+                d_entropy[t] + pst_table.d_init_entropy[i_first[t]] + pst_table.d_init_entropy[i_last[t]]
+                        + Melting.salt_entropy(pst_param, i_to - i_from)};
+        i_root = merge(merge(t_left, t), i_parts[1]);
+        return d_result;
+    }
+
+    public double tm(int i_from, int i_to) {
+        double[] d_result = thermodynamics(i_from, i_to);
+        return Melting.tm_exact(pst_param, d_result[0], d_result[1]);
+    }
+
+    public double tm() {
+        return tm(0, length());
+    }
+
+    /*+------------------------------------------------------------------+
+      | the treap                                                        |
+      +------------------------------------------------------------------+*/
+
+    /* the first i_count bases of t in i_parts[0], the others in i_parts[1] */
+    private void split(int t, int i_count, int[] i_parts) {
+        if (t == NIL) {
+            i_parts[0] = i_parts[1] = NIL;
+            return;
+        }
+        if (i_size[i_left[t]] >= i_count) {
+            split(i_left[t], i_count, i_parts);
+            i_left[t] = i_parts[1];
+            update(t);
+            i_parts[1] = t;
+        } else {
+            split(i_right[t], i_count - i_size[i_left[t]] - 1, i_parts);
+            i_right[t] = i_parts[0];
+            update(t);
+            i_parts[0] = t;
+        }
+    }
+
+    /* the bases of a followed by the ones of b */
+    private int merge(int a, int b) {
+        if (a == NIL) return b;
+        if (b == NIL) return a;
+        if (i_priority[a] > i_priority[b]) {
+            i_right[a] = merge(i_right[a], b);
+            update(a);
+            return a;
+        }
+        i_left[b] = merge(a, i_left[b]);
+        update(b);
+        return b;
+    }
+
+    /* sums of t from the ones of its children */
+    private void update(int t) {
+        int l = i_left[t], r = i_right[t];
+        int i_code = i_base[t];
+        double d_h = 0, d_s = 0;
+        byte i_start = (byte) i_code, i_end = (byte) i_code;
+        if (l != NIL) {
+            int i_pair = i_last[l] << 2 | i_code;
+            d_h += d_enthalpy[l] + pst_table.d_enthalpy[i_pair];
+            d_s += d_entropy[l] + pst_table.d_entropy[i_pair];
+            i_start = i_first[l];
+        }
+        if (r != NIL) {
+            int i_pair = i_code << 2 | i_first[r];
+            d_h += d_enthalpy[r] + pst_table.d_enthalpy[i_pair];
+            d_s += d_entropy[r] + pst_table.d_entropy[i_pair];
+            i_end = i_last[r];
+        }
+        i_size[t] = i_size[l] + 1 + i_size[r];
+        i_first[t] = i_start;
+        i_last[t] = i_end;
+        d_enthalpy[t] = d_h;
+        d_entropy[t] = d_s;
+    }
+
+    private int node(byte i_code) {
+        int t;
+        if (i_free != NIL) {
+            t = i_free;
+            i_free = i_left[t];
+        } else {
+            if (i_nodes == i_left.length) grow();
+            t = i_nodes++;
+        }
+        i_seed ^= i_seed << 13;
+        i_seed ^= i_seed >>> 17;
+        i_seed ^= i_seed << 5;
+        i_priority[t] = i_seed;
+        i_left[t] = i_right[t] = NIL;
+        i_base[t] = i_code;
+        update(t);
+        return t;
+    }
+
+    /* the nodes of t back to the free list */
+    private void release(int t) {
+        if (t == NIL) return;
+        release(i_left[t]);
+        release(i_right[t]);
+        i_left[t] = i_free;
+        i_free = t;
+    }
+
+    private void grow() {
+        int i_capacity = 2 * i_left.length;
+        i_left = Arrays.copyOf(i_left, i_capacity);
+        i_right = Arrays.copyOf(i_right, i_capacity);
+        i_priority = Arrays.copyOf(i_priority, i_capacity);
+        i_size = Arrays.copyOf(i_size, i_capacity);
+        i_base = Arrays.copyOf(i_base, i_capacity);
+        i_first = Arrays.copyOf(i_first, i_capacity);
+        i_last = Arrays.copyOf(i_last, i_capacity);
+        d_enthalpy = Arrays.copyOf(d_enthalpy, i_capacity);
+        d_entropy = Arrays.copyOf(d_entropy, i_capacity);
+    }
+
+    private static byte code(char c) {
+        int i_code = NnTable.code(Character.toUpperCase(c));
+        if (i_code < 0) throw new IllegalArgumentException(c + " is not A, C, G or T");
+        return (byte) i_code;
+    }
+
+    private void check(int i_from, int i_to) {
+        if (i_from < 0 || i_to < i_from || i_to > length())
+            throw new IndexOutOfBoundsException("[" + i_from + ", " + i_to + ") out of a sequence of " + length());
+    }
+}
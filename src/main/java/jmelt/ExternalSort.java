@@ -0,0 +1,254 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: ExternalSort.java                                                    *
+ * Aim : the results of a batch of --input sorted by Tm (--sort), whatever   *
+ *       its size: an external merge sort, in a bounded memory.              *
+ *                                                                            *
+ *       The duplexes are computed by a BatchPipeline. Each thread fills a  *
+ *       buffer of its own; when it is full, it is sorted and written as a  *
+ *       run, a temporary file of records of RECORD bytes (Tm, enthalpy,     *
+ *       entropy, approximative mode, number of the duplex). Meanwhile the  *
+ *       batch loop writes the index: the offset in the input of the line of *
+ *       each duplex, by number.                                              *
+ *       At the end, the runs are merged with a heap of their first records, *
+ *       at most i_fan_in runs at a time (in several passes if there are     *
+ *       more), and the sequence of each duplex is read back in the input    *
+ *       through the index, both mapped in memory.                            *
+ *       Equal Tm are ordered by the number of the duplex, so that the       *
+ *       output does not depend on the number of threads.                    *
+ *       The memory given (--sort=MB) is shared by the buffers of the threads *
+ *       while computing, then by the buffers of the runs being merged.      *
+ ******************************************************************************/
+
+public class ExternalSort {
+
+    static final long DEFAULT_MEMORY = 256;        /* MB */
+    static final int ENTRY_MEMORY = 64;            /* bytes of an entry in a buffer, its reference included */
+    static final int MIN_BUFFER = BatchPipeline.CHUNK;  /* entries of the buffer of a thread, at least */
+    static final int RECORD = 8 + 8 + 8 + 1 + 8;   /* bytes of an entry in a run */
+    static final int RUN_BUFFER = 1 << 16;         /* read or written at once in a run */
+    static final int MAX_FAN_IN = 512;             /* runs opened at once */
+
+    /* a duplex, sorted by Tm */
+    public static class Entry {
+        public final double d_tm;
+        public final double d_enthalpy;
+        public final double d_entropy;
+        public final boolean b_approx;
+        public final long l_record;
+
+        Entry(double d_tm, double d_enthalpy, double d_entropy, boolean b_approx, long l_record) {
+            this.d_tm = d_tm;
+            this.d_enthalpy = d_enthalpy;
+            this.d_entropy = d_entropy;
+            this.b_approx = b_approx;
+            this.l_record = l_record;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeDouble(d_tm);
+            out.writeDouble(d_enthalpy);
+            out.writeDouble(d_entropy);
+            out.writeBoolean(b_approx);
+            out.writeLong(l_record);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readDouble(), in.readDouble(), in.readDouble(), in.readBoolean(), in.readLong());
+        }
+    }
+
+    /* the Tm increasing (without Tm at the end), then the number of the duplex */
+    static final Comparator<Entry> ORDER = (a, b) -> a.d_tm != b.d_tm
+            ? Double.compare(a.d_tm, b.d_tm) : Long.compare(a.l_record, b.l_record);
+
+    /* what is done with the sorted duplexes */
+    public interface Sink {
+        void write(Entry entry, String ps_sequence) throws IOException;
+    }
+
+    private interface Writer {
+        void write(Entry entry) throws IOException;
+    }
+
+    final FileChannel input_channel;
+    final Checkpoint.LineReader reader;
+    final Path directory;                          /* of the runs and of the index, removed at the end */
+    final Path index_file;
+    final DataOutputStream index;
+    final int i_buffer;                            /* entries of the buffer of a thread */
+    final int i_fan_in;
+    final List<Path> runs = Collections.synchronizedList(new ArrayList<Path>());
+    BatchPipeline<Spill> pipeline;
+
+    public ExternalSort(String ps_input, long l_memory) throws IOException {
+        input_channel = FileChannel.open(Paths.get(ps_input));
+        reader = new Checkpoint.LineReader(input_channel, 0);
+        directory = Files.createTempDirectory("melting-sort");
+        index_file = directory.resolve("index");
+        index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index_file), RUN_BUFFER));
+        int i_threads = ForkJoinPool.commonPool().getParallelism();
+        i_buffer = (int) Math.max(MIN_BUFFER, Math.min(Integer.MAX_VALUE - 8, l_memory / ENTRY_MEMORY / i_threads));
+        i_fan_in = (int) Math.max(2, Math.min(MAX_FAN_IN, l_memory / RUN_BUFFER));
+    }
+
+    /* the lines of the batch, whose offsets go in the index */
+    public BufferedReader input() {
+        return reader;
+    }
+
+    /* the duplex of the line just read */
+    public void add(MeltingParams pst_param) throws IOException {
+        if (pipeline == null) pipeline = new BatchPipeline<Spill>(pst_param, Spill::new);
+        index.writeLong(reader.line_offset());
+        try {
+            pipeline.add(pst_param.ps_sequence, pst_param.ps_complement);
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+    }
+
+    static IOException failure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UncheckedIOException) return ((UncheckedIOException) cause).getCause();
+        return new IOException(String.valueOf(cause), cause);
+    }
+
+    /*+------------------------------------------------------------------+
+      | the buffer of a thread, written as a run when it is full         |
+      +------------------------------------------------------------------+*/
+
+    class Spill implements BatchPipeline.Accumulator<Spill> {
+
+        List<Entry> entries = new ArrayList<Entry>();
+
+        public void add(long l_record, String ps_sequence, String ps_complement, Thermodynamic pst_results) {
+            entries.add(new Entry(pst_results.d_tm, pst_results.d_total_enthalpy, pst_results.d_total_entropy,
+                    pst_results.i_approx, l_record));
+            if (entries.size() == i_buffer) spill();
+        }
+
+        /* the last runs, written once every chunk is computed */
+        public void merge(Spill other) {
+            other.spill();
+        }
+
+        void spill() {
+            if (entries.isEmpty()) return;
+            entries.sort(ORDER);
+            try {
+                Path run = Files.createTempFile(directory, "run", null);
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER))) {
+                    for (Entry entry : entries) entry.write(out);
+                }
+                runs.add(run);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            entries = new ArrayList<Entry>();     /* the memory of the full buffer is given back */
+        }
+    }
+
+    /*+------------------------------------------------------------------+
+      | the duplexes in the order of their Tm, then the temporary files  |
+      | removed                                                          |
+      +------------------------------------------------------------------+*/
+
+    public void finish(Sink sink) throws IOException {
+        try {
+            if (pipeline != null) pipeline.finish();
+            index.close();
+            ArrayDeque<Path> pending = new ArrayDeque<Path>(runs);
+            while (pending.size() > i_fan_in) {     /* a pass: the first runs merged into one */
+                List<Path> group = new ArrayList<Path>();
+                while (group.size() < i_fan_in) group.add(pending.removeFirst());
+                Path run = Files.createTempFile(directory, "run", null);
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER))) {
+                    merge(group, entry -> entry.write(out));
+                }
+                for (Path merged : group) Files.delete(merged);
+                pending.addLast(run);
+            }
+            try (FileChannel index_channel = FileChannel.open(index_file)) {
+                MappedFile lines = new MappedFile(input_channel), offsets = new MappedFile(index_channel);
+                merge(new ArrayList<Path>(pending),
+                        entry -> sink.write(entry, lines.line(offsets.get_long(8 * (entry.l_record - 1)))));
+            }
+        } catch (ExecutionException e) {
+            throw failure(e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            close();
+        }
+    }
+
+    /* the runs merged: the smallest of their first entries, again and again */
+    private static void merge(List<Path> group, Writer writer) throws IOException {
+        PriorityQueue<Run> heap = new PriorityQueue<Run>(Math.max(1, group.size()), (a, b) -> ORDER.compare(a.entry, b.entry));
+        try {
+            for (Path path : group) {
+                Run run = new Run(path);
+                if (run.next()) heap.add(run);
+                else run.in.close();
+            }
+            while (!heap.isEmpty()) {
+                Run run = heap.poll();
+                writer.write(run.entry);
+                if (run.next()) heap.add(run);
+                else run.in.close();
+            }
+        } finally {
+            for (Run run : heap) run.in.close();
+        }
+    }
+
+    /* a run being merged, with its next entry */
+    static class Run {
+        final DataInputStream in;
+        long l_left;                               /* entries not read yet */
+        Entry entry;
+
+        Run(Path path) throws IOException {
+            l_left = Files.size(path) / RECORD;
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), RUN_BUFFER));
+        }
+
+        boolean next() throws IOException {
+            if (l_left == 0) return false;
+            l_left--;
+            entry = Entry.read(in);
+            return true;
+        }
+    }
+
+    /* the input closed and the temporary files removed */
+    void close() {
+        try {
+            input_channel.close();
+            index.close();
+        } catch (IOException e) {
+            /* nothing more to read nor to write */
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            /* left in the temporary directory */
+        }
+    }
+}
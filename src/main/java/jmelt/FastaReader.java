@@ -0,0 +1,55 @@
+
+package jmelt;
+
+import java.io.*;
+
+/******************************************************************************
+ * File: FastaReader.java                                                     *
+ * Aim : the sequences of a batch file given as FASTA: when the first line   *
+ *       is a '>' header, readLine gives the sequence of each record, its    *
+ *       lines put end to end, and the headers are skipped. Otherwise the    *
+ *       lines are given as they are, one sequence each.                      *
+ *       Only the plain batch reads FASTA: the workers, the checkpoints and  *
+ *       the sort split the file by lines, and refuse it (is_fasta).         *
+ ******************************************************************************/
+
+public class FastaReader extends BufferedReader {
+
+    final BufferedReader in;
+    String ps_next;                /* line read ahead: the header of the next record */
+    Boolean b_fasta;               /* null until the first line is read */
+    final StringBuilder s_sequence = new StringBuilder();
+
+    public FastaReader(BufferedReader in) {
+        super(Reader.nullReader(), 1);
+        this.in = in;
+    }
+
+    public String readLine() throws IOException {
+        String ps_line = (ps_next != null) ? ps_next : in.readLine();
+        ps_next = null;
+        if (ps_line == null) return null;
+        if (b_fasta == null) b_fasta = ps_line.startsWith(">");
+        if (!b_fasta) return ps_line;
+
+        while (true) {              /* a record: its header, then its lines up to the next header */
+            s_sequence.setLength(0);
+            while ((ps_next = in.readLine()) != null && !ps_next.startsWith(">"))
+                s_sequence.append(ps_next.trim());
+            if (s_sequence.length() > 0) return s_sequence.toString();
+            if (ps_next == null) return null;   /* records without sequence are skipped */
+        }
+    }
+
+    /* whether the first line of the file, compressed or not, is a '>' header */
+    public static boolean is_fasta(String ps_file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(BgzfInput.open(ps_file)))) {
+            String ps_line = in.readLine();
+            return ps_line != null && ps_line.startsWith(">");
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,277 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/******************************************************************************
+ * File: GcBitmap.java                                                        *
+ * Aim : counting of G+C for the approximative computation. The bases are    *
+ *       turned into a 1-bit-per-base bitmap (1 for G or C) and counted 64 at *
+ *       a time with Long.bitCount. Sequences can be streamed from a channel  *
+ *       (FASTA headers are skipped), so that the memory used does not depend *
+ *       on the length of the input. Large files are split in chunks which   *
+ *       are counted in parallel and reduced.                                 *
+ ******************************************************************************/
+
+public class GcBitmap {
+
+    static final int BUFFER_SIZE = 1 << 16;           /* size of the buffer used to stream a channel */
+    static final long CHUNK_SIZE = 16L << 20;         /* bytes of a file counted by one parallel task */
+    static final long PARALLEL_SIZE = 4 * CHUNK_SIZE; /* files smaller than that are read sequentially */
+
+    static final byte[] IS_BASE = new byte[256];      /* 1 if the byte is part of a sequence */
+    static final byte[] IS_GC = new byte[256];        /* 1 if the byte is a G or a C */
+
+    static {
+        for (int c = 'A'; c <= 'Z'; c++) {
+            IS_BASE[c] = 1;
+            IS_BASE[Character.toLowerCase(c)] = 1;
+        }
+        IS_BASE['-'] = 1;
+        IS_GC['G'] = IS_GC['g'] = 1;
+        IS_GC['C'] = IS_GC['c'] = 1;
+    }
+
+    /* states of the reader at the end of a piece of a FASTA file */
+    static final int LINE_START = 0;   /* just after a newline (or at the beginning) */
+    static final int IN_SEQ = 1;       /* inside a line of sequence */
+    static final int IN_HEADER = 2;    /* inside a '>' header line */
+
+    /* number of bases and of G+C in a sequence */
+    public static class Count {
+        public long l_bases;
+        public long l_gc;
+
+        public double percent_gc() {
+            return ((double) l_gc / (double) l_bases) * 100;
+        }
+    }
+
+    /*******************************************
+     * 1-bit-per-base G+C bitmap of a sequence *
+     *******************************************/
+
+    /* bitmap of the i_length bases of an array of bytes, starting at i_from */
+    static long[] pack(byte[] b_sequence, int i_from, int i_length) {
+        long[] l_bitmap = new long[(i_length + 63) >>> 6];
+        for (int i = 0; i < i_length; i++)
+            l_bitmap[i >>> 6] |= (long) IS_GC[b_sequence[i_from + i] & 0xff] << i;
+        return l_bitmap;
+    }
+
+    /* number of G+C between positions i_from (included) and i_to (excluded) of a bitmap */
+    static int count(long[] l_bitmap, int i_from, int i_to) {
+        if (i_from >= i_to) return 0;
+        int i_first = i_from >>> 6;
+        int i_last = (i_to - 1) >>> 6;
+        long l_head = -1L << i_from;          /* shifts are taken modulo 64 */
+        long l_tail = -1L >>> (63 - ((i_to - 1) & 63));
+        if (i_first == i_last)
+            return Long.bitCount(l_bitmap[i_first] & l_head & l_tail);
+        int i_count = Long.bitCount(l_bitmap[i_first] & l_head);
+        for (int i = i_first + 1; i < i_last; i++)
+            i_count += Long.bitCount(l_bitmap[i]);
+        return i_count + Long.bitCount(l_bitmap[i_last] & l_tail);
+    }
+
+    /* number of G+C in a sequence, 64 bases at a time */
+    static int count_gc(CharSequence ps_sequence) {
+        int i_length = ps_sequence.length();
+        int i_count = 0;
+        int i = 0;
+        for (; i + 64 <= i_length; i += 64) {
+            long l_word = 0;
+            for (int j = 0; j < 64; j++) {
+                char c = ps_sequence.charAt(i + j);
+                l_word |= (long) (c < 256 ? IS_GC[c] : 0) << j;
+            }
+            i_count += Long.bitCount(l_word);
+        }
+        long l_word = 0;
+        for (int j = 0; i + j < i_length; j++) {
+            char c = ps_sequence.charAt(i + j);
+            l_word |= (long) (c < 256 ? IS_GC[c] : 0) << j;
+        }
+        return i_count + Long.bitCount(l_word);
+    }
+
+    /*****************************************************
+     * Count bases and G+C of a sequence (or FASTA file) *
+     * streamed from a channel, with constant memory     *
+     *****************************************************/
+
+    public static Count count(ReadableByteChannel ch) throws IOException {
+        if (ch instanceof FileChannel && ((FileChannel) ch).size() >= PARALLEL_SIZE) {
+            FileChannel fc = (FileChannel) ch;
+            return ForkJoinPool.commonPool().invoke(new ChunkTask(fc, fc.position(), fc.size())).total();
+        }
+        Count pst_count = new Count();
+        Scanner scanner = new Scanner(pst_count);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int i_state = LINE_START;
+        while (ch.read(buffer) >= 0) {
+            buffer.flip();
+            i_state = scanner.scan(buffer, i_state);
+            buffer.clear();
+        }
+        return pst_count;
+    }
+
+    public static Count count(File file) throws IOException {
+        try (FileChannel fc = new FileInputStream(file).getChannel()) {
+            return count(fc);
+        }
+    }
+
+    /* accumulates the bitmap words of a stream of bytes into a Count */
+    static class Scanner {
+        final Count pst_count;
+
+        Scanner(Count pst_count) {
+            this.pst_count = pst_count;
+        }
+
+        /* scan the remaining bytes of the buffer, starting in state i_state; returns the final state */
+        int scan(ByteBuffer buffer, int i_state) {
+            long l_word = 0;
+            int i_bit = 0;
+            long l_bases = 0;
+            long l_gc = 0;
+            while (buffer.hasRemaining()) {
+                int c = buffer.get() & 0xff;
+                if (c == '\n') {
+                    i_state = LINE_START;
+                    continue;
+                }
+                if (i_state == IN_HEADER) continue;
+                if (i_state == LINE_START && c == '>') {
+                    i_state = IN_HEADER;
+                    continue;
+                }
+                i_state = IN_SEQ;
+                if (IS_BASE[c] == 0) continue;
+                l_word |= (long) IS_GC[c] << i_bit;
+                if (++i_bit == 64) {
+                    l_gc += Long.bitCount(l_word);
+                    l_bases += 64;
+                    l_word = 0;
+                    i_bit = 0;
+                }
+            }
+            pst_count.l_gc += l_gc + Long.bitCount(l_word);
+            pst_count.l_bases += l_bases + i_bit;
+            return i_state;
+        }
+    }
+
+    /*+--------------------------------------------------------------------+
+      | A chunk of a file does not know whether it starts inside a header. |
+      | It is therefore counted for each of the three possible entry      |
+      | states, which makes the reduction of two chunks associative.       |
+      +--------------------------------------------------------------------+*/
+
+    static class Piece {
+        final long[] l_bases = new long[3];
+        final long[] l_gc = new long[3];
+        final int[] i_exit = new int[3];
+
+        /* piece of a chunk read in one go from a memory-mapped buffer */
+        static Piece of(ByteBuffer buffer) {
+            Piece pst_piece = new Piece();
+            int i_size = buffer.remaining();
+            int i_newline = -1;
+            for (int i = buffer.position(); i < buffer.limit(); i++)
+                if (buffer.get(i) == '\n') {
+                    i_newline = i;
+                    break;
+                }
+            boolean i_header = i_size > 0 && buffer.get(buffer.position()) == '>';
+
+            Count pst_prefix = new Count();    /* bases before the first newline */
+            ByteBuffer prefix = buffer.duplicate();
+            if (i_newline >= 0) prefix.limit(i_newline);
+            new Scanner(pst_prefix).scan(prefix, IN_SEQ);
+
+            Count pst_rest = new Count();      /* bases after the first newline */
+            int i_rest_exit = LINE_START;
+            if (i_newline >= 0) {
+                ByteBuffer rest = buffer.duplicate();
+                rest.position(i_newline + 1);
+                i_rest_exit = new Scanner(pst_rest).scan(rest, LINE_START);
+            }
+
+            for (int i_state = 0; i_state < 3; i_state++) {
+                boolean i_skip = i_state == IN_HEADER || (i_state == LINE_START && i_header);
+                if (!i_skip) {
+                    pst_piece.l_bases[i_state] = pst_prefix.l_bases;
+                    pst_piece.l_gc[i_state] = pst_prefix.l_gc;
+                }
+                if (i_newline >= 0) {
+                    pst_piece.l_bases[i_state] += pst_rest.l_bases;
+                    pst_piece.l_gc[i_state] += pst_rest.l_gc;
+                    pst_piece.i_exit[i_state] = i_rest_exit;
+                } else if (i_size == 0) {
+                    pst_piece.i_exit[i_state] = i_state;
+                } else {
+                    pst_piece.i_exit[i_state] = i_skip ? IN_HEADER : IN_SEQ;
+                }
+            }
+            return pst_piece;
+        }
+
+        /* this piece followed by pst_next */
+        Piece then(Piece pst_next) {
+            Piece pst_both = new Piece();
+            for (int i_state = 0; i_state < 3; i_state++) {
+                int i_middle = i_exit[i_state];
+                pst_both.l_bases[i_state] = l_bases[i_state] + pst_next.l_bases[i_middle];
+                pst_both.l_gc[i_state] = l_gc[i_state] + pst_next.l_gc[i_middle];
+                pst_both.i_exit[i_state] = pst_next.i_exit[i_middle];
+            }
+            return pst_both;
+        }
+
+        /* the count of a whole file, which starts at the beginning of a line */
+        Count total() {
+            Count pst_count = new Count();
+            pst_count.l_bases = l_bases[LINE_START];
+            pst_count.l_gc = l_gc[LINE_START];
+            return pst_count;
+        }
+    }
+
+    /* counts the bytes [l_from, l_to) of a file, splitting it until the chunks are small enough */
+    static class ChunkTask extends RecursiveTask<Piece> {
+        private static final long serialVersionUID = 1L;
+
+        final FileChannel fc;
+        final long l_from;
+        final long l_to;
+
+        ChunkTask(FileChannel fc, long l_from, long l_to) {
+            this.fc = fc;
+            this.l_from = l_from;
+            this.l_to = l_to;
+        }
+
+        protected Piece compute() {
+            if (l_to - l_from <= CHUNK_SIZE) {
+                try {
+                    return Piece.of(fc.map(FileChannel.MapMode.READ_ONLY, l_from, l_to - l_from));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long l_middle = l_from + ((l_to - l_from) / 2 / CHUNK_SIZE) * CHUNK_SIZE;
+            if (l_middle == l_from) l_middle = l_from + CHUNK_SIZE;
+            ChunkTask left = new ChunkTask(fc, l_from, l_middle);
+            ChunkTask right = new ChunkTask(fc, l_middle, l_to);
+            right.fork();
+            Piece pst_left = left.compute();
+            return pst_left.then(right.join());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+
+package jmelt;
+
+import java.io.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: JsonLines.java                                                       *
+ * Aim : output of the results as JSON lines (--json), one object per line.  *
+ *       The first is the header of the run, "record": "header": conditions  *
+ *       and, for each set, its file, references and entries. It is written *
+ *       again only if the sets change (--watch). Then one "result" per      *
+ *       duplex (MeltingResult).                                              *
+ *                                                                            *
+ *       The objects are encoded straight into a byte array, written to the *
+ *       stream when full: no String nor formatter per value. The numbers    *
+ *       are written in fixed point; the strings are escaped, the non-ASCII *
+ *       characters as \\u sequences, so that the output is plain ASCII.     *
+ *       Energies are in J.mol-1 and J.mol-1.K-1, as in the text output.    *
+ ******************************************************************************/
+
+public class JsonLines {
+
+    static final int BUFFER_SIZE = 1 << 16;
+    static final byte[] DIGITS = "0123456789abcdef".getBytes();
+
+    final OutputStream out;
+    final byte[] b_buffer = new byte[BUFFER_SIZE];
+    int i_used;
+    dataset pst_nn, pst_mm, pst_de;      /* sets of the last header */
+
+    public JsonLines(OutputStream out) {
+        this.out = out;
+    }
+
+    /* a result, after the header if the sets are not the ones of the last header */
+    public void write(MeltingParams pst_param, MeltingResult pst_result) throws IOException {
+        if (pst_param.pst_present_nn != pst_nn || pst_param.pst_present_mm != pst_mm
+                || pst_param.pst_present_de != pst_de)
+            header(pst_param);
+        raw("{\"record\":\"result\",\"id\":");
+        string(pst_result.ps_id);
+        raw(",\"sequence\":");
+        string(pst_result.ps_sequence);
+        raw(",\"complement\":");
+        string(pst_result.ps_complement);
+        raw(",\"method\":");
+        raw(pst_result.b_approx ? "\"approximative\"" : "\"nearest-neighbor\"");
+        raw(",\"tm\":");
+        number(pst_result.d_tm, 4);
+        if (!pst_result.b_approx) {
+            raw(",\"enthalpy\":");
+            number(pst_result.d_enthalpy * 4.18, 1);
+            raw(",\"entropy\":");
+            number(pst_result.d_entropy * 4.18, 4);
+            raw(",\"pairs\":{");
+            for (int k = 0; k < pst_result.ps_pairs.length; k++) {
+                if (k > 0) put(',');
+                string(pst_result.ps_pairs[k]);
+                put(':');
+                integer(pst_result.i_counts[k]);
+            }
+            put('}');
+        }
+        if (!pst_result.warnings.isEmpty()) {
+            raw(",\"warnings\":[");
+            for (int k = 0; k < pst_result.warnings.size(); k++) {
+                if (k > 0) put(',');
+                string(pst_result.warnings.get(k));
+            }
+            put(']');
+        }
+        raw("}\n");
+    }
+
+    /* the output goes on after the header of these sets (--resume) */
+    public void header_written(MeltingParams pst_param) {
+        pst_nn = pst_param.pst_present_nn;
+        pst_mm = pst_param.pst_present_mm;
+        pst_de = pst_param.pst_present_de;
+    }
+
+    /* conditions of the run and the sets, with their references and entries */
+    void header(MeltingParams pst_param) throws IOException {
+        pst_nn = pst_param.pst_present_nn;
+        pst_mm = pst_param.pst_present_mm;
+        pst_de = pst_param.pst_present_de;
+        raw("{\"record\":\"header\",\"program\":\"MELTING\",\"version\":");
+        string(Melting.VERSION);
+        raw(",\"hybridisation\":");
+        raw(Melting.i_dnarna ? "\"dnarna\"" : Melting.i_rnarna ? "\"rnarna\"" : "\"dnadna\"");
+        raw(",\"salt\":");
+        raw(Double.toString(pst_param.d_conc_salt));
+        raw(",\"probe\":");
+        raw(Double.toString(pst_param.d_conc_probe));
+        raw(",\"salt_correction\":");
+        string(pst_param.s_sodium_correction);
+        raw(",\"nucleic_acid_correction\":");
+        raw(Double.toString(pst_param.d_gnat));
+        raw(",\"threshold\":");
+        integer(Melting.i_threshold);
+        raw(",\"units\":{\"tm\":\"degC\",\"enthalpy\":\"J.mol-1\",\"entropy\":\"J.mol-1.K-1\"},\"sets\":[");
+        set("nearest-neighbor", pst_nn, Melting.NBNN);
+        if (pst_mm != null) {
+            put(',');
+            set("mismatches", pst_mm, Melting.NBMM);
+        }
+        if (pst_de != null) {
+            put(',');
+            set("dangling-ends", pst_de, Melting.NBDE);
+        }
+        raw("]}\n");
+    }
+
+    private void set(String ps_kind, dataset pst_set, int i_entries) throws IOException {
+        raw("{\"kind\":");
+        string(ps_kind);
+        raw(",\"file\":");
+        if (pst_set.file != null) string(pst_set.file);
+        else raw("null");
+        raw(",\"references\":[");
+        boolean b_first = true;
+        for (String ps_reference : pst_set.reference) {
+            if (ps_reference == null || !ps_reference.startsWith("R")) continue;
+            if (!b_first) put(',');
+            string(ps_reference.trim());
+            b_first = false;
+        }
+        raw("],\"entries\":[");
+        b_first = true;
+        for (int i = 0; i < i_entries; i++) {
+            Melting.calor_const pst_entry = pst_set.data()[i];
+            if (pst_entry == null || pst_entry.s_crick_pair == null || pst_entry.s_crick_pair.length() == 0) continue;
+            if (!b_first) put(',');
+            raw("{\"pair\":");
+            string(pst_entry.s_crick_pair);
+            raw(",\"enthalpy\":");
+            number(pst_entry.d_enthalpy * 4.18, 1);
+            raw(",\"entropy\":");
+            number(pst_entry.d_entropy * 4.18, 4);
+            put('}');
+            b_first = false;
+        }
+        raw("]}");
+    }
+
+    public void flush() throws IOException {
+        out.write(b_buffer, 0, i_used);
+        i_used = 0;
+        out.flush();
+    }
+
+    /*+------------------------------------------------------------------+
+      | encoding into the buffer                                         |
+      +------------------------------------------------------------------+*/
+
+    private void put(char c) throws IOException {
+        if (i_used == b_buffer.length) {
+            out.write(b_buffer, 0, i_used);
+            i_used = 0;
+        }
+        b_buffer[i_used++] = (byte) c;
+    }
+
+    /* ASCII text written as it is */
+    private void raw(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) put(s.charAt(i));
+    }
+
+    private void string(String s) throws IOException {
+        put('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                put('\\');
+                put(c);
+            } else if (c == '\n') {
+                put('\\');
+                put('n');
+            } else if (c < 0x20 || c > 0x7e) {
+                put('\\');
+                put('u');
+                for (int i_shift = 12; i_shift >= 0; i_shift -= 4) put((char) DIGITS[(c >> i_shift) & 15]);
+            } else {
+                put(c);
+            }
+        }
+        put('"');
+    }
+
+    private void integer(long l) throws IOException {
+        if (l < 0) {
+            put('-');
+            l = -l;
+        }
+        long l_power = 1;
+        while (l_power <= l / 10) l_power *= 10;
+        for (; l_power > 0; l_power /= 10) put((char) ('0' + (l / l_power) % 10));
+    }
+
+    /* d with i_digits decimals; null if it is not a number */
+    private void number(double d, int i_digits) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            raw("null");
+            return;
+        }
+        long l_scale = 1;
+        for (int k = 0; k < i_digits; k++) l_scale *= 10;
+        if (Math.abs(d) * l_scale >= 1e17) {   /* out of the range of a long */
+            raw(Double.toString(d));
+            return;
+        }
+        long l_scaled = Math.round(Math.abs(d) * l_scale);
+        if (d < 0 && l_scaled != 0) put('-');
+        integer(l_scaled / l_scale);
+        if (i_digits == 0) return;
+        put('.');
+        long l_fraction = l_scaled % l_scale;
+        for (long l_power = l_scale / 10; l_power > 0; l_power /= 10) put((char) ('0' + (l_fraction / l_power) % 10));
+    }
+}
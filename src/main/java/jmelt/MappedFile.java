@@ -0,0 +1,78 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/******************************************************************************
+ * File: MappedFile.java                                                      *
+ * Aim : a file read in place, mapped in memory, whatever its size: by       *
+ *       segments of SEGMENT bytes, each mapped with the MAX_SPAN bytes after *
+ *       it when first read, so that a line or a slice starting in a        *
+ *       segment is within its mapping. The numbers are big-endian, as the  *
+ *       ones of DataOutputStream.                                            *
+ ******************************************************************************/
+
+public class MappedFile {
+
+    static final long SEGMENT = 1L << 30;          /* mapped at once */
+    static final int MAX_SPAN = 1 << 20;           /* longest line or slice */
+
+    final FileChannel channel;
+    final long l_size;
+    final MappedByteBuffer[] segments;
+
+    public MappedFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.l_size = channel.size();
+        this.segments = new MappedByteBuffer[(int) ((l_size + SEGMENT - 1) / SEGMENT)];
+    }
+
+    public long size() {
+        return l_size;
+    }
+
+    private ByteBuffer segment(long l_position) throws IOException {
+        int i = (int) (l_position / SEGMENT);
+        if (segments[i] == null)
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * SEGMENT,
+                    Math.min(SEGMENT + MAX_SPAN, l_size - i * SEGMENT));
+        return segments[i];
+    }
+
+    public long get_long(long l_position) throws IOException {
+        return segment(l_position).getLong((int) (l_position % SEGMENT));
+    }
+
+    public double get_double(long l_position) throws IOException {
+        return segment(l_position).getDouble((int) (l_position % SEGMENT));
+    }
+
+    public int get_int(long l_position) throws IOException {
+        return segment(l_position).getInt((int) (l_position % SEGMENT));
+    }
+
+    /* the i_length bytes at l_position, without copy */
+    public ByteBuffer slice(long l_position, int i_length) throws IOException {
+        if (i_length > MAX_SPAN) throw new IOException("a slice of " + i_length + " bytes is longer than " + MAX_SPAN);
+        ByteBuffer segment = segment(l_position);
+        int i_start = (int) (l_position % SEGMENT);
+        return segment.duplicate().position(i_start).limit(i_start + i_length).slice();
+    }
+
+    /* the line starting at l_position, without its end */
+    public String line(long l_position) throws IOException {
+        ByteBuffer segment = segment(l_position);
+        int i_start = (int) (l_position % SEGMENT), i_end = i_start;
+        while (i_end < segment.limit() && segment.get(i_end) != '\n') i_end++;
+        if (i_end == segment.limit() && l_position - i_start + i_end < l_size)
+            throw new IOException("a line is longer than " + MAX_SPAN + " bytes");
+        if (i_end > i_start && segment.get(i_end - 1) == '\r') i_end--;
+        byte[] b_line = new byte[i_end - i_start];
+        segment.duplicate().position(i_start).get(b_line);
+        return new String(b_line, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,106 @@
+
+package jmelt;
+
+import java.io.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: MeltCurve.java                                                       *
+ * Aim : two-state melting curve of a probe, i.e. the fraction of duplex on  *
+ *       a grid of temperatures, and the free energy at the temperature of   *
+ *       the assay. Enthalpy and entropy are computed once by get_results;   *
+ *       the equilibrium is then solved at each temperature with the same    *
+ *       strand concentration (d_conc_probe, d_gnat) and salt correction as  *
+ *       tm_exact, so that the fraction of duplex is 0.5 at the Tm.          *
+ *                                                                            *
+ *       With k = K x 2 x c / gnat, K the equilibrium constant, the fraction *
+ *       of duplex f solves k (1 - f)^2 = f, i.e.                              *
+ *            f = 2k / (2k + 1 + sqrt(4k + 1))                               *
+ *       At the Tm, K = gnat / c, k = 2 and f = 0.5.                          *
+ *                                                                            *
+ *       The buffers are allocated once; the loops over the temperatures    *
+ *       are plain loops over arrays, which the JIT can vectorise.          *
+ ******************************************************************************/
+
+public class MeltCurve {
+
+    static final double R = 1.987;     /* gas constant, cal.mol-1.K-1, as in tm_exact */
+
+    final MeltingParams pst_param;
+    final double[] d_temperature;      /* grid of temperatures, °C */
+    final double[] d_inv_rt;           /* 1 / RT at each temperature, with the salt shift */
+    final double[] d_fraction;         /* fraction of duplex, reused for each probe */
+    final double d_assay;              /* temperature of the assay, °C */
+    final double d_log_factor;         /* ln(2 c / gnat) */
+
+    public MeltCurve(MeltingParams pst_param, double d_min, double d_max, double d_step, double d_assay) {
+        this.pst_param = pst_param;
+        this.d_assay = d_assay;
+        int i_points = (int) Math.floor((d_max - d_min) / d_step + 1e-9) + 1;
+        d_temperature = new double[i_points];
+        d_inv_rt = new double[i_points];
+        d_fraction = new double[i_points];
+        /* wet91a and san96a add a constant to the Tm: the whole curve is shifted */
+        double d_shift = Melting.salt_correction(pst_param);
+        for (int i = 0; i < i_points; i++) {
+            d_temperature[i] = d_min + i * d_step;
+            d_inv_rt[i] = 1.0 / (R * (d_temperature[i] - d_shift + 273.15));
+        }
+        d_log_factor = Math.log(2 * pst_param.d_conc_probe / pst_param.d_gnat);
+    }
+
+    /* fraction of duplex over the grid, for the given enthalpy and entropy (with
+       the salt correction of san98a, as left by get_results). Returns d_fraction. */
+    public double[] curve(double d_enthalpy, double d_entropy) {
+        int i_points = d_fraction.length;
+        double d_base = d_entropy / R + d_log_factor;
+        for (int i = 0; i < i_points; i++)          /* ln k */
+            d_fraction[i] = d_base - d_enthalpy * d_inv_rt[i];
+        for (int i = 0; i < i_points; i++)          /* k, bounded to stay finite */
+            d_fraction[i] = Math.exp(Math.min(d_fraction[i], 700.0));
+        for (int i = 0; i < i_points; i++) {        /* fraction of duplex */
+            double d_k2 = 2 * d_fraction[i];
+            d_fraction[i] = d_k2 / (d_k2 + 1 + Math.sqrt(2 * d_k2 + 1));
+        }
+        return d_fraction;
+    }
+
+    /* free energy at the temperature of the assay, cal.mol-1 */
+    public double free_energy(double d_enthalpy, double d_entropy) {
+        return d_enthalpy - (d_assay + 273.15) * d_entropy;
+    }
+
+    /* header line: the temperatures of the grid */
+    public void print_header(PrintStream out) {
+        StringBuilder s_line = new StringBuilder("#sequence\tTm\tdG(");
+        WindowMap.append_fixed(s_line, d_assay, 1);
+        s_line.append(")J.mol-1");
+        for (double d_t : d_temperature) {
+            s_line.append('\t');
+            WindowMap.append_fixed(s_line, d_t, 2);
+        }
+        out.println(s_line);
+    }
+
+    /* one line per probe: sequence, Tm, free energy at the assay temperature and curve */
+    public void print(String ps_sequence, String ps_complement, PrintStream out) {
+        Thermodynamic pst_results = Melting.get_results(pst_param, ps_sequence, ps_complement, true, false);
+        StringBuilder s_line = new StringBuilder(ps_sequence.length() + 8 * d_fraction.length + 32);
+        s_line.append(ps_sequence).append('\t');
+        WindowMap.append_fixed(s_line, pst_results.d_tm, 2);
+        if (pst_results.i_approx) {  /* no enthalpy nor entropy in approximative mode */
+            out.println(s_line.append("\t-"));
+            return;
+        }
+        s_line.append('\t');
+        WindowMap.append_fixed(s_line, free_energy(pst_results.d_total_enthalpy, pst_results.d_total_entropy) * 4.18, 0);
+        double[] d_curve = curve(pst_results.d_total_enthalpy, pst_results.d_total_entropy);
+        for (double d_f : d_curve) {
+            s_line.append('\t');
+            WindowMap.append_fixed(s_line, d_f, 4);
+        }
+        out.println(s_line);
+    }
+}
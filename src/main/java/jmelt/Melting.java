@@ -3,7 +3,11 @@
 package jmelt;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 /******************************************************************************
  *                               MELTING v4.2                                 *
@@ -66,6 +70,39 @@ import java.util.*;
  |        -v     Verbose mode                                            |
  |        -V     displays Version and quit                               |
  |        -x     force approXimative calculus                            |
+ |        --approx-file=[file] approximative Tm of a whole sequence file |
+ |        --map=[FASTA] --window=[n] --step=[n] --wig  melting map       |
+ |        --watch=[dir] reload the parameter files changed in dir        |
+ |        --design=[Tm] --design-min=[n] --design-max=[n] --design-first |
+ |               optimal probe for each start position of the sequence   |
+ |        --curve=[min:max:step] --assay=[T] melting curve of the duplex |
+ |        --monte-carlo=[n] --sigma=[H:S] --sigma-file=[file] --seed=[n] |
+ |               uncertainty of the Tm due to the parameters             |
+ |        --async-output  results of the batch written by another thread |
+ |        --bgzf  results compressed (BGZF, deflated on several threads) |
+ |        --dedup[=n] compute each distinct duplex of the batch once     |
+ |        --dimers=[file] --dimers-per-primer  primer-dimer screen       |
+ |        --json  results as JSON lines, after a header with the sets    |
+ |        --set-matrix[=a.nn,b.nn...] Tm with each set (default: all)    |
+ |        --summary[=min:max:step] distribution of the Tm of the batch   |
+ |        --top=[k]:[T|max|min] the k duplexes whose Tm is the closest   |
+ |               to T, or the highest or the lowest                      |
+ |        --sort[=MB]    results of the batch of --input sorted by Tm,   |
+ |               in MB of memory whatever its size                       |
+ |        --index=[dir]  Tm of the batch of --input added to the index   |
+ |               of the conditions in dir                                |
+ |        --query=[a:b]  probes of the index whose Tm is in [a, b]       |
+ |        --compact      segments of the index merged into one           |
+ |        --fit=[file]   nn set fitted to measured Tm, written as a .nn  |
+ |        --input=[file] lines of the batch read from the file (FASTA,   |
+ |               gzip and BGZF as well)                                  |
+ |        --workers=[n]  batch of --input shared by n JVMs               |
+ |        --listen=[host:]port  workers of other hosts sharing the       |
+ |               filesystem join with --worker=host:port                 |
+ |        --checkpoint[=file] --checkpoint-every=[s] --resume  progress  |
+ |               of a batch of --input into -O, to go on after a crash   |
+ |        --daemon=[socket] --threads=[n] answer the command lines sent  |
+ |               by jmelt.Client on this Unix domain socket              |
  |                                                                       |
  | here describe the structure of input file                             |
  |                                                                       |
@@ -142,10 +179,224 @@ public class Melting {
     static boolean i_seq = false;           /* correct sequence? */
     static boolean i_verbose = false;       /* is verbose mode on? */
     static int i_threshold = MAX_SIZE_NN;   /* threshold before approximative calculus */
+    static String ps_approx_file = null;    /* sequence (or FASTA) file streamed for the approximative tm */
+    static String ps_map_file = null;       /* FASTA file of which a melting map is computed */
+    static int i_window = 0;                /* size of the windows of the melting map */
+    static int i_step = 0;                  /* step between two windows (default: the window size) */
+    static boolean i_wig = false;           /* write the melting map as WIG instead of bedGraph */
+    static String ps_watch_dir = null;      /* directory watched for new parameter files */
+    static ParamWatcher watcher = null;     /* publishes the reloaded parameter sets */
+    static boolean i_design = false;        /* design probes reaching a target Tm */
+    static double d_design_tm;              /* the target Tm */
+    static int i_design_min = 15;           /* shortest probe designed */
+    static int i_design_max = 0;            /* longest probe designed (default: i_threshold) */
+    static boolean i_design_first = false;  /* first length reaching the target, not the closest Tm */
+    static boolean i_curve = false;         /* print the melting curve of each duplex */
+    static double d_curve_min;              /* temperatures of the curve, °C */
+    static double d_curve_max;
+    static double d_curve_step;
+    static double d_assay = 37;             /* temperature of the assay, for the free energy */
+    static MeltCurve pst_curve = null;      /* buffers of the curves, shared by the batch */
+    static int i_monte_carlo = 0;           /* number of samples of perturbed parameters, 0 if none */
+    static double d_sigma_h = MonteCarlo.DEFAULT_SIGMA_H;  /* standard deviation of each enthalpy */
+    static double d_sigma_s = MonteCarlo.DEFAULT_SIGMA_S;  /* standard deviation of each entropy */
+    static String ps_sigma_file = null;     /* standard deviations per entry */
+    static long l_seed = 1;                 /* seed of the samples */
+    static MonteCarlo pst_monte_carlo = null; /* probes of the batch, sampled at the end */
+    static boolean i_async_output = false;  /* write the results of the batch in another thread */
+    static PrintStream ASYNC_OUTPUT = null; /* OUTPUT when it is written asynchronously */
+    static boolean i_bgzf = false;          /* results and outfile compressed */
+    static PrintStream BGZF_OUTPUT = null;  /* OUTPUT when it is compressed */
+    static boolean i_dedup = false;         /* compute each distinct duplex of the batch once */
+    static int i_dedup_max = DuplexCache.DEFAULT_MAX; /* duplexes remembered at most */
+    static DuplexCache pst_dedup = null;    /* results of the duplexes already computed */
+    static String ps_dimers_file = null;    /* primers screened for dimers and self-complementarity */
+    static boolean i_dimers_per_primer = false; /* worst dimer of each primer instead of each pair */
+    static boolean i_json = false;          /* results as JSON lines */
+    static JsonLines pst_json = null;       /* encoder of the results, created with the first one */
+    static int i_record = 0;                /* number of the last duplex written as JSON */
+    static String[] ps_matrix_sets = null;  /* nn sets applied to each probe at once, null if not */
+    static SetMatrix pst_set_matrix = null; /* probes of the chunk being computed */
+    static boolean i_summary = false;       /* distribution of the Tm instead of the results */
+    static double d_summary_min = TmSummary.DEFAULT_MIN;  /* bins of its histogram */
+    static double d_summary_max = TmSummary.DEFAULT_MAX;
+    static double d_summary_step = TmSummary.DEFAULT_STEP;
+    static BatchPipeline<TmSummary> pst_summary = null; /* duplexes being summed up */
+    static int i_top = 0;                   /* duplexes kept by --top, 0 if not */
+    static int i_top_mode = TopK.CLOSEST;   /* closest to d_top_target, highest or lowest Tm */
+    static double d_top_target = 0;
+    static BatchPipeline<TopK> pst_top = null; /* duplexes being selected */
+    static boolean i_sort = false;          /* results of the batch sorted by Tm */
+    static long l_sort_memory = ExternalSort.DEFAULT_MEMORY;  /* MB */
+    static ExternalSort pst_sort = null;    /* duplexes being sorted */
+    static String ps_index_dir = null;      /* Tm index of the probes, by conditions */
+    static boolean i_query = false;         /* probes of the index whose Tm is in the range */
+    static double d_query_low = 0, d_query_high = 0;
+    static boolean i_compact = false;       /* segments of the index merged */
+    static String ps_fit_file = null;       /* measured Tm to which the nn set is fitted */
+    static String ps_input_file = null;     /* file read by the batch instead of stdin */
+    static int i_workers = 0;               /* JVMs sharing the batch, 0: this one alone */
+    static String ps_worker_socket = null;  /* coordinator giving the chunks to this worker */
+    static String ps_listen = null;         /* [host:]port where the workers of other hosts join */
+    static boolean i_checkpoint = false;    /* progress of the batch written every few seconds */
+    static String ps_checkpoint_file = null; /* where, null: the outfile followed by .checkpoint */
+    static long l_checkpoint_period = Checkpoint.DEFAULT_PERIOD; /* seconds between two checkpoints */
+    static boolean i_resume = false;        /* batch started again from the last checkpoint */
+    static Checkpoint pst_checkpoint = null; /* input, output and progress of the batch */
+    static boolean i_header_written = false; /* output resumed after the header of its mode */
+    static String ps_daemon_socket = null;  /* socket on which the daemon listens */
+    static int i_daemon_threads = Runtime.getRuntime().availableProcessors(); /* clients served at once */
 
 
     /*>>>>>>>>>>>>>>>>>>>>>>>>>>>PREPROCESSOR INFORMATIONS<<<<<<<<<<<<<<<<<<<<<<<<*/
 
+    /*+-------------------------------------------------------------------+
+      | in-process runs of the program, e.g. by the benchmark: the         |
+      | variables are set back to their defaults, the streams are the ones |
+      | given, and exit() throws an Exit instead of stopping the JVM.      |
+      +-------------------------------------------------------------------+*/
+
+    static boolean i_in_process = false;   /* inside run(): do not stop the JVM */
+    static Map<String, dataset> pst_kept_sets = null; /* sets read by the previous runs of a daemon engine */
+
+    static class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int i_status;
+
+        Exit(int i_status) {
+            super("exit " + i_status, null, false, false);
+            this.i_status = i_status;
+        }
+    }
+
+    /* every end of the program goes here; the results kept by the modes are written first */
+    static void exit(int i_status) {
+        close_json();
+        if (pst_set_matrix != null) pst_set_matrix.flush(OUTPUT);
+        if (i_in_process) throw new Exit(i_status);
+        System.exit(i_status);
+    }
+
+    /* the sets read are kept for the next runs (daemon engines) */
+    public static void keep_sets() {
+        pst_kept_sets = new HashMap<String, dataset>();
+    }
+
+    /* run the program with these arguments and streams; returns the exit status */
+    public static int run(String args[], BufferedReader in, PrintStream out, PrintStream err) {
+        return run(args, in, out, err, 0, false);
+    }
+
+    /* the same, the duplexes numbered from l_records + 1, after the header of the mode if
+       b_header_written (a chunk of a batch shared by workers) */
+    public static int run(String args[], BufferedReader in, PrintStream out, PrintStream err, long l_records,
+                          boolean b_header_written) {
+        reset();
+        i_record = (int) l_records;
+        i_header_written = b_header_written;
+        INPUT = in;
+        OUTPUT = VERBOSE = MENU = out;
+        ERROR = err;
+        i_in_process = true;
+        try {
+            main(args);
+            return 0;
+        } catch (Exit e) {
+            return e.i_status;
+        } finally {
+            close_json();
+            close_async_output();
+            close_bgzf();
+            i_in_process = false;
+            out.flush();
+        }
+    }
+
+    /* the values of the definitions above; to be kept in step with them */
+    static void reset() {
+        ERROR = System.err;
+        VERBOSE = MENU = OUTPUT = System.out;
+        INPUT = buffered_reader(System.in);
+        i_alt_nn = i_alt_mm = i_alt_de = false;
+        i_approx = i_batch = i_java = i_complement = false;
+        i_dnadna = true;
+        i_dnarna = i_rnarna = i_hybridtype = i_infile = false;
+        i_mismatchesneed = i_dangendsneed = i_outfile = i_probe = false;
+        i_quiet = i_salt = i_seq = i_verbose = false;
+        i_threshold = MAX_SIZE_NN;
+        ps_approx_file = ps_map_file = null;
+        i_window = i_step = 0;
+        i_wig = false;
+        ps_watch_dir = null;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                /* nothing more to watch anyway */
+            }
+        }
+        watcher = null;
+        i_design = i_design_first = false;
+        d_design_tm = 0;
+        i_design_min = 15;
+        i_design_max = 0;
+        i_curve = false;
+        d_curve_min = d_curve_max = d_curve_step = 0;
+        d_assay = 37;
+        pst_curve = null;
+        i_monte_carlo = 0;
+        d_sigma_h = MonteCarlo.DEFAULT_SIGMA_H;
+        d_sigma_s = MonteCarlo.DEFAULT_SIGMA_S;
+        ps_sigma_file = null;
+        l_seed = 1;
+        pst_monte_carlo = null;
+        i_async_output = false;
+        ASYNC_OUTPUT = null;
+        i_bgzf = false;
+        BGZF_OUTPUT = null;
+        i_dedup = false;
+        i_dedup_max = DuplexCache.DEFAULT_MAX;
+        pst_dedup = null;
+        ps_dimers_file = null;
+        i_dimers_per_primer = false;
+        i_json = false;
+        pst_json = null;
+        i_record = 0;
+        ps_matrix_sets = null;
+        pst_set_matrix = null;
+        i_summary = false;
+        d_summary_min = TmSummary.DEFAULT_MIN;
+        d_summary_max = TmSummary.DEFAULT_MAX;
+        d_summary_step = TmSummary.DEFAULT_STEP;
+        pst_summary = null;
+        i_top = 0;
+        i_top_mode = TopK.CLOSEST;
+        d_top_target = 0;
+        pst_top = null;
+        i_sort = false;
+        l_sort_memory = ExternalSort.DEFAULT_MEMORY;
+        pst_sort = null;
+        ps_index_dir = null;
+        i_query = false;
+        d_query_low = 0;
+        d_query_high = 0;
+        i_compact = false;
+        ps_fit_file = null;
+        ps_input_file = null;
+        i_workers = 0;
+        ps_worker_socket = null;
+        ps_listen = null;
+        i_checkpoint = false;
+        ps_checkpoint_file = null;
+        l_checkpoint_period = Checkpoint.DEFAULT_PERIOD;
+        i_resume = false;
+        pst_checkpoint = null;
+        i_header_written = false;
+        ps_daemon_socket = null;
+        i_daemon_threads = Runtime.getRuntime().availableProcessors();
+        pst_param = null;
+    }
+
     /*****************
      * main function *
      *****************/
@@ -186,6 +437,30 @@ public class Melting {
                          STDIN                . call the adequate function
          */
 
+        if (ps_worker_socket != null) {  /* the runs are the chunks given by the coordinator */
+            String ps_address = ps_worker_socket;   /* set back to null by the runs */
+            try {
+                Coordinator.work(ps_address);
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to work for the coordinator at %s: %s\n", ps_address, e);
+                exit(-1);
+            }
+            exit(0);
+        }
+
+        if (ps_daemon_socket != null) {  /* the runs are the ones of the clients */
+            if (i_in_process) {
+                ERROR.printf(" A daemon cannot be started by a daemon or a program\n");
+                exit(-1);
+            }
+            try {
+                new Daemon(ps_daemon_socket, i_daemon_threads).serve();
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to listen on the socket %s: %s\n", ps_daemon_socket, e);
+                exit(-1);
+            }
+        }
+
         /*-----------------------------------*
          | The hybridation type is mandatory |
          *-----------------------------------*/
@@ -197,7 +472,7 @@ public class Melting {
                         "      [B]-default DNA/RNA\n" +
                         "      [C]-default RNA/RNA\n" +
                         "      [Q]-Quit the program\n");
-                s_line = readline(INPUT);
+                s_line = read_input(INPUT);
                 s_line = s_line.trim();
                 c_answer = s_line.toUpperCase().charAt(0);
                 switch (c_answer) {
@@ -232,13 +507,13 @@ public class Melting {
                         i_rnarna = true;
                         break;
                     case 'Q':
-                        System.exit(0);
+                        exit(0);
                     default:
                         break; /* nothing */
                 }
             } else {
                 ERROR.printf(" No proper type of hybridation has been entered.\n");
-                System.exit(-1);
+                exit(-1);
             }
         }
         
@@ -255,10 +530,10 @@ public class Melting {
                                 "  This concentration has to belong to ]%4.2f,%5.2f[\n" +
                                 "  Enter it now (Q to quit)                         \n",
                         new Double(MIN_SALT), new Double(MAX_SALT));
-                s_line = readline(INPUT);
+                s_line = read_input(INPUT);
                 s_line = s_line.trim();
                 c_answer = s_line.toUpperCase().charAt(0);
-                if (c_answer == 'Q' || c_answer == 'q') System.exit(0);
+                if (c_answer == 'Q' || c_answer == 'q') exit(0);
                 if (Character.isDigit(c_answer)) {
                     pst_param.d_conc_salt = Double.parseDouble(s_line);
                     if (pst_param.d_conc_salt > MIN_SALT && pst_param.d_conc_salt < MAX_SALT)
@@ -266,7 +541,7 @@ public class Melting {
                 }
             } else {
                 ERROR.printf(" No proper salt concentration has been entered.\n");
-                System.exit(-1);
+                exit(-1);
             }
         }
 
@@ -285,10 +560,10 @@ public class Melting {
                                     "  This concentration has to belong to ]%4.2f,%4.2f[\n" +
                                     "  Enter it now (Q to quit)                         \n",
                             MIN_PROBE, MAX_PROBE);
-                    s_line = readline(INPUT);
+                    s_line = read_input(INPUT);
                     s_line = s_line.trim();
                     c_answer = s_line.toUpperCase().charAt(0);
-                    if (c_answer == 'Q' || c_answer == 'q') System.exit(0);
+                    if (c_answer == 'Q' || c_answer == 'q') exit(0);
 
                     if (Character.isDigit(c_answer)) {
                         pst_param.d_conc_probe = Double.parseDouble(s_line);
@@ -297,7 +572,7 @@ public class Melting {
                     }
                 } else {
                     ERROR.printf(" No proper nucleic acid concentration has been entered.\n");
-                    System.exit(-1);
+                    exit(-1);
                 }
             }
         }
@@ -342,24 +617,240 @@ public class Melting {
         }
 
 
-        if (i_outfile == true) { /* REDIRECTION IN OUTFILE */
+        if (i_checkpoint && (!i_batch || ps_input_file == null || !i_outfile || i_workers > 0
+                || ps_listen != null || i_monte_carlo > 0 || i_summary || i_top > 0 || i_sort || i_async_output
+                || compressed(ps_input_file) || fasta(ps_input_file))) {
+            ERROR.printf(" A checkpoint needs an uncompressed batch file (--input), one sequence a line (not\n"
+                    + " FASTA), and an outfile (-O), without workers, Monte Carlo, summary, top, sort nor\n"
+                    + " asynchronous output\n");
+            exit(-1);
+        }
+
+        if ((i_query || i_compact) && ps_index_dir == null) {
+            ERROR.printf(" A query and a compaction need an index (--index)\n");
+            exit(-1);
+        }
+
+        if (ps_index_dir != null && !i_query && !i_compact) i_sort = true;  /* a batch sorted into the index */
+
+        if (i_sort && (!i_batch || ps_input_file == null || compressed(ps_input_file) || fasta(ps_input_file))) {
+            ERROR.printf(" A sort or an index needs an uncompressed batch file (--input), one sequence a line\n"
+                    + " (not FASTA)\n");
+            exit(-1);
+        }
+
+        if (i_outfile == true && !i_checkpoint) { /* REDIRECTION IN OUTFILE */
             OUTFILE = print_stream(pst_param.s_outfile);
         }
 
+        if (i_bgzf && !i_checkpoint) {  /* the results compressed (the ones of a checkpoint go in the outfile) */
+            BGZF_OUTPUT = BgzfOutput.wrap(OUTPUT);
+            if (VERBOSE == OUTPUT) VERBOSE = BGZF_OUTPUT;
+            OUTPUT = BGZF_OUTPUT;
+        }
+
+        if (i_async_output && i_batch) {  /* the compute does not wait for the writes */
+            if (OUTFILE != null && !i_bgzf) {
+                OUTFILE.close();
+                try {
+                    OUTFILE = AsyncOutput.open(pst_param.s_outfile);
+                } catch (IOException e) {
+                    ERROR.printf(" I was not able to open the file %s\n", pst_param.s_outfile);
+                    exit(-1);
+                }
+            }
+            ASYNC_OUTPUT = AsyncOutput.wrap(OUTPUT);
+            if (VERBOSE == OUTPUT) VERBOSE = ASYNC_OUTPUT;
+            OUTPUT = ASYNC_OUTPUT;
+        }
+
+        if (ps_watch_dir != null) {  /* hot reloading of the parameter sets */
+            try {
+                watcher = ParamWatcher.start(new File(ps_watch_dir).toPath(), pst_param);
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to watch the directory %s\n", ps_watch_dir);
+                exit(-1);
+            }
+        }
+
         if (i_java) {  /* done with setup, so exit */
             return;
         }
 
+        if (ps_approx_file != null) {  /* approximative tm of a whole file, streamed */
+            GcBitmap.Count pst_count = null;
+            try {
+                if (compressed(ps_approx_file))
+                    pst_count = GcBitmap.count(Channels.newChannel(BgzfInput.open(ps_approx_file)));
+                else pst_count = GcBitmap.count(new File(ps_approx_file));
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to read the file %s\n", ps_approx_file);
+                exit(-1);
+            }
+            OUTPUT.printf("  Sequence length: %d nt, G+C: %5.2f %%\n", pst_count.l_bases, pst_count.percent_gc());
+            OUTPUT.printf("  Melting temperature: %5.2f °C\n",
+                    tm_approx(pst_param, pst_count.l_bases, pst_count.l_gc));
+            exit(0);
+        }
+
+        if (ps_map_file != null) {  /* melting map of a genome */
+            if (i_window <= 0) {
+                ERROR.printf(" A melting map needs a window size (--window)\n");
+                exit(-1);
+            }
+            try {
+                OutputStream out = new BufferedOutputStream(i_outfile ? OUTFILE : OUTPUT, 1 << 16);
+                new WindowMap(pst_param, i_window, i_step > 0 ? i_step : i_window, i_wig).run(new File(ps_map_file), out);
+                out.close();
+            } catch (Exception e) {
+                ERROR.printf(" I was not able to compute the melting map of %s: %s\n", ps_map_file, e);
+                exit(-1);
+            }
+            exit(0);
+        }
+
+        if (ps_dimers_file != null) {  /* primer-dimer screen */
+            try {
+                DimerScreen pst_screen = new DimerScreen(pst_param, d_assay);
+                pst_screen.read(ps_dimers_file);
+                PrintStream out = i_outfile ? OUTFILE : OUTPUT;
+                pst_screen.print(i_dimers_per_primer, out);
+                if (i_outfile) out.close();
+                else out.flush();
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to screen the primers of %s: %s\n", ps_dimers_file, e.getMessage());
+                exit(-1);
+            }
+            exit(0);
+        }
+
+        if (ps_fit_file != null) {  /* nn set fitted to measured Tm */
+            try {
+                NnFit pst_fit = new NnFit(pst_param, d_sigma_h, d_sigma_s);
+                pst_fit.read(ps_fit_file);
+                pst_fit.run();
+                PrintStream out = i_outfile ? OUTFILE : OUTPUT;
+                pst_fit.write(out);
+                if (i_outfile) out.close();
+                else out.flush();
+            } catch (IOException | IllegalStateException e) {
+                ERROR.printf(" I was not able to fit the parameters to %s: %s\n", ps_fit_file, e.getMessage());
+                exit(-1);
+            }
+            close_bgzf();
+            exit(0);
+        }
+
+        if (i_query || i_compact) {  /* the index of the probes, under the conditions given */
+            try (TmIndex pst_index = TmIndex.open(Paths.get(ps_index_dir), pst_param)) {
+                if (i_compact) pst_index.compact();
+                if (i_query) pst_index.query(d_query_low, d_query_high, (d_tm, probe) -> {
+                    OUTPUT.printf("  Probe: %s\n", StandardCharsets.UTF_8.decode(probe));
+                    OUTPUT.printf("  Melting temperature: %5.2f °C\n", d_tm);
+                });
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to read the index %s: %s\n", ps_index_dir, e.getMessage());
+                exit(-1);
+            }
+            if (OUTFILE != null) OUTFILE.close();
+            close_async_output();
+            close_bgzf();
+            exit(0);
+        }
+
+        if (i_batch && (i_workers > 0 || ps_listen != null)) {  /* batch shared by worker JVMs */
+            if (ps_input_file == null || i_monte_carlo > 0 || i_summary || i_top > 0
+                    || i_sort || compressed(ps_input_file) || fasta(ps_input_file)) {
+                ERROR.printf(" The workers need an uncompressed batch file (--input), one sequence a line (not\n"
+                        + " FASTA), and cannot share a Monte Carlo run, a summary, a top nor a sort\n");
+                exit(-1);
+            }
+            try {
+                new Coordinator(ps_input_file, without(args, "--workers=", "--listen=", "--input=", "-O", "--bgzf"),
+                        i_workers, ps_listen)
+                        .run(i_outfile ? OUTFILE : OUTPUT);
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to compute %s with the workers: %s\n", ps_input_file, e.getMessage());
+                exit(-1);
+            }
+            if (OUTFILE != null) OUTFILE.close();
+            close_async_output();
+            close_bgzf();
+            exit(0);
+        }
+
+        if (i_batch && ps_input_file != null) {  /* lines of a file instead of stdin */
+            try {
+                INPUT = new FastaReader(new BufferedReader(
+                        new InputStreamReader(BgzfInput.open(ps_input_file)), 1 << 16));
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to open the file %s\n", ps_input_file);
+                exit(-1);
+            }
+        }
+
+        if (i_batch && i_sort) {  /* the lines read again, through their offsets, once sorted */
+            try {
+                pst_sort = new ExternalSort(ps_input_file, l_sort_memory << 20);
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to open the file %s\n", ps_input_file);
+                exit(-1);
+            }
+            INPUT = pst_sort.input();
+        }
+
+        if (i_batch && i_checkpoint) {  /* the batch written into the outfile, from the last checkpoint */
+            if (ps_checkpoint_file == null) ps_checkpoint_file = pst_param.s_outfile + ".checkpoint";
+            pst_checkpoint = new Checkpoint(ps_checkpoint_file, ps_input_file, pst_param.s_outfile,
+                    without(args, "--resume", "--checkpoint-every="), l_checkpoint_period);
+            try {
+                pst_checkpoint.open(i_resume, i_bgzf);
+            } catch (IOException e) {
+                ERROR.printf(" I was not able to resume from %s: %s\n", ps_checkpoint_file, e.getMessage());
+                exit(-1);
+            }
+            INPUT = pst_checkpoint.input();
+            OUTFILE = pst_checkpoint.output();
+            if (VERBOSE == OUTPUT) VERBOSE = OUTFILE;
+            OUTPUT = OUTFILE;
+            i_record = pst_checkpoint.i_records;
+            i_header_written = pst_checkpoint.resumed();
+        }
+
         if (i_batch) {  /* read sequences from stdin */
             String line;
-            while ((line = readline(INPUT)) != null) {
+            while ((line = read_input(INPUT)) != null) {
                 pst_param.ps_sequence = line;
                 if ((i_seq_errors = check_sequence(pst_param.ps_sequence)) != 0) {
                     ERROR.printf(" Your sequence %s contains %d non legal character(s)\n", line, i_seq_errors);
-                    System.exit(1);
+                    exit(1);
+                }
+                if (watcher != null) watcher.install(pst_param);  /* latest parameter sets */
+                if (i_dedup && !i_verbose && !i_json && ps_matrix_sets == null && !i_summary && i_top == 0 && !i_sort
+                        && !i_design && !i_curve && i_monte_carlo == 0) {
+                    do_dedup_results(pst_param, OUTFILE);
+                } else {
+                    pst_param.ps_complement = make_complement(pst_param.ps_sequence);
+                    if (i_design) do_design(pst_param);
+                    else if (i_curve) do_curve(pst_param);
+                    else if (i_monte_carlo > 0) do_monte_carlo(pst_param);
+                    else if (ps_matrix_sets != null) do_set_matrix(pst_param);
+                    else if (i_summary) do_summary(pst_param);
+                    else if (i_top > 0) do_top(pst_param);
+                    else if (pst_sort != null) do_sort(pst_param);
+                    else if (i_json) do_json(pst_param, OUTFILE);
+                    else do_results(pst_param, OUTFILE);
                 }
-                pst_param.ps_complement = make_complement(pst_param.ps_sequence);
-                do_results(pst_param, OUTFILE);
+                if (pst_checkpoint != null && pst_checkpoint.due()) checkpoint();
+            }
+            if (pst_monte_carlo != null) pst_monte_carlo.print(i_monte_carlo, l_seed, OUTPUT);
+            if (pst_set_matrix != null) pst_set_matrix.flush(OUTPUT);
+            if (pst_summary != null) print_summary();
+            if (pst_top != null) print_top();
+            if (pst_sort != null) print_sort(pst_param);
+            if (pst_checkpoint != null) {  /* the whole input is done */
+                checkpoint();
+                pst_checkpoint.close_input();
             }
         } else {
 
@@ -378,9 +869,9 @@ public class Melting {
                             "  Enter the sequence (Q to quit)\n" +
                             "  (if there are newlines in sequence, precede them with a \n" +
                             "  backslash \\)\n");
-                    pst_param.ps_sequence = readline(INPUT); /* read the sequence from INPUT */
+                    pst_param.ps_sequence = read_input(INPUT); /* read the sequence from INPUT */
                     if (pst_param.ps_sequence.charAt(0) == 'Q' || pst_param.ps_sequence.charAt(0) == 'q')
-                        System.exit(0);                   /* user wants to quit */
+                        exit(0);                   /* user wants to quit */
                     else {
                         i_seq_errors = check_sequence(pst_param.ps_sequence);
                         if (i_seq_errors != 0) {                  /*The sequence contains illegal characters*/
@@ -390,7 +881,7 @@ public class Melting {
                     }
                 } else {
                     ERROR.printf(" No proper sequence has been entered.\n");
-                    System.exit(-1);
+                    exit(-1);
                 }
             }
             
@@ -410,9 +901,9 @@ public class Melting {
                             MENU.printf("  Enter the sequence of the complement now (Q to quit)\n" +
                                     "  (if there are newlines in sequence, precede them with a \n" +
                                     "  backslash \\)");
-                            pst_param.ps_complement = readline(INPUT); /* read the sequence from INPUT */
+                            pst_param.ps_complement = read_input(INPUT); /* read the sequence from INPUT */
                             if (pst_param.ps_complement.charAt(0) == 'Q' || pst_param.ps_complement.charAt(0) == 'q')
-                                System.exit(0);                   /* user wants to quit */
+                                exit(0);                   /* user wants to quit */
                             else if ((i_seq_errors = check_sequence(pst_param.ps_complement)) != 0
                                     || pst_param.ps_complement.length() != pst_param.ps_sequence.length()) {
                                 /* The complement contains illegal characters or has not the right size */
@@ -421,25 +912,141 @@ public class Melting {
                             } else i_complement = true;                    /* the sequence is acceptable */
                         } else {
                             ERROR.printf(" No proper sequence complement has been entered.\n");
-                            System.exit(-1);
+                            exit(-1);
                         }
                     }
                 }
             } else pst_param.ps_complement = make_complement(pst_param.ps_sequence);
-            do_results(pst_param, OUTFILE);
+            if (i_design) do_design(pst_param);
+            else if (i_curve) do_curve(pst_param);
+            else if (i_monte_carlo > 0) {
+                do_monte_carlo(pst_param);
+                pst_monte_carlo.print(i_monte_carlo, l_seed, OUTPUT);
+            } else if (ps_matrix_sets != null) {
+                do_set_matrix(pst_param);
+                pst_set_matrix.flush(OUTPUT);
+            } else if (i_summary) {
+                do_summary(pst_param);
+                print_summary();
+            } else if (i_top > 0) {
+                do_top(pst_param);
+                print_top();
+            } else if (i_json) do_json(pst_param, OUTFILE);
+            else do_results(pst_param, OUTFILE);
         }
+        close_json();
         if (OUTFILE != null) OUTFILE.close();
+        close_async_output();
+        close_bgzf();
+
+        exit(0);
+    }
+
+    /* the file is gzip (false if it cannot be read: the error is the one of its reading) */
+    static boolean compressed(String ps_file) {
+        try {
+            return BgzfInput.compressed(ps_file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-        System.exit(0);
+    static boolean fasta(String ps_file) {
+        try {
+            return FastaReader.is_fasta(ps_file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /* the arguments, except the ones starting with one of the prefixes */
+    static String[] without(String[] args, String... ps_prefixes) {
+        List<String> kept = new ArrayList<String>();
+        for (String ps_arg : args) {
+            boolean b_keep = true;
+            for (String ps_prefix : ps_prefixes) if (ps_arg.startsWith(ps_prefix)) b_keep = false;
+            if (b_keep) kept.add(ps_arg);
+        }
+        return kept.toArray(new String[0]);
+    }
+
+    /* write what remains of the compressed output, and the end of the BGZF file */
+    static void close_bgzf() {
+        if (BGZF_OUTPUT != null) BGZF_OUTPUT.close();
+        BGZF_OUTPUT = null;
+    }
+
+    /* write what remains of the asynchronous output */
+    static void close_async_output() {
+        if (ASYNC_OUTPUT != null) ASYNC_OUTPUT.close();
+        ASYNC_OUTPUT = null;
+    }
+
+    /* results of the duplex as a JSON line */
+    static void do_json(MeltingParams pst_param, PrintStream OUTFILE) {
+        if (pst_json == null) {
+            pst_json = new JsonLines(i_outfile ? OUTFILE : OUTPUT);
+            if (i_header_written) pst_json.header_written(pst_param);
+        }
+        try {
+            pst_json.write(pst_param, MeltingResult.of(pst_param, Integer.toString(++i_record),
+                    pst_param.ps_sequence, pst_param.ps_complement));
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to write the results: %s\n", e);
+            pst_json = null;                    /* nothing more can be written */
+            exit(-1);
+        }
+    }
+
+    /* what is kept by the modes written in the outfile, then the checkpoint of the batch */
+    static void checkpoint() {
+        try {
+            if (pst_set_matrix != null) pst_set_matrix.flush(OUTPUT);
+            if (pst_json != null) pst_json.flush();
+            pst_checkpoint.commit(i_record);
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to write the checkpoint %s: %s\n", ps_checkpoint_file, e.getMessage());
+            exit(-1);
+        }
+    }
+
+    /* write what remains of the JSON lines */
+    static void close_json() {
+        if (pst_json == null) return;
+        try {
+            pst_json.flush();
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to write the results: %s\n", e);
+        }
+        pst_json = null;
     }
 
     static void do_results(MeltingParams pst_param, PrintStream OUTFILE) {
-        Thermodynamic pst_results;  /* contains the results of the computation */
-        int i_count;                    /* loop counter */
         /*+-------------------------------------+
           | Let's launch the actual computation |
           +-------------------------------------+*/
-        pst_results = get_results(pst_param);
+        print_results(pst_param, get_results(pst_param, pst_param.ps_sequence, pst_param.ps_complement,
+                true, i_verbose), OUTFILE);
+    }
+
+    /* results of a batch line, computed once per distinct duplex */
+    static void do_dedup_results(MeltingParams pst_param, PrintStream OUTFILE) {
+        if (pst_dedup == null || !pst_dedup.valid_for(pst_param))  /* new sets: new results */
+            pst_dedup = new DuplexCache(pst_param, i_dedup_max);
+        int i_entry = pst_dedup.find(pst_param.ps_sequence);
+        if (i_entry >= 0) {
+            print_tm(pst_dedup.b_approx[i_entry], pst_dedup.d_enthalpy[i_entry],
+                    pst_dedup.d_entropy[i_entry], pst_dedup.d_tm[i_entry]);
+            return;
+        }
+        pst_param.ps_complement = make_complement(pst_param.ps_sequence);
+        Thermodynamic pst_results = get_results(pst_param, pst_param.ps_sequence, pst_param.ps_complement, true, false);
+        if (i_entry == DuplexCache.ABSENT) pst_dedup.add(pst_results);
+        print_results(pst_param, pst_results, OUTFILE);
+    }
+
+    static void print_results(MeltingParams pst_param, Thermodynamic pst_results, PrintStream OUTFILE) {
+        int i_count;                    /* loop counter */
 
         if (i_outfile == true) { /* REDIRECTION IN OUTFILE */
             /*+-----------------------------------------+
@@ -465,7 +1072,7 @@ public class Melting {
                 OUTFILE.printf("Sodium concentration: %5.2e M\n", new Double(pst_param.d_conc_salt));
                 OUTFILE.printf("Nucleic acid concentration (strand in excess): %5.2e M\n",
                         new Double(pst_param.d_conc_probe));
-                if (i_approx == false) {
+                if (pst_results.i_approx == false) {
                     OUTFILE.printf("File containing the nearest_neighbor parameters is %s.\n\n", pst_param.pst_present_nn.file);
                     for (i_count = 0; i_count < NUM_REF; i_count++) {
                         if (pst_param.pst_present_nn.reference[i_count].charAt(0) == 'R')
@@ -475,9 +1082,9 @@ public class Melting {
                     OUTFILE.printf("NN\tenthalpy\tentropy\n\t(J.mol-1)\t(J.mol-1.K-1)\n" +
                             "--------------------------------\n");
                     for (i_count = 0; i_count < NBNN; i_count++)
-                        OUTFILE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_nn.data[i_count].s_crick_pair,
-                                new Double(pst_param.pst_present_nn.data[i_count].d_enthalpy * 4.18),
-                                new Double(pst_param.pst_present_nn.data[i_count].d_entropy * 4.18));
+                        OUTFILE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_nn.data()[i_count].s_crick_pair,
+                                new Double(pst_param.pst_present_nn.data()[i_count].d_enthalpy * 4.18),
+                                new Double(pst_param.pst_present_nn.data()[i_count].d_entropy * 4.18));
 
                     if (i_mismatchesneed) {
                         OUTFILE.printf("File containing the nearest_neighbor parameters for mismatches is %s.\n\n", pst_param.pst_present_mm.file);
@@ -489,10 +1096,10 @@ public class Melting {
                         OUTFILE.printf("NN\tenthalpy\tentropy\n\t(J.mol-1)\t(J.mol-1.K-1)\n" +
                                 "--------------------------------\n");
                         for (i_count = 0; i_count < NBMM; i_count++)
-                            if (strncmp(pst_param.pst_present_mm.data[i_count].s_crick_pair, "", 2) != 0) {
-                                OUTFILE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_mm.data[i_count].s_crick_pair,
-                                        new Double(pst_param.pst_present_mm.data[i_count].d_enthalpy * 4.18),
-                                        new Double(pst_param.pst_present_mm.data[i_count].d_entropy * 4.18));
+                            if (strncmp(pst_param.pst_present_mm.data()[i_count].s_crick_pair, "", 2) != 0) {
+                                OUTFILE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_mm.data()[i_count].s_crick_pair,
+                                        new Double(pst_param.pst_present_mm.data()[i_count].d_enthalpy * 4.18),
+                                        new Double(pst_param.pst_present_mm.data()[i_count].d_entropy * 4.18));
                             }
                     }
                     if (i_dangendsneed) {
@@ -505,10 +1112,10 @@ public class Melting {
                         OUTFILE.printf("NN\tenthalpy\tentropy\n\t(J.mol-1)\t(J.mol-1.K-1)\n" +
                                 "--------------------------------\n");
                         for (i_count = 0; i_count < NBDE; i_count++)
-                            if (strncmp(pst_param.pst_present_de.data[i_count].s_crick_pair, "", 2) != 0) {
-                                OUTFILE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_de.data[i_count].s_crick_pair,
-                                        new Double(pst_param.pst_present_de.data[i_count].d_enthalpy * 4.18),
-                                        new Double(pst_param.pst_present_de.data[i_count].d_entropy * 4.18));
+                            if (strncmp(pst_param.pst_present_de.data()[i_count].s_crick_pair, "", 2) != 0) {
+                                OUTFILE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_de.data()[i_count].s_crick_pair,
+                                        new Double(pst_param.pst_present_de.data()[i_count].d_enthalpy * 4.18),
+                                        new Double(pst_param.pst_present_de.data()[i_count].d_entropy * 4.18));
                             }
                     }
 
@@ -529,16 +1136,16 @@ public class Melting {
                     OUTFILE.printf("\nCrick's pairs contained in your sequence:\n");
                     for (i_count = 0; i_count < NBNN; i_count++)
                         if (pst_results.i_crick[i_count] != 0)
-                            OUTFILE.printf("%s\t%d\n", pst_param.pst_present_nn.data[i_count].s_crick_pair, new Integer(pst_results.i_crick[i_count]));
+                            OUTFILE.printf("%s\t%d\n", pst_param.pst_present_nn.data()[i_count].s_crick_pair, new Integer(pst_results.i_crick[i_count]));
                     OUTFILE.printf("\nMismatched pairs contained in your sequence:\n");
                     for (i_count = 0; i_count < NBMM; i_count++)
                         if (pst_results.i_mismatch[i_count] != 0)
-                            OUTFILE.printf("%s\t%d\n", pst_param.pst_present_mm.data[i_count].s_crick_pair,
+                            OUTFILE.printf("%s\t%d\n", pst_param.pst_present_mm.data()[i_count].s_crick_pair,
                                     pst_results.i_mismatch[i_count]);
                     OUTFILE.printf("\nDangling ends contained in your sequence:\n");
                     for (i_count = 0; i_count < NBDE; i_count++)
                         if (pst_results.i_dangends[i_count] != 0)
-                            OUTFILE.printf("%s\t%d\n", pst_param.pst_present_de.data[i_count].s_crick_pair, new Integer(pst_results.i_dangends[i_count]));
+                            OUTFILE.printf("%s\t%d\n", pst_param.pst_present_de.data()[i_count].s_crick_pair, new Integer(pst_results.i_dangends[i_count]));
                     OUTFILE.printf("\n");
                 }
             }
@@ -565,7 +1172,7 @@ public class Melting {
                             "type.)\n");
                 VERBOSE.printf("Sodium concentration: %5.2e M\n", new Double(pst_param.d_conc_salt));
                 VERBOSE.printf("Nucleic acid concentration (strand in excess): %5.2e M\n", new Double(pst_param.d_conc_probe));
-                if (i_approx == false) {
+                if (pst_results.i_approx == false) {
                     VERBOSE.printf("File containing the nearest_neighbor parameters is %s.\n\n", pst_param.pst_present_nn.file);
                     for (i_count = 0; i_count < NUM_REF; i_count++) {
                         if (pst_param.pst_present_nn.reference[i_count].length() < 1) continue;
@@ -576,9 +1183,9 @@ public class Melting {
                     VERBOSE.printf("NN\tenthalpy\tentropy\n\t(J.mol-1)\t(J.mol-1.K-1)\n" +
                             "-------------------------------\n");
                     for (i_count = 0; i_count < NBNN; i_count++) {
-                        VERBOSE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_nn.data[i_count].s_crick_pair,
-                                new Double(pst_param.pst_present_nn.data[i_count].d_enthalpy * 4.18),
-                                new Double(pst_param.pst_present_nn.data[i_count].d_entropy * 4.18));
+                        VERBOSE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_nn.data()[i_count].s_crick_pair,
+                                new Double(pst_param.pst_present_nn.data()[i_count].d_enthalpy * 4.18),
+                                new Double(pst_param.pst_present_nn.data()[i_count].d_entropy * 4.18));
                     }
                     if (i_mismatchesneed) {
                         VERBOSE.printf("File containing the nearest_neighbor parameters for mismatches is %s.\n\n", pst_param.pst_present_mm.file);
@@ -590,10 +1197,10 @@ public class Melting {
                         VERBOSE.printf("NN\tenthalpy\tentropy\n\t(J.mol-1)\t(J.mol-1.K-1)\n" +
                                 "-------------------------------\n");
                         for (i_count = 0; i_count < NBMM; i_count++)
-                            if (pst_param.pst_present_mm.data[i_count].d_enthalpy != 99999) {
-                                VERBOSE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_mm.data[i_count].s_crick_pair,
-                                        new Double(pst_param.pst_present_mm.data[i_count].d_enthalpy * 4.18),
-                                        new Double(pst_param.pst_present_mm.data[i_count].d_entropy * 4.18));
+                            if (pst_param.pst_present_mm.data()[i_count].d_enthalpy != 99999) {
+                                VERBOSE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_mm.data()[i_count].s_crick_pair,
+                                        new Double(pst_param.pst_present_mm.data()[i_count].d_enthalpy * 4.18),
+                                        new Double(pst_param.pst_present_mm.data()[i_count].d_entropy * 4.18));
                             }
                     }
                     if (i_dangendsneed) {
@@ -606,10 +1213,10 @@ public class Melting {
                         VERBOSE.printf("NN\tenthalpy\tentropy\n\t(J.mol-1)\t(J.mol-1.K-1)\n" +
                                 "--------------------------------\n");
                         for (i_count = 0; i_count < NBDE; i_count++)
-                            if (strncmp(pst_param.pst_present_de.data[i_count].s_crick_pair, "", 2) != 0) {
-                                VERBOSE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_de.data[i_count].s_crick_pair,
-                                        new Double(pst_param.pst_present_de.data[i_count].d_enthalpy * 4.18),
-                                        new Double(pst_param.pst_present_de.data[i_count].d_entropy * 4.18));
+                            if (strncmp(pst_param.pst_present_de.data()[i_count].s_crick_pair, "", 2) != 0) {
+                                VERBOSE.printf("%s\t%8.1f\t%6.2f\n", pst_param.pst_present_de.data()[i_count].s_crick_pair,
+                                        new Double(pst_param.pst_present_de.data()[i_count].d_enthalpy * 4.18),
+                                        new Double(pst_param.pst_present_de.data()[i_count].d_entropy * 4.18));
                             }
                     }
                     if (strcmp(pst_param.s_sodium_correction, "wet91a") == 0)
@@ -628,38 +1235,186 @@ public class Melting {
                     VERBOSE.printf("\nCrick's pairs contained in your sequence:\n");
                     for (i_count = 0; i_count < NBNN; i_count++)
                         if (pst_results.i_crick[i_count] != 0)
-                            VERBOSE.printf("%s\t%d\n", pst_param.pst_present_nn.data[i_count].s_crick_pair, new Integer(pst_results.i_crick[i_count]));
+                            VERBOSE.printf("%s\t%d\n", pst_param.pst_present_nn.data()[i_count].s_crick_pair, new Integer(pst_results.i_crick[i_count]));
                     VERBOSE.printf("\nMismatched pairs contained in your sequence:\n");
                     for (i_count = 0; i_count < NBMM; i_count++)
                         if (pst_results.i_mismatch[i_count] != 0)
-                            VERBOSE.printf("%s\t%d\n", pst_param.pst_present_mm.data[i_count].s_crick_pair, new Integer(pst_results.i_mismatch[i_count]));
+                            VERBOSE.printf("%s\t%d\n", pst_param.pst_present_mm.data()[i_count].s_crick_pair, new Integer(pst_results.i_mismatch[i_count]));
                     VERBOSE.printf("\nDangling ends contained in your sequence:\n");
                     for (i_count = 0; i_count < NBDE; i_count++)
                         if (pst_results.i_dangends[i_count] != 0)
-                            VERBOSE.printf("%s\t%d\n", pst_param.pst_present_de.data[i_count].s_crick_pair, new Integer(pst_results.i_dangends[i_count]));
+                            VERBOSE.printf("%s\t%d\n", pst_param.pst_present_de.data()[i_count].s_crick_pair, new Integer(pst_results.i_dangends[i_count]));
                     VERBOSE.printf("\n");
                 }
             }
         }
+        print_tm(pst_results.i_approx, pst_results.d_total_enthalpy, pst_results.d_total_entropy, pst_results.d_tm);
+    }
+
+    static void print_tm(boolean i_approx, double d_enthalpy, double d_entropy, double d_tm) {
       /*+------------------------------------+
 	|  print essential results on stdout |
 	+------------------------------------+*/
         if (i_approx == false) {
             OUTPUT.printf("  Enthalpy: %.0f J.mol-1 (%.0f cal.mol-1)\n",
-                    pst_results.d_total_enthalpy * 4.18,
-                    pst_results.d_total_enthalpy);
+                    d_enthalpy * 4.18,
+                    d_enthalpy);
             OUTPUT.printf("  Entropy: %.2f J.mol-1.K-1 (%.2f cal.mol-1.K-1)\n",
-                    pst_results.d_total_entropy * 4.18,
-                    pst_results.d_total_entropy);
+                    d_entropy * 4.18,
+                    d_entropy);
         } else {
             OUTPUT.printf("  Sequence length above threshold: approximative mode\n");
         }
 
-        OUTPUT.printf("  Melting temperature: %5.2f °C\n", new Double(pst_results.d_tm));
+        OUTPUT.printf("  Melting temperature: %5.2f °C\n", new Double(d_tm));
         /* This way of output the results is heavy and not satisfying ... */
     }
 
 
+    /* probes of the sequence reaching the target Tm */
+    static void do_design(MeltingParams pst_param) {
+        new ProbeDesign(pst_param, d_design_tm, i_design_min,
+                i_design_max > 0 ? i_design_max : i_threshold, i_design_first).print(pst_param.ps_sequence, OUTPUT);
+    }
+
+    /* melting curve of the duplex; the header is printed before the first one */
+    static void do_curve(MeltingParams pst_param) {
+        if (pst_curve == null) {
+            pst_curve = new MeltCurve(pst_param, d_curve_min, d_curve_max, d_curve_step, d_assay);
+            if (!i_header_written) pst_curve.print_header(OUTPUT);
+        }
+        pst_curve.print(pst_param.ps_sequence, pst_param.ps_complement, OUTPUT);
+    }
+
+    /* add the duplex to the probes scored with every set */
+    static void do_set_matrix(MeltingParams pst_param) {
+        if (pst_set_matrix == null) {
+            pst_set_matrix = new SetMatrix(pst_param, ps_matrix_sets);
+            if (!i_header_written) pst_set_matrix.print_header(OUTPUT);
+        }
+        pst_set_matrix.add(pst_param.ps_sequence, pst_param.ps_complement, OUTPUT);
+    }
+
+    /* add the duplex to the ones whose Tm distribution is computed */
+    static void do_summary(MeltingParams pst_param) {
+        if (pst_summary == null) {
+            double d_min = d_summary_min, d_max = d_summary_max, d_step = d_summary_step;
+            pst_summary = new BatchPipeline<TmSummary>(pst_param, () -> new TmSummary(d_min, d_max, d_step));
+        }
+        try {
+            pst_summary.add(pst_param.ps_sequence, pst_param.ps_complement);
+        } catch (ExecutionException e) {
+            ERROR.printf(" I was not able to compute the batch: %s\n", e.getCause());
+            exit(-1);
+        }
+    }
+
+    static void print_summary() {
+        try {
+            pst_summary.finish().print(OUTPUT);
+        } catch (ExecutionException e) {
+            ERROR.printf(" I was not able to compute the batch: %s\n", e.getCause());
+            exit(-1);
+        }
+        pst_summary = null;
+    }
+
+    /* add the duplex to the ones among which the best Tm are selected */
+    static void do_top(MeltingParams pst_param) {
+        if (pst_top == null) {
+            int i_k = i_top, i_mode = i_top_mode;
+            double d_target = d_top_target;
+            pst_top = new BatchPipeline<TopK>(pst_param, () -> new TopK(i_k, i_mode, d_target));
+        }
+        try {
+            pst_top.add(pst_param.ps_sequence, pst_param.ps_complement);
+        } catch (ExecutionException e) {
+            ERROR.printf(" I was not able to compute the batch: %s\n", e.getCause());
+            exit(-1);
+        }
+    }
+
+    /* the duplexes selected, the best first, with their results */
+    static void print_top() {
+        try {
+            for (TopK.Entry entry : pst_top.finish().best()) {
+                OUTPUT.printf("  Duplex %d: %s\n", entry.l_record, entry.ps_sequence);
+                Thermodynamic pst_results = entry.pst_results;
+                print_tm(pst_results.i_approx, pst_results.d_total_enthalpy,
+                        pst_results.d_total_entropy, pst_results.d_tm);
+            }
+        } catch (ExecutionException e) {
+            ERROR.printf(" I was not able to compute the batch: %s\n", e.getCause());
+            exit(-1);
+        }
+        pst_top = null;
+    }
+
+    /* add the duplex to the ones sorted by Tm */
+    static void do_sort(MeltingParams pst_param) {
+        try {
+            pst_sort.add(pst_param);
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to sort the batch: %s\n", e.getMessage());
+            exit(-1);
+        }
+    }
+
+    /* the duplexes, the lowest Tm first, with their results (or into the index) */
+    static void print_sort(MeltingParams pst_param) {
+        if (ps_index_dir != null) {
+            index_sort(pst_param);
+            return;
+        }
+        try {
+            pst_sort.finish((entry, ps_sequence) -> {
+                OUTPUT.printf("  Duplex %d: %s\n", entry.l_record, ps_sequence);
+                print_tm(entry.b_approx, entry.d_enthalpy, entry.d_entropy, entry.d_tm);
+            });
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to sort the batch: %s\n", e.getMessage());
+            exit(-1);
+        }
+        pst_sort = null;
+    }
+
+    /* the duplexes sorted into a new segment of the index */
+    static void index_sort(MeltingParams pst_param) {
+        try (TmIndex pst_index = TmIndex.open(Paths.get(ps_index_dir), pst_param)) {
+            TmIndex.Writer writer = pst_index.add();
+            try {
+                pst_sort.finish((entry, ps_sequence) -> writer.add(entry.d_tm, ps_sequence));
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+            writer.commit();
+            if (pst_index.segments() > TmIndex.MAX_SEGMENTS) pst_index.compact();
+            OUTPUT.printf("  Probes indexed: %d (%d in %d segment(s))\n", writer.count(), pst_index.count(),
+                    pst_index.segments());
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to add the batch to the index %s: %s\n", ps_index_dir, e.getMessage());
+            exit(-1);
+        }
+        pst_sort = null;
+    }
+
+    /* add the duplex to the probes of the uncertainty computation */
+    static void do_monte_carlo(MeltingParams pst_param) {
+        if (pst_monte_carlo == null) {
+            pst_monte_carlo = new MonteCarlo(pst_param, d_sigma_h, d_sigma_s);
+            if (ps_sigma_file != null) {
+                try {
+                    pst_monte_carlo.read_sigmas(ps_sigma_file);
+                } catch (Exception e) {
+                    ERROR.printf(" I was not able to read the standard deviations in %s: %s\n", ps_sigma_file, e.getMessage());
+                    exit(-1);
+                }
+            }
+        }
+        pst_monte_carlo.add(pst_param.ps_sequence, pst_param.ps_complement);
+    }
+
     /**************************************
      * Precise the way to use the program *
      **************************************/
@@ -693,6 +1448,102 @@ public class Melting {
         OUTPUT.printf("                    (if already ON, switch if OFF). Default is OFF     \n");
         OUTPUT.printf("     -V             Print the version number                           \n");
         OUTPUT.printf("     -x             Force to compute an approximative tm               \n");
+        OUTPUT.printf("     --approx-file=[XXXXXX] Approximative tm of a whole sequence or FASTA file\n");
+        OUTPUT.printf("                    (possibly gzip or BGZF)                            \n");
+        OUTPUT.printf("     --map=[XXXXXX] Melting map (bedGraph) of the windows of a FASTA file,\n");
+        OUTPUT.printf("                    written in the outfile if -O is given              \n");
+        OUTPUT.printf("     --window=[XXX] Size of the windows of the melting map             \n");
+        OUTPUT.printf("     --step=[XXX]   Step between two windows. Default is the window size\n");
+        OUTPUT.printf("     --wig          Write the melting map as a WIG track               \n");
+        OUTPUT.printf("     --watch=[XXXX] Reload the parameter files of this directory when  \n");
+        OUTPUT.printf("                    they change (long-running and java modes)          \n");
+        OUTPUT.printf("     --design=[XX]  For each start position of the sequence, probe whose\n");
+        OUTPUT.printf("                    nearest-neighbor Tm is the closest to this target  \n");
+        OUTPUT.printf("     --design-min=[XX], --design-max=[XX] Shortest and longest probes.  \n");
+        OUTPUT.printf("                    Defaults are 15 and the threshold (-T)             \n");
+        OUTPUT.printf("     --design-first Shortest probe reaching the target instead         \n");
+        OUTPUT.printf("     --curve=[min:max:step] Fraction of duplex from min to max °C, and \n");
+        OUTPUT.printf("                    free energy at the temperature of the assay        \n");
+        OUTPUT.printf("     --assay=[XX]   Temperature of the assay in °C. Default is 37      \n");
+        OUTPUT.printf("     --monte-carlo=[XXX] Mean, standard deviation and percentiles of the\n");
+        OUTPUT.printf("                    Tm over this number of perturbed parameter sets    \n");
+        OUTPUT.printf("     --sigma=[H:S]  Standard deviation of each enthalpy (cal.mol-1) and\n");
+        OUTPUT.printf("                    entropy (cal.K-1.mol-1). Default is "
+                + MonteCarlo.DEFAULT_SIGMA_H + ":" + MonteCarlo.DEFAULT_SIGMA_S + "\n");
+        OUTPUT.printf("     --sigma-file=[XXXXXX] Standard deviations per entry, one line each:\n");
+        OUTPUT.printf("                    Crick's pair, enthalpy, entropy                    \n");
+        OUTPUT.printf("     --seed=[XXX]   Seed of the perturbations. Default is 1            \n");
+        OUTPUT.printf("     --async-output Write the results of the batch (-B) in a thread of  \n");
+        OUTPUT.printf("                    its own, the computation going on meanwhile        \n");
+        OUTPUT.printf("     --bgzf         Write the results and the outfile compressed, as   \n");
+        OUTPUT.printf("                    BGZF (gzip read by zcat, bgzip, BgzfInput), deflated\n");
+        OUTPUT.printf("                    on several threads; the outfile gets its index .gzi\n");
+        OUTPUT.printf("     --dedup[=XXX]  Compute each distinct duplex of the batch (-B) once,\n");
+        OUTPUT.printf("                    a probe and its reverse complement being the same  \n");
+        OUTPUT.printf("                    duplex when the nn set allows it. At most XXX are  \n");
+        OUTPUT.printf("                    remembered. Not with -v                            \n");
+        OUTPUT.printf("     --dimers=[XXXXXX] Most stable dimer of each pair of primers of the \n");
+        OUTPUT.printf("                    file (one per line, optionally after a name), self-\n");
+        OUTPUT.printf("                    dimers included: free energy at the temperature of \n");
+        OUTPUT.printf("                    the assay and Tm. Written in the outfile if -O     \n");
+        OUTPUT.printf("     --dimers-per-primer Most stable dimer of each primer instead       \n");
+        OUTPUT.printf("     --json         Results as JSON lines, in the outfile if -O is given:\n");
+        OUTPUT.printf("                    a header with the conditions and the sets, then the\n");
+        OUTPUT.printf("                    Tm, enthalpy, entropy, pairs used and warnings of  \n");
+        OUTPUT.printf("                    each duplex                                        \n");
+        OUTPUT.printf("     --set-matrix[=XXX.nn,...] Nearest-neighbor Tm of each probe with \n");
+        OUTPUT.printf("                    each of these sets, one column per set. Default is \n");
+        OUTPUT.printf("                    all the bundled sets                               \n");
+        OUTPUT.printf("     --summary[=XX:XX:XX] Instead of the results of each duplex, the  \n");
+        OUTPUT.printf("                    distribution of their Tm: mean, standard deviation,\n");
+        OUTPUT.printf("                    extremes, quantiles, approximative part and the    \n");
+        OUTPUT.printf("                    histogram of bins min:max:step (default -20:120:1),\n");
+        OUTPUT.printf("                    computed on several threads                        \n");
+        OUTPUT.printf("     --top=[XX]:[XX] Instead of the results of each duplex, the ones of \n");
+        OUTPUT.printf("                    the XX duplexes whose Tm is the closest to a       \n");
+        OUTPUT.printf("                    temperature (--top=50:60), the highest (50:max) or \n");
+        OUTPUT.printf("                    the lowest (50:min), the best first, computed on   \n");
+        OUTPUT.printf("                    several threads                                    \n");
+        OUTPUT.printf("     --sort[=XX]    The results of the batch of --input (one sequence  \n");
+        OUTPUT.printf("                    per line, uncompressed) sorted by Tm, the lowest   \n");
+        OUTPUT.printf("                    first, using at most XX MB of memory (default 256) \n");
+        OUTPUT.printf("                    and temporary files, computed on several threads   \n");
+        OUTPUT.printf("     --index=[XXXXXX] Index of probes by Tm in this directory: the ones \n");
+        OUTPUT.printf("                    of the batch of --input are added (sorted as by    \n");
+        OUTPUT.printf("                    --sort) to the ones computed under the same        \n");
+        OUTPUT.printf("                    conditions, as a new segment                       \n");
+        OUTPUT.printf("     --query=[XX]:[XX] With --index, the probes whose Tm is in this    \n");
+        OUTPUT.printf("                    range under the conditions given, the lowest first \n");
+        OUTPUT.printf("     --compact      With --index, the segments of the conditions given \n");
+        OUTPUT.printf("                    merged into one (done beyond 8 segments as well)   \n");
+        OUTPUT.printf("     --fit=[XXXXXX] The nn set (-A) fitted to the Tm measured in this  \n");
+        OUTPUT.printf("                    file, one duplex per line: sequence, Tm (°C) and   \n");
+        OUTPUT.printf("                    optionally salt and probe concentrations (M); the  \n");
+        OUTPUT.printf("                    entries stay close to the set within --sigma. The  \n");
+        OUTPUT.printf("                    new set is written as a .nn file (-O, or stdout)   \n");
+        OUTPUT.printf("     --input=[XXXXXX] Batch mode (-B) reading the lines of this file    \n");
+        OUTPUT.printf("                    instead of the standard input. A FASTA file gives  \n");
+        OUTPUT.printf("                    the sequence of each record; gzip files are        \n");
+        OUTPUT.printf("                    inflated, on several threads if they are BGZF      \n");
+        OUTPUT.printf("     --workers=[XX] Share the batch of --input between this number of  \n");
+        OUTPUT.printf("                    JVMs, each taking chunks of lines until none is    \n");
+        OUTPUT.printf("                    left; the results are written in the input order   \n");
+        OUTPUT.printf("     --listen=[XX]  The workers may also be JVMs of other hosts, started\n");
+        OUTPUT.printf("                    with --worker=host:port alone: they join on this   \n");
+        OUTPUT.printf("                    [host:]port, and read and write the chunks at the  \n");
+        OUTPUT.printf("                    paths of this host (a filesystem shared at the same\n");
+        OUTPUT.printf("                    place). --workers=0 lets them compute it all       \n");
+        OUTPUT.printf("     --checkpoint[=XXXXXX] Write in this file (default: the outfile   \n");
+        OUTPUT.printf("                    followed by .checkpoint) the progress of a batch of\n");
+        OUTPUT.printf("                    --input into -O, every --checkpoint-every=[XX]     \n");
+        OUTPUT.printf("                    seconds (default 30) and at its end                \n");
+        OUTPUT.printf("     --resume       Go on with the batch from its last checkpoint: the \n");
+        OUTPUT.printf("                    outfile is cut where the checkpoint was written    \n");
+        OUTPUT.printf("     --daemon=[XXXXXX] Stay running, with the parameters read, and run  \n");
+        OUTPUT.printf("                    the command lines sent on this Unix domain socket  \n");
+        OUTPUT.printf("                    by java -cp melting.jar jmelt.Client SOCKET [options]\n");
+        OUTPUT.printf("     --threads=[XX] Clients of the daemon served at once. Default is the\n");
+        OUTPUT.printf("                    number of processors                               \n");
         OUTPUT.printf("  More information is available in the user-guide. Type `man melting'  \n" +
                 "  to access it, or consult one of the melting.xxx files, where xxx     \n" +
                 "  states for lat1 (isolatin1 text), ps (postscript), pdf or html.\n");
@@ -733,7 +1584,7 @@ public class Melting {
             else {
                 ERROR.printf(" It seems that one base of sequence is illegal.\n" +
                         " I cannot compute the complement.\n");
-                System.exit(1);
+                exit(1);
             }
         }
         return ps_complement;
@@ -752,12 +1603,40 @@ public class Melting {
     /* contains the parameters for the regular hybridisations */
     static class dataset {
         String reference[] = new String[NUM_REF];     /* contains the references to the articles */
-        calor_const data[] = new calor_const[NB];     /* parameters for present hybridization*/
+        volatile calor_const entries[];               /* parameters for present hybridization, see data() */
+        final BinarySet.Image image;                  /* binary image the set was read from, or null */
         String file;                                  /* name of the file containing the params */
+        NnTable nn_table;                             /* dense form of the nn parameters, compiled on first use */
 
         dataset() {
+            this(null);
+        }
+
+        dataset(BinarySet.Image image) {
+            this.image = image;
             for (int i = 0; i < reference.length; i++) reference[i] = new String();
-            for (int i = 0; i < data.length; i++) data[i] = new calor_const();
+            if (image == null) {
+                entries = new calor_const[NB];
+                for (int i = 0; i < entries.length; i++) entries[i] = new calor_const();
+            }
+        }
+
+        /* the parameters; the ones of an image are only built for the computations which
+           search them by name (mismatches, dangling ends, counters), a perfect match
+           being summed from the tables of the image */
+        calor_const[] data() {
+            calor_const[] pst_entries = entries;
+            return (pst_entries != null) ? pst_entries : entries_of_image();
+        }
+
+        private synchronized calor_const[] entries_of_image() {
+            if (entries == null) entries = image.entries();
+            return entries;
+        }
+
+        NnTable nn_table() {
+            if (nn_table == null) nn_table = new NnTable(this);
+            return nn_table;
         }
     }
 
@@ -791,6 +1670,20 @@ public class Melting {
             s_sodium_correction = DEFAULT_SALT_CORR;
             /* the length of the correction has to be only 6 characters + eos */
         }
+
+        /* copy sharing the parameter sets, which are never modified once read */
+        public MeltingParams(MeltingParams pst_other) {
+            ps_sequence = pst_other.ps_sequence;
+            ps_complement = pst_other.ps_complement;
+            d_conc_probe = pst_other.d_conc_probe;
+            d_conc_salt = pst_other.d_conc_salt;
+            d_gnat = pst_other.d_gnat;
+            pst_present_nn = pst_other.pst_present_nn;
+            pst_present_mm = pst_other.pst_present_mm;
+            pst_present_de = pst_other.pst_present_de;
+            s_sodium_correction = pst_other.s_sodium_correction;
+            s_outfile = pst_other.s_outfile;
+        }
     }
 
     ;
@@ -800,149 +1693,187 @@ public class Melting {
         public double d_total_enthalpy;  /* enthalpy of the helix-coil transition */
         public double d_total_entropy;   /* entropy of the helix-coil transition */
         public double d_tm;          /* temperature of halt-denaturation */
-        public int i_crick[] = new int[NB];  /* number of each Crick's pair */
-        public int i_mismatch[] = new int[NB];  /* number of each mismach */
-        public int i_dangends[] = new int[NB];  /* number of each dangling end*/
+        public int i_crick[];        /* number of each Crick's pair */
+        public int i_mismatch[];     /* number of each mismach */
+        public int i_dangends[];     /* number of each dangling end*/
+        public boolean i_approx;     /* was the tm computed with the approximative formula? */
+
+        public Thermodynamic() {
+            this(true);
+        }
+
+        /* without the counters (null) if they are not needed */
+        Thermodynamic(boolean b_counts) {
+            if (b_counts) {
+                i_crick = new int[NB];
+                i_mismatch = new int[NB];
+                i_dangends = new int[NB];
+            }
+        }
     }
 
     ;
 
     public static Thermodynamic get_results(MeltingParams pst_param) {
+        return get_results(pst_param, pst_param.ps_sequence, pst_param.ps_complement, true);
+    }
+
+    /* computation for the given duplex. pst_param is only read, so that several threads
+       can share it. i_warn switches off the warnings about the default parameters */
+    public static Thermodynamic get_results(MeltingParams pst_param, String ps_sequence, String ps_complement, boolean i_warn) {
+        return get_results(pst_param, ps_sequence, ps_complement, i_warn, true);
+    }
+
+    /* b_counts false: the counters of the pairs are not filled (they are null for a perfectly
+       matched duplex, which is then summed from the stride tables of NnTable) */
+    static Thermodynamic get_results(MeltingParams pst_param, String ps_sequence, String ps_complement,
+                                     boolean i_warn, boolean b_counts) {
         int i, j;                   /* loop counters */
         boolean i_mismatch;         /* mismatche detector */
         boolean i_dangend;          /* dangling end detector */
         int i_length = 0;           /* length of the sequence */
         int i_proxoffset = 0;       /* offset due to dangling end on the proximal side */
         int i_distoffset = 0;       /* offset due to dangling end on the distal side */
-        Thermodynamic pst_results = new Thermodynamic(); /* contains the results ... */
+        Thermodynamic pst_results = new Thermodynamic(b_counts); /* contains the results ... */
 
-        /* initialisation of result variables */
+        /* initialisation of result variables (the counters are new arrays of zeros) */
         pst_results.d_total_enthalpy = 0.0;
         pst_results.d_total_entropy = 0.0;
-        for (i = 0; i < NB; i++) pst_results.i_crick[i] = 0;
-        for (i = 0; i < NB; i++) pst_results.i_mismatch[i] = 0;
-        for (i = 0; i < NB; i++) pst_results.i_dangends[i] = 0;
         pst_results.d_tm = 0.0;
 
         /*+------------------------------------------------------------------+
           | The length is too important. approximative computation performed |
           +------------------------------------------------------------------+*/
 
-        if (pst_param.ps_sequence.length() > i_threshold)
-            i_approx = true;
-
-        if (i_approx == true) {
-            pst_results.d_tm = tm_approx(pst_param);
+        if (i_approx == true || ps_sequence.length() > i_threshold) {
+            pst_results.i_approx = true;
+            pst_results.d_tm = tm_approx(pst_param, ps_sequence);
             return pst_results;
         }
 
+        /*+----------------------------------------------------------+
+          | perfectly matched duplex, without the counters: four     |
+          | dinucleotides per lookup in the stride tables of NnTable |
+          +----------------------------------------------------------+*/
+
+        if (!b_counts) {
+            double[] d_sums = new double[2];
+            if (pst_param.pst_present_nn.nn_table().sum_perfect(ps_sequence, ps_complement, d_sums)) {
+                pst_results.d_total_enthalpy = d_sums[0];
+                pst_results.d_total_entropy = d_sums[1];
+                pst_results.d_tm = tm_exact(pst_param, pst_results, strlen(ps_sequence));
+                return pst_results;
+            }
+            pst_results = new Thermodynamic(true);  /* detailed path: the counters are filled */
+        }
+
         /*+------------------------------+
           | nearest-neighbor computation |
           +------------------------------+*/
 
         /* The algorithm of screening is heavy, not general enough and does not offer room for evolution. To be changed! */
 
-        if (pst_param.ps_sequence.charAt(0) == '-' || pst_param.ps_complement.charAt(0) == '-') {
+        if (ps_sequence.charAt(0) == '-' || ps_complement.charAt(0) == '-') {
             i_dangend = true;
-            if (i_dnadna == false && i_alt_de == false) {
+            if (i_warn && i_dnadna == false && i_alt_de == false) {
                 OUTPUT.printf("  WARNING: The default dangling ends parameters can efficiently\n" +
                         "  account only for the DNA/DNA hybridisation. You can enter an\n" +
                         "  alternative set of parameters with the option -D\n");
             }
             i_proxoffset++;
             for (i = 0; i < NBDE; i++) { /* seek the dangling-end term */
-                if ((strncmp(pst_param.ps_sequence, pst_param.pst_present_de.data[i].s_crick_pair, 2) == 0)
-                        && (strncmp(pst_param.ps_complement, pst_param.pst_present_de.data[i].s_crick_pair.substring(3), 2) == 0)) {
-                    pst_results.d_total_enthalpy += pst_param.pst_present_de.data[i].d_enthalpy;
-                    pst_results.d_total_entropy += pst_param.pst_present_de.data[i].d_entropy;
+                if ((strncmp(ps_sequence, pst_param.pst_present_de.data()[i].s_crick_pair, 2) == 0)
+                        && (strncmp(ps_complement, pst_param.pst_present_de.data()[i].s_crick_pair.substring(3), 2) == 0)) {
+                    pst_results.d_total_enthalpy += pst_param.pst_present_de.data()[i].d_enthalpy;
+                    pst_results.d_total_entropy += pst_param.pst_present_de.data()[i].d_entropy;
                     pst_results.i_dangends[i]++;
                     i_dangend = false;
                 }
             }
             if (i_dangend == true) {
                 die("NN parameters for %c%c/%c%c not found.\n",
-                        pst_param.ps_sequence.charAt(0), pst_param.ps_sequence.charAt(1),
-                        pst_param.ps_complement.charAt(0), pst_param.ps_complement.charAt(1));
+                        ps_sequence.charAt(0), ps_sequence.charAt(1),
+                        ps_complement.charAt(0), ps_complement.charAt(1));
             }
         }
 
-        if (pst_param.ps_sequence.charAt(strlen(pst_param.ps_sequence) - 1) == '-' || pst_param.ps_complement.charAt(strlen(pst_param.ps_complement) - 1) == '-') {
+        if (ps_sequence.charAt(strlen(ps_sequence) - 1) == '-' || ps_complement.charAt(strlen(ps_complement) - 1) == '-') {
             i_dangend = true;
-            if (i_dnadna == false && i_alt_de == false) {
+            if (i_warn && i_dnadna == false && i_alt_de == false) {
                 OUTPUT.printf("  WARNING: The default dangling ends parameters can efficiently\n" +
                         "  account only for the DNA/DNA hybridisation. You can enter an\n" +
                         "  alternative set of parameters with the option -D\n");
             }
             i_distoffset++;
             for (i = 0; i < NBDE; i++) { /* seek the dangling-end term */
-                if ((strncmp(pst_param.ps_sequence.substring(strlen(pst_param.ps_sequence) - 2), pst_param.pst_present_de.data[i].s_crick_pair, 2) == 0)
-                        && (strncmp(pst_param.ps_complement.substring(strlen(pst_param.ps_sequence) - 2), pst_param.pst_present_de.data[i].s_crick_pair.substring(3), 2) == 0)) {
-                    pst_results.d_total_enthalpy += pst_param.pst_present_de.data[i].d_enthalpy;
-                    pst_results.d_total_entropy += pst_param.pst_present_de.data[i].d_entropy;
+                if ((strncmp(ps_sequence.substring(strlen(ps_sequence) - 2), pst_param.pst_present_de.data()[i].s_crick_pair, 2) == 0)
+                        && (strncmp(ps_complement.substring(strlen(ps_sequence) - 2), pst_param.pst_present_de.data()[i].s_crick_pair.substring(3), 2) == 0)) {
+                    pst_results.d_total_enthalpy += pst_param.pst_present_de.data()[i].d_enthalpy;
+                    pst_results.d_total_entropy += pst_param.pst_present_de.data()[i].d_entropy;
                     pst_results.i_dangends[i]++;
                     i_dangend = false;
                 }
             }
             if (i_dangend == true) {
                 die("NN parameters for %c%c/%c%c not found.\n",
-                        pst_param.ps_sequence.charAt(strlen(pst_param.ps_sequence) - 2),
-                        pst_param.ps_sequence.charAt(strlen(pst_param.ps_sequence) - 1),
-                        pst_param.ps_complement.charAt(strlen(pst_param.ps_sequence) - 2),
-                        pst_param.ps_complement.charAt(strlen(pst_param.ps_sequence) - 1));
+                        ps_sequence.charAt(strlen(ps_sequence) - 2),
+                        ps_sequence.charAt(strlen(ps_sequence) - 1),
+                        ps_complement.charAt(strlen(ps_sequence) - 2),
+                        ps_complement.charAt(strlen(ps_sequence) - 1));
             }
         }
 
         /* determination of initiation terms for proximal extremity */
-        int index_IA = get_index(pst_param.pst_present_nn.data, "IA");
-        int index_IG = get_index(pst_param.pst_present_nn.data, "IG");
-        char prox_char = pst_param.ps_sequence.charAt(i_proxoffset);
-        char dist_char = pst_param.ps_sequence.charAt(strlen(pst_param.ps_sequence) - 1 - i_distoffset);
+        int index_IA = get_index(pst_param.pst_present_nn.data(), "IA");
+        int index_IG = get_index(pst_param.pst_present_nn.data(), "IG");
+        char prox_char = ps_sequence.charAt(i_proxoffset);
+        char dist_char = ps_sequence.charAt(strlen(ps_sequence) - 1 - i_distoffset);
         if (prox_char == 'A' || prox_char == 'T') {
-            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data[index_IA].d_enthalpy;
-            pst_results.d_total_entropy += pst_param.pst_present_nn.data[index_IA].d_entropy;
+            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data()[index_IA].d_enthalpy;
+            pst_results.d_total_entropy += pst_param.pst_present_nn.data()[index_IA].d_entropy;
         }
         if (prox_char == 'G' || prox_char == 'C') {
-            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data[index_IG].d_enthalpy;
-            pst_results.d_total_entropy += pst_param.pst_present_nn.data[index_IG].d_entropy;
+            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data()[index_IG].d_enthalpy;
+            pst_results.d_total_entropy += pst_param.pst_present_nn.data()[index_IG].d_entropy;
         }
         /* determination of initiation terms for distal extremity */
         if (dist_char == 'A' || dist_char == 'T') {
-            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data[index_IA].d_enthalpy;
-            pst_results.d_total_entropy += pst_param.pst_present_nn.data[index_IA].d_entropy;
+            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data()[index_IA].d_enthalpy;
+            pst_results.d_total_entropy += pst_param.pst_present_nn.data()[index_IA].d_entropy;
         }
         if (dist_char == 'G' || dist_char == 'C') {
-            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data[index_IG].d_enthalpy;
-            pst_results.d_total_entropy += pst_param.pst_present_nn.data[index_IG].d_entropy;
+            pst_results.d_total_enthalpy += pst_param.pst_present_nn.data()[index_IG].d_enthalpy;
+            pst_results.d_total_entropy += pst_param.pst_present_nn.data()[index_IG].d_entropy;
         }
-        if (strlen(pst_param.ps_sequence) <= 0) {
+        if (strlen(ps_sequence) <= 0) {
             ERROR.printf(" Oups, the lengh of the sequence seems zero or less ...\n");
-            System.exit(1);
+            exit(1);
         }
 
-        i_length = strlen(pst_param.ps_sequence) - 1 - i_proxoffset - i_distoffset;
+        i_length = strlen(ps_sequence) - 1 - i_proxoffset - i_distoffset;
         for (i = i_proxoffset; i < i_length; i++) {
-            i_mismatch = is_mismatch(pst_param.ps_sequence, pst_param.ps_complement, i)
-                    || is_mismatch(pst_param.ps_sequence, pst_param.ps_complement, i + 1);
+            i_mismatch = is_mismatch(ps_sequence, ps_complement, i)
+                    || is_mismatch(ps_sequence, ps_complement, i + 1);
             if (i_mismatch) {
                 if (i == (i_proxoffset) || i == (i_length - 1)) {
                     ERROR.printf(" The effect of mismatches located on the two extreme positions\n" +
                             " of a duplex are unpredictable (i.e. each case has to be \n" +
                             " considered separately).\n");
-                    System.exit(-1);
+                    exit(-1);
                 }
-                if (i_dnadna == false && i_alt_mm == false) {
+                if (i_warn && i_dnadna == false && i_alt_mm == false) {
                     OUTPUT.printf("  WARNING: The default mismatches parameters can efficiently\n" +
                             "  account only for the DNA/DNA hybridisation. You can enter an\n" +
                             "  alternative set of parameters with the option -M\n");
                 }
                 /* compare with each possible mismatched pair */
                 for (j = 0; j < NBMM; j++) {
-                    if ((strncmp(pst_param.ps_sequence.substring(i), pst_param.pst_present_mm.data[j].s_crick_pair, 2) == 0)
-                            && (strncmp(pst_param.ps_complement.substring(i), pst_param.pst_present_mm.data[j].s_crick_pair.substring(3), 2) == 0)) {
+                    if ((strncmp(ps_sequence.substring(i), pst_param.pst_present_mm.data()[j].s_crick_pair, 2) == 0)
+                            && (strncmp(ps_complement.substring(i), pst_param.pst_present_mm.data()[j].s_crick_pair.substring(3), 2) == 0)) {
                         pst_results.i_mismatch[j]++;
-                        if (pst_param.pst_present_mm.data[j].d_enthalpy != 99999) {
-                            pst_results.d_total_enthalpy += pst_param.pst_present_mm.data[j].d_enthalpy;
-                            pst_results.d_total_entropy += pst_param.pst_present_mm.data[j].d_entropy;
+                        if (pst_param.pst_present_mm.data()[j].d_enthalpy != 99999) {
+                            pst_results.d_total_enthalpy += pst_param.pst_present_mm.data()[j].d_enthalpy;
+                            pst_results.d_total_entropy += pst_param.pst_present_mm.data()[j].d_entropy;
                             i_mismatch = false; /* NN for mismatch identified, return to normality */
                         }
                         break;
@@ -950,26 +1881,26 @@ public class Melting {
                 }
                 if (i_mismatch == true) {
                     die("NN parameters for %c%c/%c%c not found.\n",
-                            pst_param.ps_sequence.charAt(i),
-                            pst_param.ps_sequence.charAt(i + 1),
-                            pst_param.ps_complement.charAt(i),
-                            pst_param.ps_complement.charAt(i + 1));
+                            ps_sequence.charAt(i),
+                            ps_sequence.charAt(i + 1),
+                            ps_complement.charAt(i),
+                            ps_complement.charAt(i + 1));
                 }
             } else
                 /*compare with each possible regular pair*/
                 for (j = 0; j < NBNN; j++)
-                    if (strncmp(pst_param.ps_sequence.substring(i), pst_param.pst_present_nn.data[j].s_crick_pair, 2) == 0) {
+                    if (strncmp(ps_sequence.substring(i), pst_param.pst_present_nn.data()[j].s_crick_pair, 2) == 0) {
                         pst_results.i_crick[j]++;
-                        pst_results.d_total_enthalpy += pst_param.pst_present_nn.data[j].d_enthalpy;
-                        pst_results.d_total_entropy += pst_param.pst_present_nn.data[j].d_entropy;
+                        pst_results.d_total_enthalpy += pst_param.pst_present_nn.data()[j].d_enthalpy;
+                        pst_results.d_total_entropy += pst_param.pst_present_nn.data()[j].d_entropy;
                     }
         }
-        pst_results.d_tm = tm_exact(pst_param, pst_results);
+        pst_results.d_tm = tm_exact(pst_param, pst_results, strlen(ps_sequence));
 
         return pst_results;
     }
 
-    private static int get_index(calor_const[] data, String name) {
+    static int get_index(calor_const[] data, String name) {
         for (int i = 0; i < data.length; i++)
             if (strncmp(data[i].s_crick_pair, "IA", 2) == 0) return i;
         die("Bad index name " + name);
@@ -995,32 +1926,38 @@ public class Melting {
      ********************************************************************/
 
     static double tm_approx(MeltingParams pst_param) {
-        double d_temp = -999;   /* melting temperature */
+        return tm_approx(pst_param, pst_param.ps_sequence);
+    }
+
+    static double tm_approx(MeltingParams pst_param, String ps_sequence) {
         int i_size;             /* size of the duplex */
         int i_numbergc;         /* ... */
-        double d_percentgc;     /* need an explanation? */
 
         /*+--------------------+
           | Size of the duplex |
           +--------------------+*/
 
-        i_size = strlen(pst_param.ps_sequence);
-        if (i_size == 0) {
-            ERROR.printf(" The size of the duplex appears to be null. Therefore I\n" +
-                    " cannot compute approximation of the melting temperature.\n");
-            System.exit(-1);
-        }
+        i_size = strlen(ps_sequence);
 
         /*+----------------+
           | percent of G+C |
           +----------------+*/
 
-        i_numbergc = 0;
-        for (int i = 0; i < pst_param.ps_sequence.length(); i++) {
-            int pc_screen = pst_param.ps_sequence.charAt(i);
-            if (pc_screen == 'G' || pc_screen == 'C') i_numbergc++;
+        i_numbergc = GcBitmap.count_gc(ps_sequence);
+
+        return tm_approx(pst_param, i_size, i_numbergc);
+    }
+
+    static double tm_approx(MeltingParams pst_param, long l_size, long l_numbergc) {
+        double d_temp = -999;   /* melting temperature */
+        double d_percentgc;     /* need an explanation? */
+
+        if (l_size == 0) {      /* size of the duplex */
+            ERROR.printf(" The size of the duplex appears to be null. Therefore I\n" +
+                    " cannot compute approximation of the melting temperature.\n");
+            exit(-1);
         }
-        d_percentgc = ((double) i_numbergc / (double) i_size) * 100;
+        d_percentgc = ((double) l_numbergc / (double) l_size) * 100;
 
         /*+---------------------+
           | melting temperature |
@@ -1030,21 +1967,21 @@ public class Melting {
             d_temp = 81.5
                     + 16.6 * log10(pst_param.d_conc_salt / (1.0 + 0.7 * pst_param.d_conc_salt))
                     + 0.41 * d_percentgc
-                    - 500.0 / (double) i_size;
+                    - 500.0 / (double) l_size;
         } else if (i_dnarna == true) {
             d_temp = 67
                     + 16.6 * log10(pst_param.d_conc_salt / (1.0 + 0.7 * pst_param.d_conc_salt))
                     + 0.8 * d_percentgc
-                    - 500.0 / (double) i_size;
+                    - 500.0 / (double) l_size;
         } else if (i_rnarna == true) {
             d_temp = 78
                     + 16.6 * log10(pst_param.d_conc_salt / (1.0 + 0.7 * pst_param.d_conc_salt))
                     + 0.8 * d_percentgc
-                    - 500.0 / (double) i_size;
+                    - 500.0 / (double) l_size;
         } else {
             ERROR.printf(" I do not find any hybridisation type and therefore\n" +
                     " I cannot compute the approximative melting temperature\n");
-            System.exit(-1);
+            exit(-1);
         }
 
         return d_temp;
@@ -1055,31 +1992,51 @@ public class Melting {
      ******************************************/
 
     static double tm_exact(MeltingParams pst_param, Thermodynamic pst_results) {
+        return tm_exact(pst_param, pst_results, strlen(pst_param.ps_sequence));
+    }
 
-        double d_temp;          /* melting temperature */
-        double d_salt_corr_value = 0.0; /* ... */
+    static double tm_exact(MeltingParams pst_param, Thermodynamic pst_results, int i_length) {
 
         /*+-----------------+
           | salt correction |
           +-----------------+*/
 
-        if (strncmp(pst_param.s_sodium_correction, "san98a", 6) == 0) /* default */ {
-            d_salt_corr_value = 0;
-            pst_results.d_total_entropy += 0.368 * (strlen(pst_param.ps_sequence) - 1) * log(pst_param.d_conc_salt);
-        } else if (strncmp(pst_param.s_sodium_correction, "wet91a", 6) == 0) {
+        pst_results.d_total_entropy += salt_entropy(pst_param, i_length);
+        return tm_exact(pst_param, pst_results.d_total_enthalpy, pst_results.d_total_entropy);
+    }
+
+    /* tm of a duplex whose entropy already contains the salt correction of san98a */
+    static double tm_exact(MeltingParams pst_param, double d_enthalpy, double d_entropy) {
+        double d_temp;          /* melting temperature */
+
+        /* thermodynamic term */
+        d_temp = d_enthalpy / (d_entropy + 1.987 * log(pst_param.d_conc_probe / pst_param.d_gnat))
+                + salt_correction(pst_param)    // salt correction
+                - 273.15;        // convert to centigrade
+
+        return d_temp;
+    }
+
+    /* correction of the entropy for the salt concentration (san98a only) */
+    static double salt_entropy(MeltingParams pst_param, int i_length) {
+        if (strncmp(pst_param.s_sodium_correction, "san98a", 6) == 0) /* default */
+            return 0.368 * (i_length - 1) * log(pst_param.d_conc_salt);
+        return 0.0;
+    }
+
+    /* correction of the tm for the salt concentration (wet91a and san96a) */
+    static double salt_correction(MeltingParams pst_param) {
+        double d_salt_corr_value = 0.0; /* ... */
+
+        if (strncmp(pst_param.s_sodium_correction, "wet91a", 6) == 0) {
             d_salt_corr_value = 16.6 * log10(pst_param.d_conc_salt / (1.0 + 0.7 * pst_param.d_conc_salt)) + 3.85;
         } else if (strncmp(pst_param.s_sodium_correction, "san96a", 6) == 0) {
             d_salt_corr_value = 12.5 * log10(pst_param.d_conc_salt);
         } else if (strncmp(pst_param.s_sodium_correction, "nak99a", 6) == 0) {
             ERROR.printf(" Sorry, not implemented yet\n");
-            System.exit(-1);
+            exit(-1);
         }
-        /* thermodynamic term */
-        d_temp = pst_results.d_total_enthalpy / (pst_results.d_total_entropy + 1.987 * log(pst_param.d_conc_probe / pst_param.d_gnat))
-                + d_salt_corr_value    // salt correction
-                - 273.15;        // convert to centigrade
-
-        return d_temp;
+        return d_salt_corr_value;
     }
 
 
@@ -1111,7 +2068,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'B':     /* read sequences from stdin */
@@ -1127,7 +2084,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'D':         /* an alternative dangling ends set is required */
@@ -1140,7 +2097,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'F':        /* change correction factor for nucleic acid concentration */
@@ -1149,12 +2106,12 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'h':       /* help required */
                 usage();
-                System.exit(0);
+                exit(0);
             case 'H':       /* hybridisation type, max 6 characters*/
                 /* CAUTION strncmp sends '0' when identical */
                 /* All the single character cases are here for compatibility */
@@ -1239,7 +2196,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the hybridisation type %s\n", arg);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'I':       /* An input file is provided */
@@ -1248,7 +2205,7 @@ public class Melting {
                     if ((pF_INFILE = buffered_reader(arg)) == null) {
                         ERROR.printf(" I was not able to open the file %s\n", arg);
                         usage();
-                        System.exit(-1);
+                        exit(-1);
                     } else {
                         /* HERE THERE IS A BUG: DOES NOT READ THE VERY LAST LINE */
                         while (!feof(pF_INFILE)) {
@@ -1262,14 +2219,14 @@ public class Melting {
                             } else {
                                 ERROR.printf(" I did not understand this line of input file: %s\n", ps_inputline);
                                 usage();
-                                System.exit(-1);
+                                exit(-1);
                             }
                         }
                     }
                 } else {
                     ERROR.printf(" I did not understand the file %s\n", arg);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'J':     /* code is used by outside java program */
@@ -1286,12 +2243,12 @@ public class Melting {
                     ERROR.printf(" I did not understand your salt correction\n" +
                             " Please read the manual to find the available corrections\n");
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'L':       /* please give me the legal notice */
                 legal();
-                System.exit(0);
+                exit(0);
             case 'M':       /* Alternative Nearest-neighbor set for mismatches */
                 if (arg.length() != 0 && Character.isLetterOrDigit(arg.charAt(0))) {
                     i_alt_mm = true;
@@ -1302,7 +2259,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'N':
@@ -1313,7 +2270,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'O':
@@ -1379,7 +2336,7 @@ public class Melting {
                     } else {
                         ERROR.printf(" I was not able to treat the option %s\n", ps_input);
                         usage();
-                        System.exit(-1);
+                        exit(-1);
                     }
                 }
                 break;
@@ -1391,13 +2348,13 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'p':
                 /* displays the path where to look for the set of parameters and quit */
                 OUTPUT.printf("path: jar resources\n");
-                System.exit(0);
+                exit(0);
                 break;
             case 'q':
                 /* no interactive correction of parameters */
@@ -1413,7 +2370,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'T':
@@ -1423,7 +2380,7 @@ public class Melting {
                 } else {
                     ERROR.printf(" I did not understand the option %s\n", ps_input);
                     usage();
-                    System.exit(-1);
+                    exit(-1);
                 }
                 break;
             case 'v':
@@ -1435,25 +2392,348 @@ public class Melting {
             case 'V':
                 /* Displays version and quit */
                 OUTPUT.printf("Version: %3.1f\n", VERSION);
-                System.exit(0);
+                exit(0);
             case 'x':
                 /* Force approximative tm computation */
                 i_approx = true;
                 break;
+            case '-':
+                /* long options */
+                pst_in_param = decode_long_option(pst_in_param, ps_input);
+                break;
             default:
                 ERROR.printf(" I did not understand the option %s\n", ps_input);
                 usage();
-                System.exit(-1);
+                exit(-1);
+        }
+        return pst_in_param;
+    }
+
+    /********************************************
+     * Decode a long option, i.e. --name[=value] *
+     ********************************************/
+
+    static MeltingParams decode_long_option(MeltingParams pst_in_param, String ps_input) {
+        int i_equal = ps_input.indexOf('=');
+        String ps_name = (i_equal < 0) ? ps_input.substring(2) : ps_input.substring(2, i_equal);
+        String arg = (i_equal < 0) ? "" : ps_input.substring(i_equal + 1);
+
+        if (strcmp(ps_name, "approx-file") == 0) {
+            /* approximative tm of a whole sequence file */
+            if (strlen(arg) != 0) {
+                ps_approx_file = arg;
+                i_approx = true;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "map") == 0) {
+            /* melting map of the windows of a FASTA file */
+            if (strlen(arg) != 0) {
+                ps_map_file = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "window") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0))) {
+                i_window = Integer.parseInt(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "step") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0))) {
+                i_step = Integer.parseInt(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "wig") == 0) {
+            i_wig = true;
+        } else if (strcmp(ps_name, "design") == 0) {
+            /* target Tm of the probes to design */
+            if (arg.length() != 0 && (Character.isDigit(arg.charAt(0)) || arg.charAt(0) == '-')) {
+                d_design_tm = Double.parseDouble(arg);
+                i_design = true;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "design-min") == 0 || strcmp(ps_name, "design-max") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0))) {
+                if (strcmp(ps_name, "design-min") == 0) i_design_min = Integer.parseInt(arg);
+                else i_design_max = Integer.parseInt(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "design-first") == 0) {
+            i_design_first = true;
+        } else if (strcmp(ps_name, "curve") == 0) {
+            /* min:max:step, in °C */
+            String[] ps_fields = arg.split(":");
+            try {
+                if (ps_fields.length != 3) throw new NumberFormatException();
+                d_curve_min = Double.parseDouble(ps_fields[0]);
+                d_curve_max = Double.parseDouble(ps_fields[1]);
+                d_curve_step = Double.parseDouble(ps_fields[2]);
+                if (d_curve_step <= 0 || d_curve_max < d_curve_min) throw new NumberFormatException();
+                i_curve = true;
+            } catch (NumberFormatException e) {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "assay") == 0) {
+            /* temperature of the assay, for the free energy */
+            if (arg.length() != 0 && (Character.isDigit(arg.charAt(0)) || arg.charAt(0) == '-')) {
+                d_assay = Double.parseDouble(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "monte-carlo") == 0 || strcmp(ps_name, "seed") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0))) {
+                if (strcmp(ps_name, "seed") == 0) l_seed = Long.parseLong(arg);
+                else i_monte_carlo = Integer.parseInt(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "sigma") == 0) {
+            /* H:S, default standard deviations of the entries */
+            String[] ps_fields = arg.split(":");
+            try {
+                if (ps_fields.length != 2) throw new NumberFormatException();
+                d_sigma_h = Double.parseDouble(ps_fields[0]);
+                d_sigma_s = Double.parseDouble(ps_fields[1]);
+                if (d_sigma_h < 0 || d_sigma_s < 0) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "sigma-file") == 0) {
+            if (strlen(arg) != 0) {
+                ps_sigma_file = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "dedup") == 0) {
+            if (arg.length() == 0 || Character.isDigit(arg.charAt(0))) {
+                if (arg.length() != 0) i_dedup_max = Integer.parseInt(arg);
+                i_dedup = true;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "dimers") == 0) {
+            /* primers screened for dimers */
+            if (strlen(arg) != 0) {
+                ps_dimers_file = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "dimers-per-primer") == 0) {
+            i_dimers_per_primer = true;
+        } else if (strcmp(ps_name, "json") == 0) {
+            i_json = true;
+        } else if (strcmp(ps_name, "set-matrix") == 0) {
+            /* sets applied at once */
+            ps_matrix_sets = (arg.length() != 0) ? arg.split(",") : SetMatrix.BUNDLED;
+        } else if (strcmp(ps_name, "summary") == 0) {
+            /* bins of the histogram: min:max:step */
+            if (arg.length() != 0) {
+                String[] ps_bins = arg.split(":");
+                try {
+                    d_summary_min = Double.parseDouble(ps_bins[0]);
+                    d_summary_max = Double.parseDouble(ps_bins[1]);
+                    d_summary_step = Double.parseDouble(ps_bins[2]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    d_summary_step = 0;
+                }
+                if (ps_bins.length != 3 || d_summary_step <= 0 || d_summary_max <= d_summary_min) {
+                    ERROR.printf(" I did not understand the option %s\n", ps_input);
+                    usage();
+                    exit(-1);
+                }
+            }
+            i_summary = true;
+        } else if (strcmp(ps_name, "top") == 0) {
+            /* k:T, k:max or k:min */
+            String[] ps_top = arg.split(":");
+            try {
+                i_top = Integer.parseInt(ps_top[0]);
+                if (ps_top[1].equals("max")) i_top_mode = TopK.HIGHEST;
+                else if (ps_top[1].equals("min")) i_top_mode = TopK.LOWEST;
+                else d_top_target = Double.parseDouble(ps_top[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                i_top = 0;
+            }
+            if (ps_top.length != 2 || i_top <= 0) {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "sort") == 0) {
+            /* memory of the sort, in MB */
+            if (arg.length() != 0) {
+                if (Character.isDigit(arg.charAt(0)) && Long.parseLong(arg) > 0) {
+                    l_sort_memory = Long.parseLong(arg);
+                } else {
+                    ERROR.printf(" I did not understand the option %s\n", ps_input);
+                    usage();
+                    exit(-1);
+                }
+            }
+            i_sort = true;
+        } else if (strcmp(ps_name, "index") == 0) {
+            /* directory of the index */
+            if (strlen(arg) != 0) {
+                ps_index_dir = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "query") == 0) {
+            /* a:b */
+            String[] ps_range = arg.split(":");
+            try {
+                d_query_low = Double.parseDouble(ps_range[0]);
+                d_query_high = Double.parseDouble(ps_range[1]);
+                i_query = ps_range.length == 2 && d_query_low <= d_query_high;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                i_query = false;
+            }
+            if (!i_query) {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "compact") == 0) {
+            i_compact = true;
+        } else if (strcmp(ps_name, "fit") == 0) {
+            /* file of measured Tm */
+            if (strlen(arg) != 0) {
+                ps_fit_file = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "input") == 0 || strcmp(ps_name, "worker") == 0
+                || strcmp(ps_name, "listen") == 0) {
+            /* file of the batch; socket or host:port of the coordinator; where the coordinator listens */
+            if (strlen(arg) != 0) {
+                if (strcmp(ps_name, "input") == 0) ps_input_file = arg;
+                else if (strcmp(ps_name, "worker") == 0) ps_worker_socket = arg;
+                else ps_listen = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "workers") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0))) {
+                i_workers = Integer.parseInt(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "checkpoint") == 0 || strcmp(ps_name, "resume") == 0) {
+            /* progress of the batch, in the file given or beside the outfile */
+            if (strcmp(ps_name, "resume") == 0) i_resume = true;
+            else if (strlen(arg) != 0) ps_checkpoint_file = arg;
+            i_checkpoint = true;
+        } else if (strcmp(ps_name, "checkpoint-every") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0)) && Long.parseLong(arg) > 0) {
+                l_checkpoint_period = Long.parseLong(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "daemon") == 0) {
+            /* socket of the daemon */
+            if (strlen(arg) != 0) {
+                ps_daemon_socket = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "threads") == 0) {
+            if (arg.length() != 0 && Character.isDigit(arg.charAt(0)) && Integer.parseInt(arg) > 0) {
+                i_daemon_threads = Integer.parseInt(arg);
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else if (strcmp(ps_name, "async-output") == 0) {
+            i_async_output = true;
+        } else if (strcmp(ps_name, "bgzf") == 0) {
+            i_bgzf = true;
+        } else if (strcmp(ps_name, "watch") == 0) {
+            /* directory of parameter files reloaded when they change */
+            if (strlen(arg) != 0) {
+                ps_watch_dir = arg;
+            } else {
+                ERROR.printf(" I did not understand the option %s\n", ps_input);
+                usage();
+                exit(-1);
+            }
+        } else {
+            ERROR.printf(" I did not understand the option %s\n", ps_input);
+            usage();
+            exit(-1);
         }
         return pst_in_param;
     }
 
+    /*+------------------------------------------------------------------+
+      | a set read once per daemon engine, read again if its file changes |
+      | (the sets are not modified once read, so the runs can share them) |
+      +------------------------------------------------------------------+*/
+
+    static dataset kept_set(String ps_kind, String ps_set, java.util.function.Function<String, dataset> reader) {
+        String ps_key = ps_kind + ":" + ps_set + ":" + new File("/" + ps_set).lastModified();
+        dataset pst_set = pst_kept_sets.get(ps_key);
+        if (pst_set == null) {
+            pst_set = reader.apply(ps_set);
+            pst_kept_sets.put(ps_key, pst_set);
+        }
+        return pst_set;
+    }
+
     /***********************************
      * read a file containing a nn set *
      ***********************************/
 
     static dataset read_nn(String ps_nn_set) {
+        if (pst_kept_sets != null) return kept_set("nn", ps_nn_set, Melting::load_nn);
+        return load_nn(ps_nn_set);
+    }
+
+    private static dataset load_nn(String ps_nn_set) {
         dataset pst_current_nn;    /* pointer on a structure containing a set of nn_param */
+        dataset pst_binary;        /* set read from a compiled binary image */
         BufferedReader pF_nn_file; /* handle of file containing a set of nn param */
         String s_line;             /* contains a line of a file or of stdin */
         int pc_line_ptr;           /* pointer moving along an input line */
@@ -1470,6 +2750,9 @@ public class Melting {
         ps_nn_path = "/" + ps_nn_set;
         /* construct the complete name of the nn set file */
 
+        if ((pst_binary = BinarySet.lookup(ps_nn_path, BinarySet.KIND_NN)) != null)
+            return pst_binary;   /* compiled binary set */
+
         if ((pF_nn_file = buffered_reader(ps_nn_path)) == null) {
             /* cannot open file containing alternative nn set in this path */
             ERROR.printf(" I was not able to open the file %s,\n" +
@@ -1503,14 +2786,14 @@ public class Melting {
                     || tmp == 'I' || tmp == 'i') {
                 if (i_crickcount <= NB) {
                     String[] stuff = words(" \t", s_line);
-                    pst_current_nn.data[i_crickcount].s_crick_pair = new String(stuff[0]);
-                    pst_current_nn.data[i_crickcount].d_enthalpy = to_double(stuff[1]);
-                    pst_current_nn.data[i_crickcount].d_entropy = to_double(stuff[2]);
+                    pst_current_nn.data()[i_crickcount].s_crick_pair = new String(stuff[0]);
+                    pst_current_nn.data()[i_crickcount].d_enthalpy = to_double(stuff[1]);
+                    pst_current_nn.data()[i_crickcount].d_entropy = to_double(stuff[2]);
                     i_crickcount++;
                 } else {
                     ERROR.printf(" I detected too many Crick's pairs in that file.\n" +
                             " Only 16 pairs and two initiation factors are allowed.\n");
-                    System.exit(-1);
+                    exit(-1);
                 }
             }
         }
@@ -1518,7 +2801,13 @@ public class Melting {
     }
 
     static dataset read_mismatches(String ps_mm_set) {
+        if (pst_kept_sets != null) return kept_set("mm", ps_mm_set, Melting::load_mismatches);
+        return load_mismatches(ps_mm_set);
+    }
+
+    private static dataset load_mismatches(String ps_mm_set) {
         dataset pst_current_mm;     /* pointer on a structure containing a set of mismatches NN param */
+        dataset pst_binary;        /* set read from a compiled binary image */
         BufferedReader pF_mm_file;  /* handle of file containing a set of mismatches NN param */
         String s_line;              /* contains a line of a file or of stdin */
         int pc_line_ptr;            /* pointer moving along an input line */
@@ -1539,6 +2828,9 @@ public class Melting {
         ps_mm_path = "/" + ps_mm_set;
         /* construct the complete name of the mm set file */
 
+        if ((pst_binary = BinarySet.lookup(ps_mm_path, BinarySet.KIND_MM)) != null)
+            return pst_binary;   /* compiled binary set */
+
         if ((pF_mm_file = buffered_reader(ps_mm_path)) == null) {
             /* cannot open file containing alternative mm set in this path */
 
@@ -1568,14 +2860,14 @@ public class Melting {
                     || tmp == 'U' || tmp == 'u') {
                 if (i_crickcount <= NB) {
                     String[] stuff = words(" \t", s_line);
-                    pst_current_mm.data[i_crickcount].s_crick_pair = new String(stuff[0]);
-                    pst_current_mm.data[i_crickcount].d_enthalpy = to_double(stuff[1]);
-                    pst_current_mm.data[i_crickcount].d_entropy = to_double(stuff[2]);
+                    pst_current_mm.data()[i_crickcount].s_crick_pair = new String(stuff[0]);
+                    pst_current_mm.data()[i_crickcount].d_enthalpy = to_double(stuff[1]);
+                    pst_current_mm.data()[i_crickcount].d_entropy = to_double(stuff[2]);
                     i_crickcount++;
                 } else {
                     ERROR.printf(" I detected too many Crick's pairs in that file.\n" +
                             " Only %d mismatch pairs are allowed.\n", new Integer(NB));
-                    System.exit(-1);
+                    exit(-1);
                 }
             }
         }
@@ -1583,7 +2875,13 @@ public class Melting {
     }
 
     static dataset read_dangends(String ps_de_set) {
+        if (pst_kept_sets != null) return kept_set("de", ps_de_set, Melting::load_dangends);
+        return load_dangends(ps_de_set);
+    }
+
+    private static dataset load_dangends(String ps_de_set) {
         dataset pst_current_de;    /* pointer on a structure containing a set of dangling ends NN param */
+        dataset pst_binary;        /* set read from a compiled binary image */
         BufferedReader pF_de_file; /* handle of file containing a set of dangling ends  NN param */
         String s_line;             /* contains a line of a file or of stdin */
         int pc_line_ptr;           /* pointer moving along an input line */
@@ -1605,6 +2903,9 @@ public class Melting {
         ps_de_path = "/" + ps_de_set;
         /* construct the complete name of the de set file */
 
+        if ((pst_binary = BinarySet.lookup(ps_de_path, BinarySet.KIND_DE)) != null)
+            return pst_binary;   /* compiled binary set */
+
         if ((pF_de_file = buffered_reader(ps_de_path)) == null) {
             /* cannot open file containing alternative nn set in this path */
 
@@ -1636,14 +2937,14 @@ public class Melting {
                     || tmp == '-') {
                 if (i_crickcount <= NB) {
                     String[] stuff = words(" \t", s_line);
-                    pst_current_de.data[i_crickcount].s_crick_pair = new String(stuff[0]);
-                    pst_current_de.data[i_crickcount].d_enthalpy = to_double(stuff[1]);
-                    pst_current_de.data[i_crickcount].d_entropy = to_double(stuff[2]);
+                    pst_current_de.data()[i_crickcount].s_crick_pair = new String(stuff[0]);
+                    pst_current_de.data()[i_crickcount].d_enthalpy = to_double(stuff[1]);
+                    pst_current_de.data()[i_crickcount].d_entropy = to_double(stuff[2]);
                     i_crickcount++;
                 } else {
                     ERROR.printf(" I detected too many Crick's pairs in that file.\n" +
                             " Only %d mismatch pairs are allowed.\n", new Integer(NB));
-                    System.exit(-1);
+                    exit(-1);
                 }
             }
         }
@@ -1761,18 +3062,31 @@ public class Melting {
         }
     }
 
+    /* a line of the batch input; an error (e.g. a damaged compressed file) ends the program */
+    private static String read_input(BufferedReader input) {
+        try {
+            return input.readLine();
+        } catch (IOException e) {
+            ERROR.printf(" I was not able to read the input: %s\n", e.getMessage());
+            exit(-1);
+            return null;
+        }
+    }
+
+    /* a line of a parameter file; an error is thrown, so that a reload keeps the previous sets */
     private static String readline(BufferedReader input) {
         try {
             return input.readLine();
         } catch (IOException e) {
+            die("I was not able to read the parameters: %s", e.getMessage());
             return null;
         }
     }
 
     private static PrintStream print_stream(String s_outfile) {
         try {
-            return new PrintStream(s_outfile);
-        } catch (FileNotFoundException e) {
+            return i_bgzf ? BgzfOutput.open(s_outfile) : new PrintStream(s_outfile);
+        } catch (IOException e) {
             return null;
         }
     }
@@ -1782,9 +3096,10 @@ public class Melting {
     }
 
     public static double get_tm(String primer) {
+        if (watcher != null) watcher.install(pst_param);
         pst_param.ps_sequence = primer;
         pst_param.ps_complement = make_complement(pst_param.ps_sequence);
-        Thermodynamic pst_results = get_results(pst_param);
+        Thermodynamic pst_results = get_results(pst_param, pst_param.ps_sequence, pst_param.ps_complement, true, false);
         return pst_results.d_tm;
     }
 }
@@ -0,0 +1,75 @@
+
+package jmelt;
+
+import java.util.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: MeltingResult.java                                                   *
+ * Aim : the results of a duplex as values rather than text: what the       *
+ *       default output prints (Tm, enthalpy, entropy, method), the pairs    *
+ *       used with their number (sparse, see PairCounts) and the warnings    *
+ *       that get_results would print. Written by JsonLines (--json).        *
+ *                                                                            *
+ *       What is the same for all the duplexes of a run, the sets with      *
+ *       their references and parameters, is not repeated here: it is the   *
+ *       header record of JsonLines.                                          *
+ ******************************************************************************/
+
+public class MeltingResult {
+
+    public final String ps_id;           /* number of the record in the batch, from 1 */
+    public final String ps_sequence;
+    public final String ps_complement;
+    public final boolean b_approx;       /* approximative formula instead of the nearest neighbors */
+    public final double d_tm;            /* °C */
+    public final double d_enthalpy;      /* cal.mol-1, 0 in approximative mode */
+    public final double d_entropy;       /* cal.K-1.mol-1, with the salt correction */
+    public final String[] ps_pairs;      /* entries of the sets used, empty in approximative mode */
+    public final int[] i_counts;         /* number of times each of them is used */
+    public final List<String> warnings;
+
+    MeltingResult(String ps_id, String ps_sequence, String ps_complement, Thermodynamic pst_results,
+                  String[] ps_pairs, int[] i_counts, List<String> warnings) {
+        this.ps_id = ps_id;
+        this.ps_sequence = ps_sequence;
+        this.ps_complement = ps_complement;
+        this.b_approx = pst_results.i_approx;
+        this.d_tm = pst_results.d_tm;
+        this.d_enthalpy = pst_results.d_total_enthalpy;
+        this.d_entropy = pst_results.d_total_entropy;
+        this.ps_pairs = ps_pairs;
+        this.i_counts = i_counts;
+        this.warnings = warnings;
+    }
+
+    /* results of the duplex ps_sequence/ps_complement */
+    public static MeltingResult of(MeltingParams pst_param, String ps_id, String ps_sequence, String ps_complement) {
+        Thermodynamic pst_results = Melting.get_results(pst_param, ps_sequence, ps_complement, false, true);
+        if (pst_results.i_approx)
+            return new MeltingResult(ps_id, ps_sequence, ps_complement, pst_results,
+                    new String[0], new int[0], Collections.<String>emptyList());
+
+        PairCounts pst_counts = PairCounts.of(pst_param, pst_results, ps_sequence, ps_complement);
+        String[] ps_pairs = new String[pst_counts.i_entry.length];
+        boolean b_mismatch = false, b_dangend = false;
+        for (int k = 0; k < ps_pairs.length; k++) {
+            int i_entry = pst_counts.i_entry[k];
+            ps_pairs[k] = PairCounts.name(pst_param, i_entry);
+            if (i_entry >= PairCounts.DE) b_dangend = true;
+            else if (i_entry >= PairCounts.MM) b_mismatch = true;
+        }
+
+        /* the warnings of get_results, once each */
+        List<String> warnings = new ArrayList<String>(0);
+        if (b_dangend && !Melting.i_dnadna && !Melting.i_alt_de)
+            warnings.add("The default dangling ends parameters can efficiently account only for the DNA/DNA"
+                    + " hybridisation. You can enter an alternative set of parameters with the option -D");
+        if (b_mismatch && !Melting.i_dnadna && !Melting.i_alt_mm)
+            warnings.add("The default mismatches parameters can efficiently account only for the DNA/DNA"
+                    + " hybridisation. You can enter an alternative set of parameters with the option -M");
+        return new MeltingResult(ps_id, ps_sequence, ps_complement, pst_results, ps_pairs, pst_counts.i_count, warnings);
+    }
+}
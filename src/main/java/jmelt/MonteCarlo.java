@@ -0,0 +1,405 @@
+
+package jmelt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: MonteCarlo.java                                                      *
+ * Aim : uncertainty of the Tm due to the uncertainty of the parameters.     *
+ *       N perturbed copies of the sets are drawn, each entry receiving a    *
+ *       gaussian error of standard deviation sigma on its enthalpy and on   *
+ *       its entropy (independently), and the Tm of every probe of the batch *
+ *       is computed again with each copy. As the same copy is used for all  *
+ *       the probes, their errors are correlated as they would be with real  *
+ *       parameters. The entries which are one parameter read on either     *
+ *       strand (AA and TT...) receive the same error (PairCounts.classes).  *
+ *                                                                            *
+ *       The counts of the entries used by each probe (PairCounts) are taken *
+ *       once, so that a sample costs a dot product per probe. The samples   *
+ *       go by batches of BATCH: the copies of a batch are drawn by the      *
+ *       tasks of a fork/join pool, the generator being split with them,     *
+ *       then the probes are shared by the tasks, each probe receiving its   *
+ *       Tm in the order of the samples. For a given seed, the results do    *
+ *       not depend on the number of threads.                                 *
+ *                                                                            *
+ *       Nothing is kept per sample: each probe has its running mean and     *
+ *       variance (Welford) and a P2 sketch of its percentiles (Jain and     *
+ *       Chlamtac, extended to several quantiles), whose markers are exact   *
+ *       up to MARKERS samples. The memory grows with the probes only.       *
+ ******************************************************************************/
+
+public class MonteCarlo {
+
+    static final int LEAF = 256;                         /* copies drawn by a task */
+    static final int PROBES_LEAF = 64;                   /* probes of a task */
+    static final int BATCH = 1024;                       /* copies kept at once */
+    static final double[] PERCENTILES = {2.5, 5, 50, 95, 97.5};
+    static final double DEFAULT_SIGMA_H = 200;           /* cal.mol-1 */
+    static final double DEFAULT_SIGMA_S = 0.6;           /* cal.K-1.mol-1 */
+
+    final MeltingParams pst_param;     /* snapshot of the parameters, shared by all the probes */
+    final double[] d_sigma_h = new double[PairCounts.SIZE];
+    final double[] d_sigma_s = new double[PairCounts.SIZE];
+    final List<String> sequences = new ArrayList<String>();
+    final List<PairCounts> counts = new ArrayList<PairCounts>();
+    final List<Double> tms = new ArrayList<Double>();
+
+    public MonteCarlo(MeltingParams pst_param, double d_sigma_h, double d_sigma_s) {
+        this.pst_param = new MeltingParams(pst_param);
+        Arrays.fill(this.d_sigma_h, d_sigma_h);
+        Arrays.fill(this.d_sigma_s, d_sigma_s);
+    }
+
+    /*+--------------------------------------------------------------+
+      | standard deviations per entry, one line per entry as in the  |
+      | parameter files: Crick's pair, sigma enthalpy, sigma entropy |
+      +--------------------------------------------------------------+*/
+
+    public void read_sigmas(String ps_file) throws IOException {
+        dataset[] pst_sets = {pst_param.pst_present_nn, pst_param.pst_present_mm, pst_param.pst_present_de};
+        try (BufferedReader in = new BufferedReader(new FileReader(ps_file))) {
+            String ps_line;
+            int i_line = 0;
+            while ((ps_line = in.readLine()) != null) {
+                i_line++;
+                ps_line = ps_line.trim();
+                if (ps_line.length() == 0 || ps_line.startsWith("/*") || ps_line.startsWith("#")) continue;
+                String[] ps_fields = ps_line.split("\\s+");
+                if (ps_fields.length != 3)
+                    throw new IOException(ps_file + ":" + i_line + ": expected a pair and two standard deviations");
+                boolean b_found = false;
+                for (int i_set = 0; i_set < 3; i_set++) {
+                    if (pst_sets[i_set] == null) continue;
+                    for (int j = 0; j < Melting.NB; j++) {
+                        if (pst_sets[i_set].data()[j] == null || !ps_fields[0].equals(pst_sets[i_set].data()[j].s_crick_pair))
+                            continue;
+                        d_sigma_h[i_set * Melting.NB + j] = Double.parseDouble(ps_fields[1]);
+                        d_sigma_s[i_set * Melting.NB + j] = Double.parseDouble(ps_fields[2]);
+                        b_found = true;
+                    }
+                }
+                if (!b_found)
+                    throw new IOException(ps_file + ":" + i_line + ": " + ps_fields[0] + " is not in the parameter sets");
+            }
+        }
+    }
+
+    /* a probe of the batch; its nominal Tm is computed at once */
+    public void add(String ps_sequence, String ps_complement) {
+        Thermodynamic pst_results = Melting.get_results(pst_param, ps_sequence, ps_complement, false);
+        sequences.add(ps_sequence);
+        counts.add(pst_results.i_approx ? null : PairCounts.of(pst_param, pst_results, ps_sequence, ps_complement));
+        tms.add(pst_results.d_tm);
+    }
+
+    /*+--------------------------------------------------------------+
+      | statistics of the Tm of each probe over i_samples perturbed  |
+      | sets; null for a probe in approximative mode. Only the       |
+      | entries used by at least a probe are drawn; they are         |
+      | renumbered densely, and so are the counts of the probes.     |
+      +--------------------------------------------------------------+*/
+
+    public Statistics[] run(int i_samples, long l_seed) {
+        int i_probes = counts.size();
+        int[] i_local = new int[PairCounts.SIZE];
+        Arrays.fill(i_local, -1);
+        int i_used = 0;
+        for (PairCounts pst_counts : counts)
+            if (pst_counts != null)
+                for (int i_entry : pst_counts.i_entry)
+                    if (i_local[i_entry] < 0) i_local[i_entry] = i_used++;
+
+        double[] d_h = PairCounts.values(pst_param, false);
+        double[] d_s = PairCounts.values(pst_param, true);
+        int[] i_classes = PairCounts.classes(pst_param);
+        int[] i_local_class = new int[PairCounts.SIZE];   /* class of an entry -> its dense number */
+        Arrays.fill(i_local_class, -1);
+        Model model = new Model(i_used, i_probes);
+        for (int i = 0; i < PairCounts.SIZE; i++) {
+            if (i_local[i] < 0) continue;
+            model.d_h[i_local[i]] = d_h[i];
+            model.d_s[i_local[i]] = d_s[i];
+            model.d_sigma_h[i_local[i]] = d_sigma_h[i];
+            model.d_sigma_s[i_local[i]] = d_sigma_s[i];
+            if (i_local_class[i_classes[i]] < 0) i_local_class[i_classes[i]] = model.i_classes++;
+            model.i_class[i_local[i]] = i_local_class[i_classes[i]];
+        }
+        double d_log = 1.987 * Math.log(pst_param.d_conc_probe / pst_param.d_gnat);
+        model.d_shift = Melting.salt_correction(pst_param) - 273.15;
+        Statistics[] pst_stats = new Statistics[i_probes];
+        for (int p = 0; p < i_probes; p++) {
+            PairCounts pst_counts = counts.get(p);
+            if (pst_counts == null) continue;
+            model.i_entry[p] = new int[pst_counts.i_entry.length];
+            for (int k = 0; k < pst_counts.i_entry.length; k++)
+                model.i_entry[p][k] = i_local[pst_counts.i_entry[k]];
+            model.i_count[p] = pst_counts.i_count;
+            model.d_offset[p] = Melting.salt_entropy(pst_param, pst_counts.i_length) + d_log;
+            pst_stats[p] = new Statistics();
+        }
+
+        SplittableRandom random = new SplittableRandom(l_seed);
+        double[][] d_copy_h = new double[Math.min(BATCH, i_samples)][i_used];   /* the copies of a batch */
+        double[][] d_copy_s = new double[d_copy_h.length][i_used];
+        for (int i_batch = 0; i_batch < i_samples; i_batch += BATCH) {
+            int i_copies = Math.min(BATCH, i_samples - i_batch);
+            ForkJoinPool.commonPool().invoke(new Copies(model, d_copy_h, d_copy_s, 0, i_copies, random.split()));
+            ForkJoinPool.commonPool().invoke(new Samples(model, d_copy_h, d_copy_s, i_copies, pst_stats, 0, i_probes));
+        }
+        return pst_stats;
+    }
+
+    /* what the tasks need, in arrays */
+    static class Model {
+        final double[] d_h, d_s, d_sigma_h, d_sigma_s;   /* per used entry */
+        final int[] i_class;                              /* per used entry: the draw it takes */
+        int i_classes;                                    /* draws per copy of the sets */
+        final int[][] i_entry;                            /* per probe, null in approximative mode */
+        final int[][] i_count;
+        final double[] d_offset;                          /* salt entropy and concentration term */
+        double d_shift;                                   /* salt correction of the tm, minus 273.15 */
+
+        Model(int i_used, int i_probes) {
+            d_h = new double[i_used];
+            d_s = new double[i_used];
+            d_sigma_h = new double[i_used];
+            d_sigma_s = new double[i_used];
+            i_class = new int[i_used];
+            i_entry = new int[i_probes][];
+            i_count = new int[i_probes][];
+            d_offset = new double[i_probes];
+        }
+    }
+
+    /* the copies [i_from, i_to) of a batch: one gaussian draw per class of entries */
+    static class Copies extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final Model model;
+        final double[][] d_copy_h, d_copy_s;
+        final int i_from, i_to;
+        final SplittableRandom random;
+
+        Copies(Model model, double[][] d_copy_h, double[][] d_copy_s, int i_from, int i_to, SplittableRandom random) {
+            this.model = model;
+            this.d_copy_h = d_copy_h;
+            this.d_copy_s = d_copy_s;
+            this.i_from = i_from;
+            this.i_to = i_to;
+            this.random = random;
+        }
+
+        protected void compute() {
+            if (i_to - i_from > LEAF) {
+                int i_middle = (i_from + i_to) >>> 1;
+                invokeAll(new Copies(model, d_copy_h, d_copy_s, i_from, i_middle, random.split()),
+                        new Copies(model, d_copy_h, d_copy_s, i_middle, i_to, random));
+                return;
+            }
+            double[] d_draw_h = new double[model.i_classes];
+            double[] d_draw_s = new double[model.i_classes];
+            for (int i_copy = i_from; i_copy < i_to; i_copy++) {
+                for (int c = 0; c < model.i_classes; c++) {
+                    d_draw_h[c] = gaussian(random);
+                    d_draw_s[c] = gaussian(random);
+                }
+                double[] d_h = d_copy_h[i_copy], d_s = d_copy_s[i_copy];
+                for (int k = 0; k < d_h.length; k++) {
+                    d_h[k] = model.d_h[k] + model.d_sigma_h[k] * d_draw_h[model.i_class[k]];
+                    d_s[k] = model.d_s[k] + model.d_sigma_s[k] * d_draw_s[model.i_class[k]];
+                }
+            }
+        }
+    }
+
+    /* the Tm of the probes [i_from, i_to) with the i_copies copies of a batch, in their order */
+    static class Samples extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final Model model;
+        final double[][] d_copy_h, d_copy_s;
+        final int i_copies;
+        final Statistics[] pst_stats;
+        final int i_from, i_to;
+
+        Samples(Model model, double[][] d_copy_h, double[][] d_copy_s, int i_copies, Statistics[] pst_stats,
+                int i_from, int i_to) {
+            this.model = model;
+            this.d_copy_h = d_copy_h;
+            this.d_copy_s = d_copy_s;
+            this.i_copies = i_copies;
+            this.pst_stats = pst_stats;
+            this.i_from = i_from;
+            this.i_to = i_to;
+        }
+
+        protected void compute() {
+            if (i_to - i_from > PROBES_LEAF) {
+                int i_middle = (i_from + i_to) >>> 1;
+                invokeAll(new Samples(model, d_copy_h, d_copy_s, i_copies, pst_stats, i_from, i_middle),
+                        new Samples(model, d_copy_h, d_copy_s, i_copies, pst_stats, i_middle, i_to));
+                return;
+            }
+            for (int p = i_from; p < i_to; p++) {
+                int[] i_entry = model.i_entry[p];
+                if (i_entry == null) continue;
+                int[] i_count = model.i_count[p];
+                Statistics pst_probe = pst_stats[p];
+                for (int i_copy = 0; i_copy < i_copies; i_copy++) {
+                    double[] d_h = d_copy_h[i_copy], d_s = d_copy_s[i_copy];
+                    double d_enthalpy = 0, d_entropy = model.d_offset[p];
+                    for (int k = 0; k < i_entry.length; k++) {
+                        d_enthalpy += i_count[k] * d_h[i_entry[k]];
+                        d_entropy += i_count[k] * d_s[i_entry[k]];
+                    }
+                    pst_probe.add(d_enthalpy / d_entropy + model.d_shift);   /* as tm_exact */
+                }
+            }
+        }
+    }
+
+    /*+---------------------------------------------------------------+
+      | running statistics of the Tm of a probe: mean and variance    |
+      | (Welford), and the PERCENTILES by the P2 algorithm: MARKERS   |
+      | values at the quantiles 0, p1/2, p1, (p1+p2)/2, p2 ... 1,     |
+      | moved by a parabola through their neighbours as the values    |
+      | come. The first MARKERS values are kept sorted, exactly.      |
+      +---------------------------------------------------------------+*/
+
+    static final int MARKERS = 2 * PERCENTILES.length + 3;
+    static final double[] QUANTILES = new double[MARKERS];   /* of the markers */
+
+    static {
+        double d_previous = 0;
+        for (int j = 0; j < PERCENTILES.length; j++) {
+            QUANTILES[2 * j + 1] = (d_previous + PERCENTILES[j] / 100) / 2;
+            QUANTILES[2 * j + 2] = PERCENTILES[j] / 100;
+            d_previous = PERCENTILES[j] / 100;
+        }
+        QUANTILES[MARKERS - 2] = (d_previous + 1) / 2;
+        QUANTILES[MARKERS - 1] = 1;
+    }
+
+    public static class Statistics {
+        long l_count;
+        double d_mean;
+        double d_m2;                                 /* sum of the squared deviations from the mean */
+        final double[] d_height = new double[MARKERS];
+        final long[] l_position = new long[MARKERS];  /* rank of each marker, from 1 */
+
+        void add(double d_x) {
+            l_count++;
+            double d_delta = d_x - d_mean;
+            d_mean += d_delta / l_count;
+            d_m2 += d_delta * (d_x - d_mean);
+
+            if (l_count <= MARKERS) {   /* the first values, sorted */
+                int i = (int) l_count - 1;
+                while (i > 0 && d_height[i - 1] > d_x) {
+                    d_height[i] = d_height[i - 1];
+                    i--;
+                }
+                d_height[i] = d_x;
+                l_position[(int) l_count - 1] = l_count;
+                return;
+            }
+            int k;                      /* cell of the value, between the markers k and k + 1 */
+            if (d_x < d_height[0]) {
+                d_height[0] = d_x;
+                k = 0;
+            } else if (d_x >= d_height[MARKERS - 1]) {
+                d_height[MARKERS - 1] = d_x;
+                k = MARKERS - 2;
+            } else {
+                k = 0;
+                while (d_x >= d_height[k + 1]) k++;
+            }
+            for (int i = k + 1; i < MARKERS; i++) l_position[i]++;
+            for (int i = 1; i < MARKERS - 1; i++) {
+                double d_offset = 1 + (l_count - 1) * QUANTILES[i] - l_position[i];   /* from the desired rank */
+                if ((d_offset >= 1 && l_position[i + 1] - l_position[i] > 1)
+                        || (d_offset <= -1 && l_position[i - 1] - l_position[i] < -1)) {
+                    int s = (d_offset > 0) ? 1 : -1;
+                    double d_height_new = parabolic(i, s);
+                    if (d_height[i - 1] < d_height_new && d_height_new < d_height[i + 1]) d_height[i] = d_height_new;
+                    else d_height[i] += s * (d_height[i + s] - d_height[i]) / (l_position[i + s] - l_position[i]);
+                    l_position[i] += s;
+                }
+            }
+        }
+
+        private double parabolic(int i, int s) {
+            double d_left = l_position[i] - l_position[i - 1], d_right = l_position[i + 1] - l_position[i];
+            return d_height[i] + s / (double) (l_position[i + 1] - l_position[i - 1])
+                    * ((d_left + s) * (d_height[i + 1] - d_height[i]) / d_right
+                    + (d_right - s) * (d_height[i] - d_height[i - 1]) / d_left);
+        }
+
+        public double mean() {
+            return d_mean;
+        }
+
+        public double sd() {
+            return (l_count > 1) ? Math.sqrt(d_m2 / (l_count - 1)) : 0;
+        }
+
+        /* the j-th of the PERCENTILES */
+        public double percentile(int j) {
+            if (l_count <= MARKERS) return MonteCarlo.percentile(Arrays.copyOf(d_height, (int) l_count), PERCENTILES[j]);
+            return d_height[2 * j + 2];
+        }
+    }
+
+    /* standard normal deviate (polar method; SplittableRandom has none) */
+    static double gaussian(SplittableRandom random) {
+        double d_u, d_v, d_r;
+        do {
+            d_u = 2 * random.nextDouble() - 1;
+            d_v = 2 * random.nextDouble() - 1;
+            d_r = d_u * d_u + d_v * d_v;
+        } while (d_r >= 1 || d_r == 0);
+        return d_u * Math.sqrt(-2 * Math.log(d_r) / d_r);
+    }
+
+    /* percentile of sorted values, by linear interpolation */
+    static double percentile(double[] d_sorted, double d_percent) {
+        double d_rank = d_percent / 100 * (d_sorted.length - 1);
+        int i_low = (int) Math.floor(d_rank);
+        int i_high = Math.min(i_low + 1, d_sorted.length - 1);
+        return d_sorted[i_low] + (d_rank - i_low) * (d_sorted[i_high] - d_sorted[i_low]);
+    }
+
+    /*+---------------------------------------------------------------+
+      | one line per probe: sequence, nominal Tm, mean, standard      |
+      | deviation and percentiles of the Tm over the samples          |
+      +---------------------------------------------------------------+*/
+
+    public void print(int i_samples, long l_seed, PrintStream out) {
+        Statistics[] pst_stats = run(i_samples, l_seed);
+        StringBuilder s_line = new StringBuilder("#sequence\tTm\tmean\tsd");
+        for (double d_percent : PERCENTILES) s_line.append("\tp").append(d_percent);
+        out.println(s_line);
+        for (int p = 0; p < pst_stats.length; p++) {
+            s_line.setLength(0);
+            s_line.append(sequences.get(p)).append('\t');
+            WindowMap.append_fixed2(s_line, tms.get(p));
+            if (pst_stats[p] == null) {   /* approximative mode: no parameters */
+                out.println(s_line.append("\t-"));
+                continue;
+            }
+            s_line.append('\t');
+            WindowMap.append_fixed2(s_line, pst_stats[p].mean());
+            s_line.append('\t');
+            WindowMap.append_fixed2(s_line, pst_stats[p].sd());
+            for (int j = 0; j < PERCENTILES.length; j++) {
+                s_line.append('\t');
+                WindowMap.append_fixed2(s_line, pst_stats[p].percentile(j));
+            }
+            out.println(s_line);
+        }
+    }
+}
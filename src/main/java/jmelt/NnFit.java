@@ -0,0 +1,363 @@
+
+package jmelt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: NnFit.java                                                           *
+ * Aim : nearest-neighbor parameters fitted to measured Tm (--fit), written  *
+ *       as a set that -A reads.                                              *
+ *                                                                            *
+ *       The data file has one duplex per line: sequence, measured Tm (°C)  *
+ *       and optionally its salt and probe concentrations (M), which are     *
+ *       otherwise the ones of the run. The counts of the entries used by   *
+ *       each duplex (PairCounts) are taken once from get_results: the       *
+ *       enthalpy and the entropy are then linear in the entries of the nn  *
+ *       set, and the Tm is the one of tm_exact, H / (S + offset) + shift,  *
+ *       the offset and the shift depending on the conditions of the duplex. *
+ *       The entries of the mismatches and dangling ends sets stay as they   *
+ *       are; duplexes in approximative mode are left out.                    *
+ *                                                                            *
+ *       The enthalpies and entropies of the entries used (the 16 pairs and   *
+ *       the initiations) are the unknowns, the entries which are one         *
+ *       parameter read on either strand (AA and TT, AC and GT...) being a    *
+ *       single one (PairCounts.classes): the fitted set stays symmetric,     *
+ *       with 10 pairs to fit rather than 16. They minimise, by               *
+ *       Levenberg-Marquardt, the sum of the squared errors of the Tm (in     *
+ *       SIGMA_TM) plus the squared distances of the unknowns to the entries  *
+ *       of the starting set, in units of their uncertainty (--sigma, as      *
+ *       --monte-carlo). This prior keeps the fit well posed: Tm alone hardly *
+ *       tell the enthalpies from the entropies. The normal equations (J'J    *
+ *       and J'r) are summed over the duplexes by the tasks of a fork/join    *
+ *       pool, split at fixed bounds, so that the result does not depend on   *
+ *       the number of threads.                                               *
+ ******************************************************************************/
+
+public class NnFit {
+
+    static final int LEAF = 1024;                  /* duplexes summed by a task */
+    static final int MAX_ITERATIONS = 200;
+    static final double SIGMA_TM = 1;              /* °C, unit of the errors of the Tm */
+    static final double TOLERANCE = 1e-12;         /* relative decrease of the cost at convergence */
+
+    /* a measured duplex, its counts renumbered on the fitted entries */
+    static class Record {
+        final int[] i_entry;                       /* fitted entries used */
+        final int[] i_count;
+        final double d_enthalpy, d_entropy;       /* of the entries not fitted, with the offset */
+        final double d_shift;                      /* salt correction of the tm, minus 273.15 */
+        final double d_tm;                         /* measured */
+
+        Record(int[] i_entry, int[] i_count, double d_enthalpy, double d_entropy, double d_shift, double d_tm) {
+            this.i_entry = i_entry;
+            this.i_count = i_count;
+            this.d_enthalpy = d_enthalpy;
+            this.d_entropy = d_entropy;
+            this.d_shift = d_shift;
+            this.d_tm = d_tm;
+        }
+    }
+
+    final MeltingParams pst_param;                 /* snapshot: the starting sets and conditions */
+    final double d_sigma_h, d_sigma_s;             /* uncertainty of the starting entries */
+    final List<Record> records = new ArrayList<Record>();
+    int[] i_class;                                 /* of each entry of the nn set (PairCounts.classes) */
+    int[] i_fitted;                                /* first entry of the nn set of each unknown */
+    double[] d_start;                              /* enthalpies then entropies of the fitted entries */
+    double[] d_fit;
+    int i_skipped;                                 /* duplexes in approximative mode */
+    int i_iterations;
+    double d_rms_start, d_rms_fit;                 /* °C */
+    String ps_data;
+
+    public NnFit(MeltingParams pst_param, double d_sigma_h, double d_sigma_s) {
+        this.pst_param = new MeltingParams(pst_param);
+        this.d_sigma_h = d_sigma_h;
+        this.d_sigma_s = d_sigma_s;
+    }
+
+    /*+------------------------------------------------------------------+
+      | the duplexes of the data file, with their counts                 |
+      +------------------------------------------------------------------+*/
+
+    public void read(String ps_file) throws IOException {
+        ps_data = new File(ps_file).getName();
+        List<PairCounts> counts = new ArrayList<PairCounts>();
+        List<double[]> measures = new ArrayList<double[]>();   /* Tm, offset, shift */
+        try (BufferedReader in = new BufferedReader(new FileReader(ps_file))) {
+            String ps_line;
+            int i_line = 0;
+            while ((ps_line = in.readLine()) != null) {
+                i_line++;
+                ps_line = ps_line.trim();
+                if (ps_line.length() == 0 || ps_line.startsWith("/*") || ps_line.startsWith("#")) continue;
+                String[] ps_fields = ps_line.split("\\s+");
+                String ps_sequence = ps_fields[0].toUpperCase().replace('U', 'T');
+                MeltingParams pst_conditions = new MeltingParams(pst_param);
+                double d_tm;
+                try {
+                    if (ps_fields.length < 2 || ps_fields.length > 4) throw new NumberFormatException();
+                    d_tm = Double.parseDouble(ps_fields[1]);
+                    if (ps_fields.length > 2) pst_conditions.d_conc_salt = Double.parseDouble(ps_fields[2]);
+                    if (ps_fields.length > 3) pst_conditions.d_conc_probe = Double.parseDouble(ps_fields[3]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(ps_file + ":" + i_line + ": expected a sequence, a Tm and optionally"
+                            + " the salt and probe concentrations");
+                }
+                if (Melting.check_sequence(ps_sequence) != 0)
+                    throw new IOException(ps_file + ":" + i_line + ": " + ps_fields[0] + " is not a sequence");
+                PairCounts pst_counts = PairCounts.of(pst_conditions, ps_sequence, Melting.make_complement(ps_sequence));
+                if (pst_counts == null) {
+                    i_skipped++;
+                    continue;
+                }
+                counts.add(pst_counts);
+                measures.add(new double[]{d_tm,
+                        Melting.salt_entropy(pst_conditions, pst_counts.i_length)
+                                + 1.987 * Math.log(pst_conditions.d_conc_probe / pst_conditions.d_gnat),
+                        Melting.salt_correction(pst_conditions) - 273.15});
+            }
+        }
+
+        /* the classes of the entries of the nn set used by a duplex are fitted, numbered densely */
+        i_class = Arrays.copyOf(PairCounts.classes(pst_param), Melting.NB);
+        int[] i_local = new int[Melting.NB];
+        Arrays.fill(i_local, -1);
+        int i_used = 0;
+        for (PairCounts pst_counts : counts)
+            for (int i_entry : pst_counts.i_entry)
+                if (i_entry < PairCounts.MM && i_local[i_class[i_entry]] < 0) i_local[i_class[i_entry]] = i_used++;
+        i_fitted = new int[i_used];
+        for (int j = 0; j < Melting.NB; j++) if (i_local[j] >= 0) i_fitted[i_local[j]] = j;
+
+        double[] d_h = PairCounts.values(pst_param, false);
+        double[] d_s = PairCounts.values(pst_param, true);
+        d_start = new double[2 * i_used];
+        for (int k = 0; k < i_used; k++) {
+            d_start[k] = d_h[i_fitted[k]];
+            d_start[i_used + k] = d_s[i_fitted[k]];
+        }
+        int[] i_dense = new int[i_used];           /* counts of a duplex per unknown (AA and TT added) */
+        int[] i_touched = new int[i_used];
+        for (int r = 0; r < counts.size(); r++) {
+            PairCounts pst_counts = counts.get(r);
+            double[] d_measure = measures.get(r);
+            int i_nn = 0;
+            double d_enthalpy = 0, d_entropy = d_measure[1];
+            for (int k = 0; k < pst_counts.i_entry.length; k++) {
+                int i_global = pst_counts.i_entry[k];
+                if (i_global < PairCounts.MM) {
+                    int u = i_local[i_class[i_global]];
+                    if (i_dense[u] == 0) i_touched[i_nn++] = u;
+                    i_dense[u] += pst_counts.i_count[k];
+                } else {
+                    d_enthalpy += pst_counts.i_count[k] * d_h[i_global];
+                    d_entropy += pst_counts.i_count[k] * d_s[i_global];
+                }
+            }
+            int[] i_entry = Arrays.copyOf(i_touched, i_nn);
+            int[] i_count = new int[i_nn];
+            for (int k = 0; k < i_nn; k++) {
+                i_count[k] = i_dense[i_entry[k]];
+                i_dense[i_entry[k]] = 0;
+            }
+            records.add(new Record(i_entry, i_count, d_enthalpy, d_entropy, d_measure[2], d_measure[0]));
+        }
+    }
+
+    /*+------------------------------------------------------------------+
+      | Levenberg-Marquardt from the starting set: a step solves         |
+      | (A + lambda diag(A)) step = -g; it is kept if the cost decreases |
+      | (lambda is then divided by 10), otherwise lambda is multiplied   |
+      | by 10                                                            |
+      +------------------------------------------------------------------+*/
+
+    public void run() {
+        if (records.isEmpty()) throw new IllegalStateException("no duplex to fit");
+        int n = d_start.length;
+        double[] d_x = d_start.clone();
+        Normal normal = normal(d_x);
+        d_rms_start = Math.sqrt(normal.d_sse / records.size()) * SIGMA_TM;
+        double d_lambda = 1e-3;
+        for (i_iterations = 0; i_iterations < MAX_ITERATIONS && d_lambda < 1e12; ) {
+            double[] d_step = solve(normal.d_a, normal.d_g, d_lambda, n);
+            if (d_step == null) {             /* not positive definite: a shorter step */
+                d_lambda *= 10;
+                continue;
+            }
+            double[] d_next = new double[n];
+            for (int u = 0; u < n; u++) d_next[u] = d_x[u] + d_step[u];
+            Normal next = normal(d_next);
+            if (next.d_cost < normal.d_cost) {
+                i_iterations++;
+                boolean b_converged = normal.d_cost - next.d_cost <= TOLERANCE * normal.d_cost;
+                d_x = d_next;
+                normal = next;
+                d_lambda = Math.max(d_lambda / 10, 1e-12);
+                if (b_converged) break;
+            } else d_lambda *= 10;
+        }
+        d_fit = d_x;
+        d_rms_fit = Math.sqrt(normal.d_sse / records.size()) * SIGMA_TM;
+    }
+
+    /* Cholesky decomposition of the damped system; null if it is not positive definite */
+    static double[] solve(double[] d_a, double[] d_g, double d_lambda, int n) {
+        double[] d_l = new double[n * n];
+        for (int u = 0; u < n; u++) {
+            for (int v = 0; v <= u; v++) {
+                double d_sum = d_a[u * n + v];
+                if (u == v) d_sum += d_lambda * d_a[u * n + u];
+                for (int k = 0; k < v; k++) d_sum -= d_l[u * n + k] * d_l[v * n + k];
+                if (u == v) {
+                    if (!(d_sum > 0)) return null;
+                    d_l[u * n + u] = Math.sqrt(d_sum);
+                } else d_l[u * n + v] = d_sum / d_l[v * n + v];
+            }
+        }
+        double[] d_y = new double[n];
+        for (int u = 0; u < n; u++) {
+            double d_sum = -d_g[u];
+            for (int k = 0; k < u; k++) d_sum -= d_l[u * n + k] * d_y[k];
+            d_y[u] = d_sum / d_l[u * n + u];
+        }
+        for (int u = n - 1; u >= 0; u--) {
+            double d_sum = d_y[u];
+            for (int k = u + 1; k < n; k++) d_sum -= d_l[k * n + u] * d_y[k];
+            d_y[u] = d_sum / d_l[u * n + u];
+        }
+        return d_y;
+    }
+
+    /*+------------------------------------------------------------------+
+      | normal equations at d_x: A = J'J, g = J'r and the cost 1/2 r'r,  |
+      | with the residuals of the duplexes then the ones of the prior    |
+      +------------------------------------------------------------------+*/
+
+    static class Normal {
+        final double[] d_a, d_g;
+        double d_sse;                              /* of the Tm only */
+        double d_cost;
+
+        Normal(int n) {
+            d_a = new double[n * n];
+            d_g = new double[n];
+        }
+
+        void add(Normal other) {
+            for (int i = 0; i < d_a.length; i++) d_a[i] += other.d_a[i];
+            for (int i = 0; i < d_g.length; i++) d_g[i] += other.d_g[i];
+            d_sse += other.d_sse;
+        }
+    }
+
+    Normal normal(double[] d_x) {
+        Normal normal = ForkJoinPool.commonPool().invoke(new Equations(d_x, 0, records.size()));
+        int n = d_x.length, m = n / 2;
+        normal.d_cost = normal.d_sse / 2;
+        for (int u = 0; u < n; u++) {
+            double d_sigma = (u < m) ? d_sigma_h : d_sigma_s;
+            double d_r = (d_x[u] - d_start[u]) / d_sigma;
+            normal.d_a[u * n + u] += 1 / (d_sigma * d_sigma);
+            normal.d_g[u] += d_r / d_sigma;
+            normal.d_cost += d_r * d_r / 2;
+        }
+        return normal;
+    }
+
+    class Equations extends RecursiveTask<Normal> {
+        private static final long serialVersionUID = 1L;
+        final double[] d_x;
+        final int i_from, i_to;
+
+        Equations(double[] d_x, int i_from, int i_to) {
+            this.d_x = d_x;
+            this.i_from = i_from;
+            this.i_to = i_to;
+        }
+
+        protected Normal compute() {
+            if (i_to - i_from > LEAF) {
+                int i_middle = (i_from + i_to) >>> 1;
+                Equations left = new Equations(d_x, i_from, i_middle);
+                left.fork();
+                Normal normal = new Equations(d_x, i_middle, i_to).compute();
+                Normal first = left.join();
+                first.add(normal);
+                return first;
+            }
+            int n = d_x.length, m = n / 2;
+            Normal normal = new Normal(n);
+            double[] d_j = new double[n];          /* gradient of the Tm of a duplex, sparse */
+            int[] i_used = new int[n];
+            for (int p = i_from; p < i_to; p++) {
+                Record record = records.get(p);
+                double d_enthalpy = record.d_enthalpy, d_entropy = record.d_entropy;
+                for (int k = 0; k < record.i_entry.length; k++) {
+                    d_enthalpy += record.i_count[k] * d_x[record.i_entry[k]];
+                    d_entropy += record.i_count[k] * d_x[m + record.i_entry[k]];
+                }
+                double d_r = (d_enthalpy / d_entropy + record.d_shift - record.d_tm) / SIGMA_TM;
+                if (Double.isNaN(d_r)) d_r = Double.POSITIVE_INFINITY;   /* no Tm: the step is refused */
+                normal.d_sse += d_r * d_r;
+                int i_nonzero = 0;
+                for (int k = 0; k < record.i_entry.length; k++) {
+                    int e = record.i_entry[k];
+                    d_j[e] = record.i_count[k] / d_entropy / SIGMA_TM;
+                    d_j[m + e] = -record.i_count[k] * d_enthalpy / (d_entropy * d_entropy) / SIGMA_TM;
+                    i_used[i_nonzero++] = e;
+                    i_used[i_nonzero++] = m + e;
+                }
+                for (int a = 0; a < i_nonzero; a++) {
+                    int u = i_used[a];
+                    normal.d_g[u] += d_j[u] * d_r;
+                    for (int b = 0; b < i_nonzero; b++) normal.d_a[u * n + i_used[b]] += d_j[u] * d_j[i_used[b]];
+                }
+            }
+            return normal;
+        }
+    }
+
+    /*+------------------------------------------------------------------+
+      | the fitted set, in the format of the .nn files: both entries of  |
+      | an unknown (AA and TT) with its value, the entries not fitted as |
+      | in the starting set                                              |
+      +------------------------------------------------------------------+*/
+
+    public void write(PrintStream out) {
+        dataset pst_nn = pst_param.pst_present_nn;
+        String ps_start = (pst_nn.file != null) ? new File(pst_nn.file).getName() : "the default set";
+        int m = i_fitted.length;
+        out.printf("/******************************************************************************/\n");
+        out.printf("/* %-74s */\n", "nearest-neighbor parameters fitted by MELTING " + Melting.VERSION);
+        out.printf("/* %-74s */\n", "to " + records.size() + " duplexes of " + ps_data + ", from " + ps_start);
+        if (i_skipped > 0)
+            out.printf("/* %-74s */\n", i_skipped + " duplexes in approximative mode left out");
+        out.printf("/* %-74s */\n", String.format("RMS error of the Tm: %.2f C before, %.2f C after (%d iterations)",
+                d_rms_start, d_rms_fit, i_iterations));
+        out.printf("/* %-74s */\n", String.format("prior: sigma %.1f cal.mol-1, %.2f cal.mol-1.K-1",
+                d_sigma_h, d_sigma_s));
+        out.printf("/******************************************************************************/\n");
+        out.printf("/*  IMPORTANT: the parameters appearing in this file are expressed in        */\n");
+        out.printf("/*             cal.mol-1, whereas the results output by MELTING are in SI,    */\n");
+        out.printf("/*             i.e. in J.mol-1                                                */\n");
+        out.printf("\n");
+        int[] i_local = new int[Melting.NB];
+        Arrays.fill(i_local, -1);
+        for (int k = 0; k < m; k++) i_local[i_fitted[k]] = k;
+        for (int j = 0; j < Melting.NB; j++) {
+            Melting.calor_const pst_entry = pst_nn.data()[j];
+            if (pst_entry == null || pst_entry.s_crick_pair == null || pst_entry.s_crick_pair.length() == 0) continue;
+            int k = i_local[i_class[j]];
+            out.printf("%-3s %9.1f %8.2f\n", pst_entry.s_crick_pair,
+                    (k >= 0) ? d_fit[k] : pst_entry.d_enthalpy, (k >= 0) ? d_fit[m + k] : pst_entry.d_entropy);
+        }
+        out.printf("\n");
+        out.printf("REF: fitted to %s from %s\n", ps_data, ps_start);
+    }
+}
@@ -0,0 +1,174 @@
+
+package jmelt;
+
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: NnTable.java                                                         *
+ * Aim : dense form of a set of nearest-neighbor parameters, for perfectly    *
+ *       matched duplexes. The bases are coded on 2 bits (A=0, C=1, G=2,      *
+ *       T=3) and a dinucleotide is the index (first << 2 | second) in the    *
+ *       tables, instead of a search of the Crick's pair by name. The sums    *
+ *       are identical to the ones of get_results.                            *
+ *                                                                            *
+ *       The stride tables hold the sums of the four overlapping             *
+ *       dinucleotides of every 5-mer (index: the five codes, 10 bits), so   *
+ *       that a perfectly matched duplex is summed four steps per lookup,    *
+ *       and pair by pair for the last ones. They are derived from the 16   *
+ *       entries, whether these come from a text file or from a binary       *
+ *       image. A 5-mer sum is added at once: the total may differ from the  *
+ *       pair-by-pair one in the last bit.                                    *
+ ******************************************************************************/
+
+public class NnTable {
+
+    static final String BASES = "ACGT";
+    static final byte[] CODE = new byte[256];  /* 2-bit code of a base, -1 if not A, C, G or T */
+
+    static {
+        java.util.Arrays.fill(CODE, (byte) -1);
+        CODE['A'] = 0;
+        CODE['C'] = 1;
+        CODE['G'] = 2;
+        CODE['T'] = 3;
+    }
+
+    final double[] d_enthalpy = new double[16];  /* enthalpy of each dinucleotide */
+    final double[] d_entropy = new double[16];   /* entropy of each dinucleotide */
+    final int[] i_index = new int[16];           /* position of the dinucleotide in the dataset, -1 if absent */
+    final double[] d_init_enthalpy = new double[4]; /* initiation term for a terminal base */
+    final double[] d_init_entropy = new double[4];
+    final double[] d_enthalpy5 = new double[1024]; /* sum of the four dinucleotides of each 5-mer */
+    final double[] d_entropy5 = new double[1024];
+
+    /* compile the nearest-neighbor set of a dataset */
+    NnTable(dataset pst_nn) {
+        Melting.calor_const[] pst_data = pst_nn.data();
+        for (int i_pair = 0; i_pair < 16; i_pair++) {
+            String s_pair = "" + BASES.charAt(i_pair >> 2) + BASES.charAt(i_pair & 3);
+            i_index[i_pair] = -1;
+            for (int j = 0; j < Melting.NBNN; j++) {   /* same screening as get_results */
+                String s_crick_pair = pst_data[j].s_crick_pair;
+                if (s_crick_pair != null && Melting.strncmp(s_crick_pair, s_pair, 2) == 0) {
+                    d_enthalpy[i_pair] += pst_data[j].d_enthalpy;
+                    d_entropy[i_pair] += pst_data[j].d_entropy;
+                    if (i_index[i_pair] < 0) i_index[i_pair] = j;
+                }
+            }
+        }
+        int index_IA = Melting.get_index(pst_data, "IA");
+        int index_IG = Melting.get_index(pst_data, "IG");
+        for (int i_base = 0; i_base < 4; i_base++) {
+            int index = (i_base == 0 || i_base == 3) ? index_IA : index_IG;
+            d_init_enthalpy[i_base] = pst_data[index].d_enthalpy;
+            d_init_entropy[i_base] = pst_data[index].d_entropy;
+        }
+        strides();
+    }
+
+    /* tables of a binary image, used as they are; the pairs are read in the mapped buffer */
+    NnTable(BinarySet.Image pst_image) {
+        pst_image.tables(this);
+        int i_size = Math.min(Melting.NBNN, pst_image.size());
+        for (int i_pair = 0; i_pair < 16; i_pair++) {
+            String s_pair = "" + BASES.charAt(i_pair >> 2) + BASES.charAt(i_pair & 3);
+            i_index[i_pair] = -1;
+            for (int j = 0; j < i_size && i_index[i_pair] < 0; j++)
+                if (Melting.strncmp(pst_image.pair(j), s_pair, 2) == 0) i_index[i_pair] = j;
+        }
+        strides();
+    }
+
+    /* the 5-mer tables, from the dinucleotide ones */
+    private void strides() {
+        for (int i_kmer = 0; i_kmer < 1024; i_kmer++) {
+            double d_h = 0, d_s = 0;
+            for (int i_shift = 6; i_shift >= 0; i_shift -= 2) {
+                int i_pair = (i_kmer >> i_shift) & 15;
+                d_h += d_enthalpy[i_pair];
+                d_s += d_entropy[i_pair];
+            }
+            d_enthalpy5[i_kmer] = d_h;
+            d_entropy5[i_kmer] = d_s;
+        }
+    }
+
+    static int code(char c) {
+        return c < 256 ? CODE[c] : -1;
+    }
+
+    /* dinucleotide index of the bases at i and i+1, -1 if one of them is not A, C, G or T */
+    static int pair(CharSequence ps_sequence, int i) {
+        int i_first = code(ps_sequence.charAt(i));
+        int i_second = code(ps_sequence.charAt(i + 1));
+        if (i_first < 0 || i_second < 0) return -1;
+        return i_first << 2 | i_second;
+    }
+
+    /*+--------------------------------------------------------------------+
+      | enthalpy and entropy (without salt correction) of the perfectly    |
+      | matched duplex formed by ps_sequence[i_from, i_to). Returns false  |
+      | if the region contains something else than A, C, G or T.           |
+      +--------------------------------------------------------------------+*/
+
+    boolean sum(CharSequence ps_sequence, int i_from, int i_to, double[] d_result) {
+        int i_first = code(ps_sequence.charAt(i_from));
+        int i_last = code(ps_sequence.charAt(i_to - 1));
+        if (i_first < 0 || i_last < 0) return false;
+        double d_h = d_init_enthalpy[i_first] + d_init_enthalpy[i_last];
+        double d_s = d_init_entropy[i_first] + d_init_entropy[i_last];
+        int i_previous = i_first;
+        for (int i = i_from + 1; i < i_to; i++) {
+            int i_code = code(ps_sequence.charAt(i));
+            if (i_code < 0) return false;
+            int i_pair = i_previous << 2 | i_code;
+            d_h += d_enthalpy[i_pair];
+            d_s += d_entropy[i_pair];
+            i_previous = i_code;
+        }
+        d_result[0] = d_h;
+        d_result[1] = d_s;
+        return true;
+    }
+
+    /*+--------------------------------------------------------------------+
+      | same sum for the whole duplex ps_sequence/ps_complement, walking   |
+      | four dinucleotides per lookup. Returns false, for the detailed     |
+      | path of get_results, if the duplex is not perfectly matched, i.e.  |
+      | with mismatches, dangling ends or other letters than A, C, G, T.   |
+      +--------------------------------------------------------------------+*/
+
+    boolean sum_perfect(CharSequence ps_sequence, CharSequence ps_complement, double[] d_result) {
+        int i_length = ps_sequence.length();
+        if (i_length < 2 || ps_complement.length() != i_length) return false;
+        int i_first = code(ps_sequence.charAt(0));
+        int i_last = code(ps_sequence.charAt(i_length - 1));
+        if (i_first < 0 || i_last < 0) return false;
+        if (code(ps_complement.charAt(0)) != 3 - i_first) return false;
+        double d_h = d_init_enthalpy[i_first] + d_init_enthalpy[i_last];
+        double d_s = d_init_entropy[i_first] + d_init_entropy[i_last];
+        int i_window = i_first;          /* codes of the last bases, the latest in the low bits */
+        int i = 1;
+        for (; i + 3 < i_length; i += 4) {
+            for (int k = i; k < i + 4; k++) {
+                int i_code = code(ps_sequence.charAt(k));
+                if (i_code < 0 || code(ps_complement.charAt(k)) != 3 - i_code) return false;
+                i_window = i_window << 2 | i_code;
+            }
+            i_window &= 1023;
+            d_h += d_enthalpy5[i_window];
+            d_s += d_entropy5[i_window];
+        }
+        for (; i < i_length; i++) {
+            int i_code = code(ps_sequence.charAt(i));
+            if (i_code < 0 || code(ps_complement.charAt(i)) != 3 - i_code) return false;
+            int i_pair = (i_window & 3) << 2 | i_code;
+            d_h += d_enthalpy[i_pair];
+            d_s += d_entropy[i_pair];
+            i_window = i_code;
+        }
+        d_result[0] = d_h;
+        d_result[1] = d_s;
+        return true;
+    }
+}
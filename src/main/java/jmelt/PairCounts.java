@@ -0,0 +1,164 @@
+
+package jmelt;
+
+import java.util.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: PairCounts.java                                                      *
+ * Aim : the enthalpy and entropy of a duplex are linear in the parameters   *
+ *       of the sets: each is a sum of entries of the nn, mismatches and     *
+ *       dangling ends sets, some of them several times. A PairCounts is the *
+ *       sparse vector of these multiplicities, taken from the counters of   *
+ *       get_results (i_crick, i_mismatch, i_dangends) plus the initiation   *
+ *       terms, so that the sums can be done again with other values of the  *
+ *       parameters by a mere dot product.                                   *
+ *                                                                            *
+ *       The entries of the three sets are numbered in a single space:      *
+ *       NN + j for the nn set, MM + j for the mismatches, DE + j for the    *
+ *       dangling ends.                                                       *
+ *                                                                            *
+ *       Some entries are one parameter read on either strand: AA and TT,   *
+ *       AA/TC and CT/AA, AA/-T and T-/AA. classes() groups them, when the  *
+ *       set gives them the same values (not in a DNA/RNA set, where the two *
+ *       strands differ), so that they are perturbed or fitted as one.       *
+ ******************************************************************************/
+
+public class PairCounts {
+
+    static final int NN = 0;
+    static final int MM = Melting.NB;
+    static final int DE = 2 * Melting.NB;
+    static final int SIZE = 3 * Melting.NB;
+
+    final int[] i_entry;        /* entries used by the duplex, in increasing order */
+    final int[] i_count;        /* number of times each of them is used */
+    final int i_length;         /* length of the sequence, for the salt correction */
+
+    PairCounts(int[] i_dense, int i_length) {
+        int i_used = 0;
+        for (int c : i_dense) if (c != 0) i_used++;
+        i_entry = new int[i_used];
+        i_count = new int[i_used];
+        for (int i = 0, k = 0; i < i_dense.length; i++) {
+            if (i_dense[i] != 0) {
+                i_entry[k] = i;
+                i_count[k++] = i_dense[i];
+            }
+        }
+        this.i_length = i_length;
+    }
+
+    /* counts of a duplex; null in approximative mode, where there are none */
+    public static PairCounts of(MeltingParams pst_param, String ps_sequence, String ps_complement) {
+        Thermodynamic pst_results = Melting.get_results(pst_param, ps_sequence, ps_complement, false);
+        if (pst_results.i_approx) return null;
+        return of(pst_param, pst_results, ps_sequence, ps_complement);
+    }
+
+    /* counts of the results of get_results for the duplex ps_sequence/ps_complement */
+    static PairCounts of(MeltingParams pst_param, Thermodynamic pst_results, String ps_sequence, String ps_complement) {
+        int[] i_dense = new int[SIZE];
+        for (int j = 0; j < Melting.NB; j++) {
+            i_dense[NN + j] = pst_results.i_crick[j];
+            i_dense[MM + j] = pst_results.i_mismatch[j];
+            i_dense[DE + j] = pst_results.i_dangends[j];
+        }
+        /* initiation terms, chosen as in get_results */
+        int i_last = ps_sequence.length() - 1;
+        int i_proxoffset = (ps_sequence.charAt(0) == '-' || ps_complement.charAt(0) == '-') ? 1 : 0;
+        int i_distoffset = (ps_sequence.charAt(i_last) == '-' || ps_complement.charAt(i_last) == '-') ? 1 : 0;
+        int index_IA = Melting.get_index(pst_param.pst_present_nn.data(), "IA");
+        int index_IG = Melting.get_index(pst_param.pst_present_nn.data(), "IG");
+        for (char c_end : new char[]{ps_sequence.charAt(i_proxoffset), ps_sequence.charAt(i_last - i_distoffset)}) {
+            if (c_end == 'A' || c_end == 'T') i_dense[NN + index_IA]++;
+            if (c_end == 'G' || c_end == 'C') i_dense[NN + index_IG]++;
+        }
+        return new PairCounts(i_dense, ps_sequence.length());
+    }
+
+    /* sum of the values of the entries, e.g. the enthalpy from the vector of the enthalpies */
+    public double dot(double[] d_values) {
+        double d_sum = 0;
+        for (int k = 0; k < i_entry.length; k++)
+            d_sum += i_count[k] * d_values[i_entry[k]];
+        return d_sum;
+    }
+
+    /*+---------------------------------------------------------+
+      | the enthalpies (b_entropy false) or entropies of the    |
+      | entries of the sets of pst_param, as a dense vector     |
+      +---------------------------------------------------------+*/
+
+    static double[] values(MeltingParams pst_param, boolean b_entropy) {
+        double[] d_values = new double[SIZE];
+        dataset[] pst_sets = {pst_param.pst_present_nn, pst_param.pst_present_mm, pst_param.pst_present_de};
+        for (int i_set = 0; i_set < 3; i_set++) {
+            if (pst_sets[i_set] == null) continue;
+            for (int j = 0; j < Melting.NB; j++) {
+                Melting.calor_const pst_entry = pst_sets[i_set].data()[j];
+                if (pst_entry == null || pst_entry.s_crick_pair == null) continue;
+                d_values[i_set * Melting.NB + j] = b_entropy ? pst_entry.d_entropy : pst_entry.d_enthalpy;
+            }
+        }
+        return d_values;
+    }
+
+    /*+---------------------------------------------------------+
+      | the class of each entry of the single space: the first  |
+      | entry of its set which is the same parameter read on    |
+      | the other strand, with the same values; itself if none  |
+      +---------------------------------------------------------+*/
+
+    static int[] classes(MeltingParams pst_param) {
+        int[] i_class = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) i_class[i] = i;
+        dataset[] pst_sets = {pst_param.pst_present_nn, pst_param.pst_present_mm, pst_param.pst_present_de};
+        for (int i_set = 0; i_set < 3; i_set++) {
+            if (pst_sets[i_set] == null) continue;
+            Melting.calor_const[] pst_data = pst_sets[i_set].data();
+            Map<String, Integer> first = new HashMap<String, Integer>();   /* first entry of each name */
+            for (int j = 0; j < Melting.NB; j++) {
+                if (pst_data[j] == null || pst_data[j].s_crick_pair == null) continue;
+                String ps_name = pst_data[j].s_crick_pair.toUpperCase();
+                Integer i_partner = first.get(other_strand(ps_name));
+                if (i_partner != null && i_partner != j && pst_data[i_partner].d_enthalpy == pst_data[j].d_enthalpy
+                        && pst_data[i_partner].d_entropy == pst_data[j].d_entropy)
+                    i_class[i_set * Melting.NB + j] = i_class[i_set * Melting.NB + i_partner];
+                first.putIfAbsent(ps_name, j);
+            }
+        }
+        return i_class;
+    }
+
+    /* name of the same entry read on the other strand: TT for AA, CT/AA for AA/TC,
+       T-/AA for AA/-T; the name itself for an initiation term */
+    static String other_strand(String ps_name) {
+        int i_slash = ps_name.indexOf('/');
+        if (i_slash >= 0)
+            return new StringBuilder(ps_name.substring(i_slash + 1)).reverse() + "/"
+                    + new StringBuilder(ps_name.substring(0, i_slash)).reverse();
+        if (ps_name.length() != 2) return ps_name;
+        StringBuilder s_other = new StringBuilder(2);
+        for (int i = 1; i >= 0; i--) {
+            switch (ps_name.charAt(i)) {
+                case 'A': s_other.append(ps_name.indexOf('U') >= 0 ? 'U' : 'T'); break;
+                case 'T': case 'U': s_other.append('A'); break;
+                case 'C': s_other.append('G'); break;
+                case 'G': s_other.append('C'); break;
+                default: return ps_name;   /* IA, IG */
+            }
+        }
+        return s_other.toString();
+    }
+
+    /* name of an entry of the single space, as in the parameter files */
+    static String name(MeltingParams pst_param, int i_entry) {
+        dataset pst_set = (i_entry < MM) ? pst_param.pst_present_nn
+                : (i_entry < DE) ? pst_param.pst_present_mm : pst_param.pst_present_de;
+        return pst_set.data()[i_entry % Melting.NB].s_crick_pair;
+    }
+}
@@ -0,0 +1,169 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.calor_const;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: ParamWatcher.java                                                    *
+ * Aim : hot reloading of the parameter sets in long-running processes. A    *
+ *       directory is watched; when a file having the name of the current nn, *
+ *       mismatches or dangling ends set changes, it is parsed again by       *
+ *       read_nn, read_mismatches or read_dangends, compiled, and the three   *
+ *       sets are published together by a single swap of an atomic           *
+ *       reference. A computation which took the previous sets goes on with  *
+ *       them: it is never blocked, and never sees a half-loaded set.        *
+ *       A set read while its file is only partly written is not published: *
+ *       a nn set needs its 16 pairs and the IA and IG initiations, and every *
+ *       set the entries of the set it replaces.                             *
+ ******************************************************************************/
+
+public class ParamWatcher implements Runnable {
+
+    static final long SETTLE_MILLIS = 200;   /* wait for the writes of a file to be finished */
+    static final String[] NN_ENTRIES = {"AA", "AC", "AG", "AT", "CA", "CC", "CG", "CT",
+            "GA", "GC", "GG", "GT", "TA", "TC", "TG", "TT", "IA", "IG"};
+
+    /* the three sets used together; never modified once published */
+    public static class Sets {
+        public final dataset pst_nn;
+        public final dataset pst_mm;
+        public final dataset pst_de;
+
+        Sets(dataset pst_nn, dataset pst_mm, dataset pst_de) {
+            this.pst_nn = pst_nn;
+            this.pst_mm = pst_mm;
+            this.pst_de = pst_de;
+        }
+    }
+
+    final Path dir;
+    final AtomicReference<Sets> current;
+    final AtomicLong l_generation = new AtomicLong();   /* number of sets published so far */
+    final WatchService watch;
+
+    ParamWatcher(Path dir, MeltingParams pst_param) throws IOException {
+        this.dir = dir.toAbsolutePath();
+        this.current = new AtomicReference<Sets>(
+                new Sets(pst_param.pst_present_nn, pst_param.pst_present_mm, pst_param.pst_present_de));
+        this.watch = dir.getFileSystem().newWatchService();
+        this.dir.register(watch, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /* watch dir in a background thread, starting from the sets of pst_param */
+    public static ParamWatcher start(Path dir, MeltingParams pst_param) throws IOException {
+        ParamWatcher watcher = new ParamWatcher(dir, pst_param);
+        Thread thread = new Thread(watcher, "melting-param-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return watcher;
+    }
+
+    public Sets sets() {
+        return current.get();
+    }
+
+    public long generation() {
+        return l_generation.get();
+    }
+
+    /* make pst_param use the current sets (the reference is read once) */
+    public void install(MeltingParams pst_param) {
+        Sets pst_sets = current.get();
+        pst_param.pst_present_nn = pst_sets.pst_nn;
+        pst_param.pst_present_mm = pst_sets.pst_mm;
+        pst_param.pst_present_de = pst_sets.pst_de;
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watch.take();
+                Thread.sleep(SETTLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Set<String> changed = new HashSet<String>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changed.add(null);   /* lost events: reload everything */
+                    continue;
+                }
+                changed.add(event.context().toString());
+            }
+            key.reset();
+            reload(changed);
+        }
+    }
+
+    public void close() throws IOException {
+        watch.close();
+    }
+
+    static String base_name(String ps_file) {
+        return (ps_file == null) ? null : new File(ps_file).getName();
+    }
+
+    /* the names of the entries of a set */
+    static Set<String> entries(dataset pst_set) {
+        Set<String> names = new HashSet<String>();
+        for (calor_const pst_entry : pst_set.data())
+            if (pst_entry.s_crick_pair != null) names.add(pst_entry.s_crick_pair.toUpperCase());
+        return names;
+    }
+
+    /* pst_new must have each of the required entries and each entry of pst_old */
+    static void check(dataset pst_new, dataset pst_old, String ps_name, String... ps_required) {
+        Set<String> names = entries(pst_new);
+        if (!names.containsAll(Arrays.asList(ps_required)) || !names.containsAll(entries(pst_old)))
+            throw new IllegalStateException("the set " + ps_name + " is incomplete");
+    }
+
+    /* parse the changed files again and publish the new sets */
+    void reload(Set<String> changed) {
+        Sets pst_old = current.get();
+        dataset pst_nn = pst_old.pst_nn;
+        dataset pst_mm = pst_old.pst_mm;
+        dataset pst_de = pst_old.pst_de;
+        boolean i_all = changed.contains(null);
+        try {
+            String ps_name = base_name(pst_nn.file);
+            if (ps_name != null && (i_all || changed.contains(ps_name))) {
+                pst_nn = Melting.read_nn(dir.resolve(ps_name).toString());
+                pst_nn.file = pst_old.pst_nn.file;
+                check(pst_nn, pst_old.pst_nn, ps_name, NN_ENTRIES);
+                pst_nn.nn_table();   /* recompiled here rather than by the first computation */
+            }
+            ps_name = base_name(pst_mm.file);
+            if (ps_name != null && (i_all || changed.contains(ps_name))) {
+                pst_mm = Melting.read_mismatches(dir.resolve(ps_name).toString());
+                pst_mm.file = pst_old.pst_mm.file;
+                check(pst_mm, pst_old.pst_mm, ps_name);
+            }
+            ps_name = base_name(pst_de.file);
+            if (ps_name != null && (i_all || changed.contains(ps_name))) {
+                pst_de = Melting.read_dangends(dir.resolve(ps_name).toString());
+                pst_de.file = pst_old.pst_de.file;
+                check(pst_de, pst_old.pst_de, ps_name);
+            }
+        } catch (RuntimeException e) {
+            /* a file being written, incomplete or with an error: keep the previous sets */
+            Melting.ERROR.printf(" I was not able to reload the parameters from %s: %s\n", dir, e);
+            return;
+        }
+        if (pst_nn == pst_old.pst_nn && pst_mm == pst_old.pst_mm && pst_de == pst_old.pst_de)
+            return;   /* none of the files in use has changed */
+        if (current.compareAndSet(pst_old, new Sets(pst_nn, pst_mm, pst_de)))
+            l_generation.incrementAndGet();
+    }
+}
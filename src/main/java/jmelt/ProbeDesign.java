@@ -0,0 +1,143 @@
+
+package jmelt;
+
+import java.io.*;
+import java.util.stream.*;
+
+import jmelt.Melting.MeltingParams;
+
+/******************************************************************************
+ * File: ProbeDesign.java                                                     *
+ * Aim : inverse design. For every start position of a template, find the    *
+ *       length of the probe whose nearest-neighbor Tm is the closest to a   *
+ *       target, or the first length which reaches it.                        *
+ *                                                                            *
+ *       Enthalpy and entropy are grown once along the template (cumulated   *
+ *       sums of the dinucleotides), so that the Tm of any probe costs a few *
+ *       operations. The lengths of a start position are walked from the    *
+ *       shortest, in one pass with the same rule in both modes: the first   *
+ *       mode stops at the first Tm reaching the target, the closest mode    *
+ *       keeps the nearest Tm. The Tm is not assumed to grow with the length *
+ *       (a dinucleotide of low enthalpy can lower it), so no binary search: *
+ *       it would have to check its bracket length by length anyway. The    *
+ *       start positions are computed in parallel.                            *
+ ******************************************************************************/
+
+public class ProbeDesign {
+
+    /* optimal probe for a start position; i_length is 0 if there is none */
+    public static class Probe {
+        public int i_start;
+        public int i_length;
+        public double d_tm;
+    }
+
+    final MeltingParams pst_param;
+    final NnTable pst_table;
+    final double d_target;          /* Tm to reach */
+    final int i_min;                /* shortest probe */
+    final int i_max;                /* longest probe */
+    final boolean i_first;          /* first length reaching the target, instead of the closest Tm */
+
+    public ProbeDesign(MeltingParams pst_param, double d_target, int i_min, int i_max, boolean i_first) {
+        this.pst_param = pst_param;
+        this.pst_table = pst_param.pst_present_nn.nn_table();
+        this.d_target = d_target;
+        this.i_min = Math.max(2, i_min);
+        this.i_max = i_max;
+        this.i_first = i_first;
+    }
+
+    /* the cumulated parameters of a template, shared by all the start positions */
+    class Template {
+        final String ps_template;
+        final int[] i_code;         /* 2-bit code of each base */
+        final int[] i_legal;        /* end of the run of legal bases containing each position */
+        final double[] d_cum_h;     /* enthalpy of the dinucleotides before each position */
+        final double[] d_cum_s;
+
+        Template(String ps_template) {
+            this.ps_template = ps_template;
+            int i_length = ps_template.length();
+            i_code = new int[i_length];
+            i_legal = new int[i_length + 1];
+            d_cum_h = new double[i_length];
+            d_cum_s = new double[i_length];
+            for (int i = 0; i < i_length; i++)
+                i_code[i] = NnTable.code(ps_template.charAt(i));
+            i_legal[i_length] = i_length;
+            for (int i = i_length - 1; i >= 0; i--)
+                i_legal[i] = (i_code[i] < 0) ? i : i_legal[i + 1];
+            for (int i = 1; i < i_length; i++) {
+                double d_h = 0, d_s = 0;
+                if (i_code[i - 1] >= 0 && i_code[i] >= 0) {
+                    d_h = pst_table.d_enthalpy[i_code[i - 1] << 2 | i_code[i]];
+                    d_s = pst_table.d_entropy[i_code[i - 1] << 2 | i_code[i]];
+                }
+                d_cum_h[i] = d_cum_h[i - 1] + d_h;
+                d_cum_s[i] = d_cum_s[i - 1] + d_s;
+            }
+        }
+
+        /* Tm of the probe [i_start, i_start + i_length), as computed by get_results */
+        double tm(int i_start, int i_length) {
+            int i_end = i_start + i_length - 1;
+            double d_h = pst_table.d_init_enthalpy[i_code[i_start]] + pst_table.d_init_enthalpy[i_code[i_end]]
+                    + d_cum_h[i_end] - d_cum_h[i_start];
+            double d_s = pst_table.d_init_entropy[i_code[i_start]] + pst_table.d_init_entropy[i_code[i_end]]
+                    + d_cum_s[i_end] - d_cum_s[i_start];
+            return Melting.tm_exact(pst_param, d_h, d_s + Melting.salt_entropy(pst_param, i_length));
+        }
+
+        /* the lengths walked from the shortest, each Tm from the cumulated sums */
+        Probe design(int i_start) {
+            Probe pst_probe = new Probe();
+            pst_probe.i_start = i_start;
+            int i_high = Math.min(i_max, i_legal[i_start] - i_start);  /* stop at an illegal base */
+            double d_nearest = Double.POSITIVE_INFINITY;   /* distance of the best Tm to the target */
+            for (int i_length = i_min; i_length <= i_high; i_length++) {
+                double d_tm = tm(i_start, i_length);
+                double d_distance = i_first ? ((d_tm >= d_target) ? 0 : Double.POSITIVE_INFINITY)
+                        : Math.abs(d_tm - d_target);
+                if (d_distance >= d_nearest) continue;     /* equal distances: the shortest probe */
+                d_nearest = d_distance;
+                pst_probe.i_length = i_length;
+                pst_probe.d_tm = d_tm;
+                if (i_first && d_distance == 0) break;     /* the first length reaching the target */
+            }
+            return pst_probe;
+        }
+    }
+
+    /**********************************************************
+     * Optimal probe for every start position of a template *
+     **********************************************************/
+
+    public Probe[] design(String ps_template) {
+        Template pst_template = new Template(ps_template);
+        Probe[] pst_probes = new Probe[ps_template.length()];
+        IntStream.range(0, pst_probes.length).parallel()
+                .forEach(i -> pst_probes[i] = pst_template.design(i));
+        return pst_probes;
+    }
+
+    /* one line per start position: start (from 1), length, Tm and probe */
+    public void print(String ps_template, PrintStream out) {
+        Probe[] pst_probes = design(ps_template);
+        StringBuilder s_line = new StringBuilder();
+        out.printf("# target Tm %.2f, lengths %d to %d, %s\n", d_target, i_min, i_max,
+                i_first ? "first length reaching the target" : "closest Tm");
+        for (Probe pst_probe : pst_probes) {
+            s_line.setLength(0);
+            s_line.append(pst_probe.i_start + 1).append('\t');
+            if (pst_probe.i_length == 0) {
+                s_line.append("-\t-\t-");
+            } else {
+                s_line.append(pst_probe.i_length).append('\t');
+                WindowMap.append_fixed2(s_line, pst_probe.d_tm);
+                s_line.append('\t').append(ps_template, pst_probe.i_start, pst_probe.i_start + pst_probe.i_length);
+            }
+            out.println(s_line);
+        }
+    }
+}
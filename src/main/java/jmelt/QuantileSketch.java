@@ -0,0 +1,126 @@
+
+package jmelt;
+
+import java.util.Arrays;
+
+/******************************************************************************
+ * File: QuantileSketch.java                                                  *
+ * Aim : quantiles of a stream of values in constant memory: a t-digest     *
+ *       (Dunning), the values summed up as centroids (mean, weight).       *
+ *                                                                            *
+ *       The values are put in a buffer; when it is full, it is sorted with  *
+ *       the centroids and merged into them from left to right, a centroid  *
+ *       growing while the k scale, k(q) = C / 2pi asin(2q - 1), of the     *
+ *       quantiles it covers stays within 1. The centroids are then small    *
+ *       near the tails, where the quantiles are precise, and at most about *
+ *       C of them remain. Two sketches are merged the same way, the         *
+ *       centroids of one being the weighted values of the other.          *
+ ******************************************************************************/
+
+public class QuantileSketch {
+
+    static final double COMPRESSION = 200;
+
+    double[] d_mean = new double[0];               /* centroids, sorted */
+    double[] d_weight = new double[0];
+    int i_centroids;
+    final double[] d_buffer_mean = new double[(int) (5 * COMPRESSION)];
+    final double[] d_buffer_weight = new double[(int) (5 * COMPRESSION)];
+    int i_buffered;
+    double d_total;                                /* weight of the centroids and of the buffer */
+    double d_min = Double.POSITIVE_INFINITY, d_max = Double.NEGATIVE_INFINITY;
+
+    public void add(double d_value) {
+        add(d_value, 1);
+    }
+
+    void add(double d_value, double d_w) {
+        if (i_buffered == d_buffer_mean.length) compress();
+        d_buffer_mean[i_buffered] = d_value;
+        d_buffer_weight[i_buffered++] = d_w;
+        d_total += d_w;
+        d_min = Math.min(d_min, d_value);
+        d_max = Math.max(d_max, d_value);
+    }
+
+    public void merge(QuantileSketch other) {
+        other.compress();
+        for (int i = 0; i < other.i_centroids; i++) add(other.d_mean[i], other.d_weight[i]);
+        d_min = Math.min(d_min, other.d_min);
+        d_max = Math.max(d_max, other.d_max);
+    }
+
+    public double count() {
+        return d_total;
+    }
+
+    /*+------------------------------------------------------------------+
+      | the buffer merged into the centroids                             |
+      +------------------------------------------------------------------+*/
+
+    void compress() {
+        if (i_buffered == 0) return;
+        int n = i_centroids + i_buffered;
+        double[] d_m = Arrays.copyOf(d_mean, n);
+        double[] d_w = Arrays.copyOf(d_weight, n);
+        System.arraycopy(d_buffer_mean, 0, d_m, i_centroids, i_buffered);
+        System.arraycopy(d_buffer_weight, 0, d_w, i_centroids, i_buffered);
+        Integer[] i_order = new Integer[n];
+        for (int i = 0; i < n; i++) i_order[i] = i;
+        Arrays.sort(i_order, (a, b) -> Double.compare(d_m[a], d_m[b]));
+
+        double[] d_new_mean = new double[n];
+        double[] d_new_weight = new double[n];
+        int k = 0;
+        double d_before = 0;                        /* weight of the centroids already made */
+        double d_k_low = k_scale(0);
+        d_new_mean[0] = d_m[i_order[0]];
+        d_new_weight[0] = d_w[i_order[0]];
+        for (int j = 1; j < n; j++) {
+            int i = i_order[j];
+            double d_q = (d_before + d_new_weight[k] + d_w[i]) / d_total;
+            if (k_scale(d_q) - d_k_low <= 1) {     /* still within one unit of k: merged */
+                d_new_weight[k] += d_w[i];
+                d_new_mean[k] += (d_m[i] - d_new_mean[k]) * d_w[i] / d_new_weight[k];
+            } else {
+                d_before += d_new_weight[k];
+                d_k_low = k_scale(d_before / d_total);
+                k++;
+                d_new_mean[k] = d_m[i];
+                d_new_weight[k] = d_w[i];
+            }
+        }
+        i_centroids = k + 1;
+        d_mean = Arrays.copyOf(d_new_mean, i_centroids);
+        d_weight = Arrays.copyOf(d_new_weight, i_centroids);
+        i_buffered = 0;
+    }
+
+    static double k_scale(double d_q) {
+        return COMPRESSION / (2 * Math.PI) * Math.asin(2 * Math.min(1, Math.max(0, d_q)) - 1);
+    }
+
+    /*+------------------------------------------------------------------+
+      | quantile d_q (0 to 1): interpolated between the centres of the   |
+      | centroids, and the extremes at both ends                         |
+      +------------------------------------------------------------------+*/
+
+    public double quantile(double d_q) {
+        compress();
+        if (i_centroids == 0) return Double.NaN;
+        if (i_centroids == 1) return d_mean[0];
+        double d_index = d_q * d_total;
+        if (d_index <= d_weight[0] / 2)
+            return d_min + (d_mean[0] - d_min) * d_index / (d_weight[0] / 2);
+        double d_centre = d_weight[0] / 2;         /* rank of the centre of centroid i */
+        for (int i = 0; i < i_centroids - 1; i++) {
+            double d_next = d_centre + (d_weight[i] + d_weight[i + 1]) / 2;
+            if (d_index <= d_next)
+                return d_mean[i] + (d_mean[i + 1] - d_mean[i]) * (d_index - d_centre) / (d_next - d_centre);
+            d_centre = d_next;
+        }
+        double d_last = d_weight[i_centroids - 1] / 2;
+        return d_mean[i_centroids - 1]
+                + (d_max - d_mean[i_centroids - 1]) * Math.min(1, (d_index - d_centre) / d_last);
+    }
+}
@@ -0,0 +1,159 @@
+
+package jmelt;
+
+import java.io.*;
+import java.util.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.dataset;
+
+/******************************************************************************
+ * File: SetMatrix.java                                                       *
+ * Aim : Tm of the probes with several nearest-neighbor sets at once, e.g.   *
+ *       all the bundled ones, as a table probes x sets.                     *
+ *                                                                            *
+ *       The enthalpy (and the entropy) of a perfectly matched duplex is a  *
+ *       linear function of 20 counts: the 16 dinucleotides and the 4 bases *
+ *       which can be at its ends (initiation terms). The counts of a probe *
+ *       are taken once; a set is the 20 values of its NnTable. The sums of *
+ *       all the probes with all the sets are then the product of the        *
+ *       matrix probes x counts by the matrix counts x sets, done by blocks  *
+ *       of probes which stay in the cache while every set is applied.      *
+ *       The probes are read by chunks, so that the memory does not grow     *
+ *       with the batch.                                                      *
+ *                                                                            *
+ *       The Tm is the nearest-neighbor one whatever the length (-T is      *
+ *       ignored); a probe which is not perfectly matched, or which has a   *
+ *       dinucleotide the set does not have, gets "-".                       *
+ ******************************************************************************/
+
+public class SetMatrix {
+
+    static final String[] BUNDLED = {"all97a.nn", "san96a.nn", "sug96a.nn", "bre86a.nn",
+            "fre86a.nn", "sug95a.nn", "xia98a.nn"};
+    static final int FEATURES = 20;       /* 16 dinucleotides, 4 terminal bases */
+    static final int BLOCK = 64;          /* probes of a block of the product */
+    static final int CHUNK = 4096;        /* probes computed and printed at once */
+
+    final MeltingParams pst_param;
+    final String[] ps_sets;
+    final int i_sets;
+    final double[] d_weight_h;            /* FEATURES values per set, set after set */
+    final double[] d_weight_s;
+    final boolean[] b_missing;            /* 16 per set: dinucleotide absent of the set */
+
+    final String[] ps_probes = new String[CHUNK];
+    final double[] d_counts = new double[CHUNK * FEATURES];
+    final boolean[] b_valid = new boolean[CHUNK];
+    final double[] d_enthalpy, d_entropy;  /* results of a chunk, sets of a probe after each other */
+    int i_probes;
+
+    public SetMatrix(MeltingParams pst_param, String[] ps_sets) {
+        this.pst_param = pst_param;
+        this.ps_sets = ps_sets;
+        this.i_sets = ps_sets.length;
+        d_weight_h = new double[i_sets * FEATURES];
+        d_weight_s = new double[i_sets * FEATURES];
+        b_missing = new boolean[i_sets * 16];
+        for (int k = 0; k < i_sets; k++) {
+            dataset pst_set = Melting.read_nn(ps_sets[k]);
+            NnTable pst_table = pst_set.nn_table();
+            for (int i_pair = 0; i_pair < 16; i_pair++) {
+                d_weight_h[k * FEATURES + i_pair] = pst_table.d_enthalpy[i_pair];
+                d_weight_s[k * FEATURES + i_pair] = pst_table.d_entropy[i_pair];
+                b_missing[k * 16 + i_pair] = pst_table.i_index[i_pair] < 0;
+            }
+            for (int i_base = 0; i_base < 4; i_base++) {
+                d_weight_h[k * FEATURES + 16 + i_base] = pst_table.d_init_enthalpy[i_base];
+                d_weight_s[k * FEATURES + 16 + i_base] = pst_table.d_init_entropy[i_base];
+            }
+        }
+        d_enthalpy = new double[CHUNK * i_sets];
+        d_entropy = new double[CHUNK * i_sets];
+    }
+
+    public void print_header(PrintStream out) {
+        StringBuilder s_line = new StringBuilder("#sequence");
+        for (String ps_set : ps_sets) s_line.append('\t').append(ps_set);
+        out.println(s_line);
+    }
+
+    /* a probe and its complement; the chunk is printed when full */
+    public void add(String ps_sequence, String ps_complement, PrintStream out) {
+        int p = i_probes++;
+        ps_probes[p] = ps_sequence;
+        Arrays.fill(d_counts, p * FEATURES, (p + 1) * FEATURES, 0);
+        b_valid[p] = count(ps_sequence, ps_complement, d_counts, p * FEATURES);
+        if (i_probes == CHUNK) flush(out);
+    }
+
+    /* counts of the duplex, false if it is not a perfect match of A, C, G, T */
+    static boolean count(String ps_sequence, String ps_complement, double[] d_counts, int i_offset) {
+        int i_length = ps_sequence.length();
+        if (i_length < 2 || ps_complement.length() != i_length) return false;
+        int i_previous = -1;
+        for (int i = 0; i < i_length; i++) {
+            int i_code = NnTable.code(ps_sequence.charAt(i));
+            if (i_code < 0 || NnTable.code(ps_complement.charAt(i)) != 3 - i_code) return false;
+            if (i_previous >= 0) d_counts[i_offset + (i_previous << 2 | i_code)]++;
+            i_previous = i_code;
+        }
+        d_counts[i_offset + 16 + NnTable.code(ps_sequence.charAt(0))]++;
+        d_counts[i_offset + 16 + NnTable.code(ps_sequence.charAt(i_length - 1))]++;
+        return true;
+    }
+
+    /*+------------------------------------------------------------------+
+      | enthalpies and entropies of the probes of the chunk with every   |
+      | set: counts (probes x 20) times weights (20 x sets), by blocks   |
+      | of probes                                                        |
+      +------------------------------------------------------------------+*/
+
+    void multiply() {
+        for (int p_block = 0; p_block < i_probes; p_block += BLOCK) {
+            int p_end = Math.min(p_block + BLOCK, i_probes);
+            for (int k = 0; k < i_sets; k++) {
+                int w = k * FEATURES;
+                for (int p = p_block; p < p_end; p++) {
+                    int c = p * FEATURES;
+                    double d_sum_h = 0, d_sum_s = 0;
+                    for (int f = 0; f < FEATURES; f++) {
+                        d_sum_h += d_counts[c + f] * d_weight_h[w + f];
+                        d_sum_s += d_counts[c + f] * d_weight_s[w + f];
+                    }
+                    d_enthalpy[p * i_sets + k] = d_sum_h;
+                    d_entropy[p * i_sets + k] = d_sum_s;
+                }
+            }
+        }
+    }
+
+    /* one line per probe of the chunk: sequence and the Tm with each set */
+    public void flush(PrintStream out) {
+        multiply();
+        StringBuilder s_line = new StringBuilder();
+        for (int p = 0; p < i_probes; p++) {
+            s_line.setLength(0);
+            s_line.append(ps_probes[p]);
+            double d_salt = Melting.salt_entropy(pst_param, ps_probes[p].length());
+            for (int k = 0; k < i_sets; k++) {
+                s_line.append('\t');
+                if (!b_valid[p] || uses_missing(p, k)) {
+                    s_line.append('-');
+                    continue;
+                }
+                WindowMap.append_fixed2(s_line, Melting.tm_exact(pst_param,
+                        d_enthalpy[p * i_sets + k], d_entropy[p * i_sets + k] + d_salt));
+            }
+            out.println(s_line);
+            ps_probes[p] = null;
+        }
+        i_probes = 0;
+    }
+
+    private boolean uses_missing(int p, int k) {
+        for (int i_pair = 0; i_pair < 16; i_pair++)
+            if (b_missing[k * 16 + i_pair] && d_counts[p * FEATURES + i_pair] != 0) return true;
+        return false;
+    }
+}
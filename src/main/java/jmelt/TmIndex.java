@@ -0,0 +1,383 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import jmelt.Melting.MeltingParams;
+
+/******************************************************************************
+ * File: TmIndex.java                                                         *
+ * Aim : a library of probes indexed by their Tm (--index), which answers    *
+ *       the probes whose Tm is in [a, b] under the conditions of the run    *
+ *       (--query=a:b) without computing anything.                            *
+ *                                                                            *
+ *       A profile is the set of conditions: the header of --json (salt,    *
+ *       concentrations, corrections, threshold and every entry of the       *
+ *       sets); its files in the directory are named after its SHA-256.     *
+ *       A segment, PROFILE.GENERATION.tmi, holds probes sorted by Tm:       *
+ *                                                                            *
+ *          int magic, int version, long count, long offset of the data,      *
+ *          long highest generation replaced by the segment (0: none),        *
+ *          int length and bytes of the profile, up to a multiple of 8,       *
+ *          count entries: double Tm, long offset of the probe in the data,   *
+ *          the probes, end to end, in the order of the entries.              *
+ *                                                                            *
+ *       Each batch of --input adds a segment (a delta), sorted by          *
+ *       ExternalSort. A query maps the segments, finds the range of each   *
+ *       by binary search on the Tm, and merges the ranges with a heap; the   *
+ *       probes are given as slices of the mappings, without copy. --compact  *
+ *       merges the segments of the profile into one, as is done when there   *
+ *       are more than MAX_SEGMENTS. The merged segment is committed before   *
+ *       the ones it replaces are deleted; if the program stops in between,   *
+ *       they are deleted when the index is opened next, since the merged     *
+ *       segment records the highest generation it replaces (version 1        *
+ *       segments, without it, replace none).                                 *
+ ******************************************************************************/
+
+public class TmIndex implements Closeable {
+
+    static final int MAGIC = 0x544d4958;           /* "TMIX" */
+    static final int VERSION = 2;
+    static final int ENTRY = 16;                   /* bytes of an entry */
+    static final int MAX_SEGMENTS = 8;             /* compacted beyond */
+    static final String SUFFIX = ".tmi";
+
+    /* what is done with each probe of a range, in the order of the Tm */
+    public interface Visitor {
+        void visit(double d_tm, ByteBuffer probe) throws IOException;
+    }
+
+    final Path directory;
+    final String ps_profile;                       /* the conditions */
+    final String ps_name;                          /* their hash, naming the segments */
+    final List<Segment> segments = new ArrayList<Segment>();   /* the oldest first */
+
+    TmIndex(Path directory, String ps_profile) throws IOException {
+        this.directory = directory;
+        this.ps_profile = ps_profile;
+        this.ps_name = hash(ps_profile);
+        List<Long> generations = new ArrayList<Long>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, ps_name + ".*" + SUFFIX)) {
+                for (Path file : files) {
+                    String ps_file = file.getFileName().toString();
+                    try {
+                        generations.add(Long.parseLong(ps_file.substring(ps_name.length() + 1,
+                                ps_file.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        /* not a segment */
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        try {
+            for (long l_generation : generations) segments.add(new Segment(path(l_generation), l_generation));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        long l_replaced = 0;
+        for (Segment segment : segments) l_replaced = Math.max(l_replaced, segment.l_replaced);
+        for (Iterator<Segment> i = segments.iterator(); i.hasNext(); ) {
+            Segment segment = i.next();
+            if (segment.l_generation > l_replaced) continue;
+            segment.close();                       /* merged into a later segment by a compaction */
+            i.remove();
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                /* e.g. an index read only: left, never read */
+            }
+        }
+    }
+
+    /* the index of directory under the conditions of pst_param */
+    public static TmIndex open(Path directory, MeltingParams pst_param) throws IOException {
+        return new TmIndex(directory, profile(pst_param));
+    }
+
+    /* the conditions, as the header of --json */
+    static String profile(MeltingParams pst_param) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonLines json = new JsonLines(out);
+        json.header(pst_param);
+        json.flush();
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII).trim();
+    }
+
+    static String hash(String ps_profile) {
+        try {
+            byte[] b_hash = MessageDigest.getInstance("SHA-256").digest(ps_profile.getBytes(StandardCharsets.UTF_8));
+            StringBuilder s_name = new StringBuilder();
+            for (int i = 0; i < 16; i++) s_name.append(String.format("%02x", b_hash[i]));
+            return s_name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Path path(long l_generation) {
+        return directory.resolve(ps_name + "." + l_generation + SUFFIX);
+    }
+
+    /* probes of all the segments */
+    public long count() {
+        long l_count = 0;
+        for (Segment segment : segments) l_count += segment.l_count;
+        return l_count;
+    }
+
+    public int segments() {
+        return segments.size();
+    }
+
+    /*+------------------------------------------------------------------+
+      | the probes whose Tm is in [d_low, d_high], the lowest first;     |
+      | equal Tm in the order of the segments                            |
+      +------------------------------------------------------------------+*/
+
+    public void query(double d_low, double d_high, Visitor visitor) throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, segments.size()),
+                (a, b) -> a.d_tm != b.d_tm ? Double.compare(a.d_tm, b.d_tm) : Integer.compare(a.i_segment, b.i_segment));
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            Cursor cursor = new Cursor(segment, i, segment.first(d_low), segment.first_above(d_high));
+            if (cursor.next()) heap.add(cursor);
+        }
+        while (!heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            visitor.visit(cursor.d_tm, cursor.segment.probe(cursor.l_entry));
+            if (cursor.next()) heap.add(cursor);
+        }
+    }
+
+    /* the entries of a segment from l_first to l_end (excluded) */
+    static class Cursor {
+        final Segment segment;
+        final int i_segment;
+        final long l_end;
+        long l_entry;
+        double d_tm;
+
+        Cursor(Segment segment, int i_segment, long l_first, long l_end) {
+            this.segment = segment;
+            this.i_segment = i_segment;
+            this.l_entry = l_first - 1;
+            this.l_end = l_end;
+        }
+
+        boolean next() throws IOException {
+            if (++l_entry >= l_end) return false;
+            d_tm = segment.tm(l_entry);
+            return true;
+        }
+    }
+
+    /*+------------------------------------------------------------------+
+      | a new segment: probes given by increasing Tm, written beside,    |
+      | renamed into the index by commit()                               |
+      +------------------------------------------------------------------+*/
+
+    public Writer add() throws IOException {
+        return writer(0);
+    }
+
+    /* the writer of the next generation, replacing the ones up to l_replaced */
+    Writer writer(long l_replaced) throws IOException {
+        long l_generation = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).l_generation + 1;
+        Files.createDirectories(directory);
+        return new Writer(l_generation, l_replaced);
+    }
+
+    public class Writer {
+
+        final long l_generation;
+        final Path temporary, data_file;
+        final byte[] b_header;
+        final DataOutputStream entries, data;
+        long l_count, l_data;
+        double d_last = Double.NEGATIVE_INFINITY;
+
+        Writer(long l_generation, long l_replaced) throws IOException {
+            this.l_generation = l_generation;
+            temporary = directory.resolve(ps_name + "." + l_generation + ".tmp");
+            data_file = directory.resolve(ps_name + "." + l_generation + ".data.tmp");
+            byte[] b_profile = ps_profile.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate((36 + b_profile.length + 7) & ~7);
+            header.putInt(MAGIC).putInt(VERSION).putLong(0).putLong(0).putLong(l_replaced)
+                    .putInt(b_profile.length).put(b_profile);
+            b_header = header.array();
+            entries = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16));
+            entries.write(b_header);
+            data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(data_file), 1 << 16));
+        }
+
+        public void add(double d_tm, ByteBuffer probe) throws IOException {
+            if (Double.isNaN(d_tm)) return;           /* no Tm: never in a range */
+            if (d_tm < d_last) throw new IOException("the probes of a segment must be sorted by Tm");
+            d_last = d_tm;
+            entries.writeDouble(d_tm);
+            entries.writeLong(l_data);
+            int i_length = probe.remaining();
+            if (probe.hasArray()) data.write(probe.array(), probe.arrayOffset() + probe.position(), i_length);
+            else for (int i = probe.position(); i < probe.limit(); i++) data.write(probe.get(i));
+            l_data += i_length;
+            l_count++;
+        }
+
+        public void add(double d_tm, String ps_probe) throws IOException {
+            add(d_tm, ByteBuffer.wrap(ps_probe.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        public long count() {
+            return l_count;
+        }
+
+        /* the data after the entries, the header completed, then the segment in the index */
+        public void commit() throws IOException {
+            entries.close();
+            data.close();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                 FileChannel data_channel = FileChannel.open(data_file)) {
+                long l_offset = b_header.length + ENTRY * l_count;
+                for (long l_done = 0; l_done < l_data; )
+                    l_done += data_channel.transferTo(l_done, l_data - l_done, channel.position(l_offset + l_done));
+                ByteBuffer counts = ByteBuffer.allocate(16).putLong(l_count).putLong(l_offset);
+                counts.flip();
+                channel.write(counts, 8);
+                channel.force(true);
+            }
+            Files.delete(data_file);
+            Files.move(temporary, path(l_generation), StandardCopyOption.ATOMIC_MOVE);
+            segments.add(new Segment(path(l_generation), l_generation));
+        }
+
+        /* nothing added to the index */
+        public void abort() {
+            try {
+                entries.close();
+                data.close();
+                Files.deleteIfExists(temporary);
+                Files.deleteIfExists(data_file);
+            } catch (IOException e) {
+                /* left beside the index, never read */
+            }
+        }
+    }
+
+    /*+------------------------------------------------------------------+
+      | the segments of the profile merged into one                      |
+      +------------------------------------------------------------------+*/
+
+    public void compact() throws IOException {
+        if (segments.size() < 2) return;
+        List<Segment> old = new ArrayList<Segment>(segments);
+        Writer writer = writer(old.get(old.size() - 1).l_generation);
+        try {
+            query(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, writer::add);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.commit();
+        for (Segment segment : old) {       /* a crash from here: deleted by the next open */
+            segment.close();
+            segments.remove(segment);
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    public void close() {
+        for (Segment segment : segments) segment.close();
+    }
+
+    /*+------------------------------------------------------------------+
+      | a segment, mapped                                                |
+      +------------------------------------------------------------------+*/
+
+    class Segment {
+
+        final Path path;
+        final long l_generation;
+        final FileChannel channel;
+        final MappedFile file;
+        final long l_count, l_entries, l_data, l_data_length;
+        final long l_replaced;                     /* highest generation merged into this one, 0: none */
+
+        Segment(Path path, long l_generation) throws IOException {
+            this.path = path;
+            this.l_generation = l_generation;
+            channel = FileChannel.open(path);
+            try {
+                file = new MappedFile(channel);
+                int i_version = (file.size() < 28) ? 0 : file.get_int(4);
+                int i_profile = (i_version == 1) ? 24 : 32;   /* where the profile starts, after its length */
+                if (file.size() < i_profile + 4 || file.get_int(0) != MAGIC || (i_version != 1 && i_version != VERSION))
+                    throw new IOException(path + " is not a segment of a Tm index");
+                l_replaced = (i_version == 1) ? 0 : file.get_long(24);
+                int i_length = file.get_int(i_profile);
+                byte[] b_profile = new byte[i_length];
+                file.slice(i_profile + 4, i_length).get(b_profile);
+                if (!ps_profile.equals(new String(b_profile, StandardCharsets.UTF_8)))
+                    throw new IOException(path + " was computed under other conditions");
+                l_count = file.get_long(8);
+                l_data = file.get_long(16);
+                l_entries = (i_profile + 4 + i_length + 7) & ~7;
+                l_data_length = file.size() - l_data;
+                if (l_data != l_entries + ENTRY * l_count || l_data_length < 0)
+                    throw new IOException(path + " is truncated");
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        double tm(long l_entry) throws IOException {
+            return file.get_double(l_entries + ENTRY * l_entry);
+        }
+
+        ByteBuffer probe(long l_entry) throws IOException {
+            long l_start = file.get_long(l_entries + ENTRY * l_entry + 8);
+            long l_end = (l_entry + 1 < l_count) ? file.get_long(l_entries + ENTRY * (l_entry + 1) + 8) : l_data_length;
+            return file.slice(l_data + l_start, (int) (l_end - l_start));
+        }
+
+        /* the first entry whose Tm is d_tm or more */
+        long first(double d_tm) throws IOException {
+            long l_low = 0, l_high = l_count;
+            while (l_low < l_high) {
+                long l_middle = (l_low + l_high) >>> 1;
+                if (tm(l_middle) < d_tm) l_low = l_middle + 1;
+                else l_high = l_middle;
+            }
+            return l_low;
+        }
+
+        /* the first entry whose Tm is above d_tm */
+        long first_above(double d_tm) throws IOException {
+            long l_low = 0, l_high = l_count;
+            while (l_low < l_high) {
+                long l_middle = (l_low + l_high) >>> 1;
+                if (tm(l_middle) <= d_tm) l_low = l_middle + 1;
+                else l_high = l_middle;
+            }
+            return l_low;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* read only */
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+
+package jmelt;
+
+import java.io.*;
+
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: TmSummary.java                                                       *
+ * Aim : distribution of the Tm of a batch (--summary) instead of the       *
+ *       results of each duplex: count, mean and variance (Welford), min    *
+ *       and max, quantiles (QuantileSketch), a histogram of fixed bins and *
+ *       the part computed with the approximative formula. The memory does  *
+ *       not depend on the number of duplexes.                               *
+ *                                                                            *
+ *       Each thread of the BatchPipeline fills one of its own; they are    *
+ *       merged at the end (the moments by the formula of Chan et al.).     *
+ ******************************************************************************/
+
+public class TmSummary implements BatchPipeline.Accumulator<TmSummary> {
+
+    static final double[] QUANTILES = {0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99};
+    static final double DEFAULT_MIN = -20, DEFAULT_MAX = 120, DEFAULT_STEP = 1;   /* °C */
+
+    final double d_low, d_step;
+    final long[] l_bins;
+    long l_below, l_above;                 /* out of the histogram */
+    long l_count, l_approx, l_failed;      /* l_failed: no Tm (NaN) */
+    double d_mean, d_m2;                   /* mean and sum of the squared deviations */
+    final QuantileSketch pst_sketch = new QuantileSketch();
+
+    public TmSummary(double d_low, double d_high, double d_step) {
+        this.d_low = d_low;
+        this.d_step = d_step;
+        this.l_bins = new long[Math.max(1, (int) Math.ceil((d_high - d_low) / d_step - 1e-9))];
+    }
+
+    public void add(long l_record, String ps_sequence, String ps_complement, Thermodynamic pst_results) {
+        double d_tm = pst_results.d_tm;
+        if (Double.isNaN(d_tm)) {
+            l_failed++;
+            return;
+        }
+        l_count++;
+        if (pst_results.i_approx) l_approx++;
+        double d_delta = d_tm - d_mean;
+        d_mean += d_delta / l_count;
+        d_m2 += d_delta * (d_tm - d_mean);
+        pst_sketch.add(d_tm);
+        int i_bin = (int) Math.floor((d_tm - d_low) / d_step);
+        if (i_bin < 0) l_below++;
+        else if (i_bin >= l_bins.length) l_above++;
+        else l_bins[i_bin]++;
+    }
+
+    public void merge(TmSummary other) {
+        long l_total = l_count + other.l_count;
+        if (l_total > 0) {
+            double d_delta = other.d_mean - d_mean;
+            d_m2 += other.d_m2 + d_delta * d_delta * l_count * other.l_count / l_total;
+            d_mean += d_delta * other.l_count / l_total;
+        }
+        l_count = l_total;
+        l_approx += other.l_approx;
+        l_failed += other.l_failed;
+        l_below += other.l_below;
+        l_above += other.l_above;
+        for (int i = 0; i < l_bins.length; i++) l_bins[i] += other.l_bins[i];
+        pst_sketch.merge(other.pst_sketch);
+    }
+
+    public void print(PrintStream out) {
+        out.printf("  Duplexes: %d\n", l_count + l_failed);
+        if (l_failed > 0) out.printf("  Without melting temperature: %d\n", l_failed);
+        out.printf("  Approximative mode: %d (%.2f %%)\n", l_approx, l_count > 0 ? 100.0 * l_approx / l_count : 0.0);
+        if (l_count == 0) return;
+        out.printf("  Melting temperature: mean %5.2f °C, standard deviation %5.2f °C\n",
+                d_mean, l_count > 1 ? Math.sqrt(d_m2 / (l_count - 1)) : 0.0);
+        out.printf("  Minimum: %5.2f °C, maximum: %5.2f °C\n", pst_sketch.d_min, pst_sketch.d_max);
+        out.printf("  Quantiles:");
+        for (double d_q : QUANTILES) out.printf(" %d%% %5.2f", Math.round(100 * d_q), pst_sketch.quantile(d_q));
+        out.printf(" °C\n");
+        out.printf("  Histogram (°C):\n");
+        if (l_below > 0) out.printf("  < %.2f\t%d\n", d_low, l_below);
+        for (int i = 0; i < l_bins.length; i++)
+            if (l_bins[i] > 0) out.printf("  [%.2f, %.2f)\t%d\n", d_low + i * d_step, d_low + (i + 1) * d_step, l_bins[i]);
+        if (l_above > 0) out.printf("  >= %.2f\t%d\n", d_low + l_bins.length * d_step, l_above);
+    }
+}
@@ -0,0 +1,88 @@
+
+package jmelt;
+
+import java.util.*;
+
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: TopK.java                                                            *
+ * Aim : the K duplexes of a batch whose Tm is the closest to a target, or  *
+ *       the K highest or lowest (--top), without keeping the others.       *
+ *                                                                            *
+ *       The K best so far are in a heap whose root is the worst of them:   *
+ *       a duplex enters when it is better than the root, which leaves.     *
+ *       Each thread of the BatchPipeline has a heap of its own; they are   *
+ *       merged at the end, so that the memory is K duplexes per thread.    *
+ *       Equal scores are ordered by their number in the batch, which makes *
+ *       the result the same whatever the number of threads.                *
+ ******************************************************************************/
+
+public class TopK implements BatchPipeline.Accumulator<TopK> {
+
+    public static final int CLOSEST = 0, HIGHEST = 1, LOWEST = 2;
+
+    /* a duplex kept, with its results */
+    public static class Entry {
+        public final long l_record;
+        public final String ps_sequence;
+        public final String ps_complement;
+        public final Thermodynamic pst_results;
+        final double d_score;              /* the smaller the better */
+
+        Entry(long l_record, String ps_sequence, String ps_complement, Thermodynamic pst_results, double d_score) {
+            this.l_record = l_record;
+            this.ps_sequence = ps_sequence;
+            this.ps_complement = ps_complement;
+            this.pst_results = pst_results;
+            this.d_score = d_score;
+        }
+    }
+
+    static final Comparator<Entry> BETTER = (a, b) -> a.d_score != b.d_score
+            ? Double.compare(a.d_score, b.d_score) : Long.compare(a.l_record, b.l_record);
+
+    final int i_k;
+    final int i_mode;
+    final double d_target;                 /* °C, for CLOSEST */
+    final PriorityQueue<Entry> heap;       /* root: the worst entry kept */
+
+    public TopK(int i_k, int i_mode, double d_target) {
+        this.i_k = i_k;
+        this.i_mode = i_mode;
+        this.d_target = d_target;
+        this.heap = new PriorityQueue<Entry>(i_k + 1, BETTER.reversed());
+    }
+
+    double score(double d_tm) {
+        if (i_mode == HIGHEST) return -d_tm;
+        if (i_mode == LOWEST) return d_tm;
+        return Math.abs(d_tm - d_target);
+    }
+
+    public void add(long l_record, String ps_sequence, String ps_complement, Thermodynamic pst_results) {
+        if (Double.isNaN(pst_results.d_tm)) return;
+        double d_score = score(pst_results.d_tm);
+        if (heap.size() == i_k) {             /* not better than the worst kept: nothing is built */
+            Entry worst = heap.peek();
+            if (d_score > worst.d_score || (d_score == worst.d_score && l_record > worst.l_record)) return;
+        }
+        offer(new Entry(l_record, ps_sequence, ps_complement, pst_results, d_score));
+    }
+
+    void offer(Entry entry) {
+        heap.add(entry);
+        if (heap.size() > i_k) heap.poll();
+    }
+
+    public void merge(TopK other) {
+        for (Entry entry : other.heap) offer(entry);
+    }
+
+    /* the entries, the best first */
+    public List<Entry> best() {
+        List<Entry> entries = new ArrayList<Entry>(heap);
+        entries.sort(BETTER);
+        return entries;
+    }
+}
@@ -0,0 +1,294 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import jmelt.Melting.MeltingParams;
+
+/******************************************************************************
+ * File: WindowMap.java                                                       *
+ * Aim : melting map of a whole genome. The melting temperature is computed  *
+ *       for every window of a FASTA file (window size and step given on the  *
+ *       command line) and written as a bedGraph or a WIG track. Windows up   *
+ *       to i_threshold bases are computed with the nearest-neighbor method   *
+ *       (as perfectly matched duplexes), longer ones with tm_approx. Windows *
+ *       containing something else than A, C, G or T are left out.           *
+ *                                                                            *
+ *       The FASTA file is memory-mapped and cut in chunks of at most        *
+ *       CHUNK_BASES bases (or one window, if longer), which are computed on *
+ *       a fork/join pool. A bounded number of chunks is in flight at any    *
+ *       time and they are written in order, so the memory used does not    *
+ *       depend on the size of the genome nor on the size of the windows.   *
+ ******************************************************************************/
+
+public class WindowMap {
+
+    static final int CHUNK_BASES = 1 << 22;     /* bases of the windows computed by one task, at most */
+    static final int FIRST_BUFFER = 1 << 16;    /* bases of the buffer of a contig at first, grown as needed */
+    static final long MAP_SIZE = 1L << 30;      /* the file is mapped 1 GB at a time */
+
+    final MeltingParams pst_param;
+    final int i_window;         /* size of the windows */
+    final int i_step;           /* distance between the starts of two windows */
+    final boolean i_wig;        /* write a WIG track instead of a bedGraph */
+    final boolean i_exact;      /* nearest-neighbor computation of the windows? */
+    final NnTable pst_table;
+    final long l_chunk_windows; /* number of windows computed by one task */
+    final int i_chunk_span;     /* bases covered by a chunk */
+    final int i_span;           /* length of the interval written for each window */
+    final int i_shift;          /* offset of that interval from the start of the window */
+
+    final ForkJoinPool pool = ForkJoinPool.commonPool();
+    final int i_inflight = 2 * pool.getParallelism() + 1;  /* max number of chunks waiting to be written */
+    final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    OutputStream out;
+
+    WindowMap(MeltingParams pst_param, int i_window, int i_step, boolean i_wig) {
+        this.pst_param = pst_param;
+        this.i_window = i_window;
+        this.i_step = i_step;
+        this.i_wig = i_wig;
+        this.i_exact = !Melting.i_approx && i_window <= Melting.i_threshold;
+        this.pst_table = i_exact ? pst_param.pst_present_nn.nn_table() : null;
+        /* With a step smaller than the window, the windows overlap, which a
+           bedGraph does not allow: each value is written for the interval of
+           one step at the centre of its window. */
+        this.i_span = Math.min(i_step, i_window);
+        this.i_shift = (i_window - i_span) / 2;
+        this.l_chunk_windows = Math.max(1, ((long) CHUNK_BASES - i_window) / i_step + 1);
+        this.i_chunk_span = (int) ((l_chunk_windows - 1) * i_step + i_window);
+    }
+
+    /********************************************
+     * Compute the map of a FASTA file into out *
+     ********************************************/
+
+    void run(File fasta, OutputStream out) throws IOException, InterruptedException, ExecutionException {
+        this.out = out;
+        write(String.format("track type=%s name=\"Tm\" description=\"melting temperature (window %d, step %d)\"\n",
+                i_wig ? "wiggle_0" : "bedGraph", i_window, i_step).getBytes(StandardCharsets.US_ASCII));
+
+        try (FileChannel fc = new FileInputStream(fasta).getChannel()) {
+            long l_size = fc.size();
+            Contig contig = null;
+            boolean i_line_start = true;
+            boolean i_header = false;
+            StringBuilder s_name = new StringBuilder();
+            for (long l_offset = 0; l_offset < l_size; l_offset += MAP_SIZE) {
+                MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, l_offset,
+                        Math.min(MAP_SIZE, l_size - l_offset));
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n' || b == '\r') {
+                        if (i_header) {
+                            contig = new Contig(first_word(s_name));
+                            s_name.setLength(0);
+                            i_header = false;
+                        }
+                        i_line_start = true;
+                        continue;
+                    }
+                    if (i_header) {
+                        s_name.append((char) (b & 0xff));
+                        continue;
+                    }
+                    if (i_line_start && b == '>') {
+                        if (contig != null) contig.finish();
+                        contig = null;
+                        i_header = true;
+                        i_line_start = false;
+                        continue;
+                    }
+                    i_line_start = false;
+                    if (b == ' ' || b == '\t') continue;
+                    if (contig == null) contig = new Contig("sequence");  /* no header at all */
+                    contig.add(b);
+                }
+            }
+            if (i_header) contig = new Contig(first_word(s_name));
+            if (contig != null) contig.finish();
+        }
+        while (!pending.isEmpty())
+            write(pending.removeFirst().get());
+        out.flush();
+    }
+
+    static String first_word(StringBuilder s_header) {
+        String s = s_header.toString().trim();
+        int i_blank = s.indexOf(' ');
+        if (i_blank < 0) i_blank = s.indexOf('\t');
+        return (i_blank < 0) ? s : s.substring(0, i_blank);
+    }
+
+    void write(byte[] b_text) throws IOException {
+        out.write(b_text);
+    }
+
+    /* hand a chunk to the pool, writing the oldest ones if too many are waiting */
+    void submit(Chunk chunk) throws IOException {
+        while (pending.size() >= i_inflight) {
+            try {
+                write(pending.removeFirst().get());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        pending.addLast(pool.submit(chunk));
+    }
+
+    /*+---------------------------------------------------------------+
+      | A contig is read base by base. The bases needed by the next  |
+      | l_chunk_windows windows are gathered in a buffer, which is    |
+      | then handed to the pool; the overlap is copied in the next    |
+      | buffer. The buffer grows up to i_chunk_span bases only if the |
+      | contig is that long.                                          |
+      +---------------------------------------------------------------+*/
+
+    class Contig {
+        final String s_name;
+        byte[] b_bases = new byte[Math.min(i_chunk_span, FIRST_BUFFER)];
+        int i_filled = 0;       /* bases already in the buffer */
+        long l_start = 0;       /* position in the contig of the first base of the buffer */
+        long l_position = 0;    /* position in the contig of the next base read */
+
+        Contig(String s_name) {
+            this.s_name = s_name;
+        }
+
+        void add(byte b) throws IOException {
+            if (l_position++ < l_start) return;   /* between two windows (step > window) */
+            if (i_filled == b_bases.length)
+                b_bases = Arrays.copyOf(b_bases, (int) Math.min(i_chunk_span, 2L * b_bases.length));
+            b_bases[i_filled++] = b;
+            if (i_filled == i_chunk_span) {
+                submit(new Chunk(s_name, l_start, b_bases, i_filled));
+                long l_next = l_start + l_chunk_windows * i_step;
+                int i_keep = (int) Math.max(0, l_start + i_filled - l_next);
+                byte[] b_next = new byte[Math.min(i_chunk_span, Math.max(i_keep, FIRST_BUFFER))];
+                System.arraycopy(b_bases, i_filled - i_keep, b_next, 0, i_keep);
+                b_bases = b_next;
+                i_filled = i_keep;
+                l_start = l_next;
+            }
+        }
+
+        void finish() throws IOException {
+            if (i_filled >= i_window)
+                submit(new Chunk(s_name, l_start, b_bases, i_filled));
+        }
+    }
+
+    /* the windows of a contig whose bases are in b_bases[0, i_length) */
+    class Chunk implements Callable<byte[]> {
+        final String s_name;
+        final long l_start;
+        final byte[] b_bases;
+        final int i_length;
+
+        Chunk(String s_name, long l_start, byte[] b_bases, int i_length) {
+            this.s_name = s_name;
+            this.l_start = l_start;
+            this.b_bases = b_bases;
+            this.i_length = i_length;
+        }
+
+        public byte[] call() {
+            int i_count = (i_length - i_window) / i_step + 1;   /* number of windows */
+            StringBuilder s_out = new StringBuilder(i_count * (i_wig ? 7 : s_name.length() + 30));
+
+            /* cumulated parameters, number of illegal bases and G+C bitmap */
+            int[] i_bad = new int[i_length + 1];
+            double[] d_cum_h = i_exact ? new double[i_length] : null;
+            double[] d_cum_s = i_exact ? new double[i_length] : null;
+            for (int i = 0; i < i_length; i++) {
+                int c = b_bases[i] & 0xff;
+                if (c >= 'a' && c <= 'z') b_bases[i] = (byte) (c - 'a' + 'A');   /* soft-masked bases */
+                i_bad[i + 1] = i_bad[i] + (NnTable.CODE[b_bases[i] & 0xff] < 0 ? 1 : 0);
+            }
+            if (i_exact) {
+                for (int i = 1; i < i_length; i++) {
+                    int i_first = NnTable.CODE[b_bases[i - 1] & 0xff];
+                    int i_second = NnTable.CODE[b_bases[i] & 0xff];
+                    double d_h = 0, d_s = 0;
+                    if (i_first >= 0 && i_second >= 0) {
+                        d_h = pst_table.d_enthalpy[i_first << 2 | i_second];
+                        d_s = pst_table.d_entropy[i_first << 2 | i_second];
+                    }
+                    d_cum_h[i] = d_cum_h[i - 1] + d_h;
+                    d_cum_s[i] = d_cum_s[i - 1] + d_s;
+                }
+            }
+            long[] l_gc = i_exact ? null : GcBitmap.pack(b_bases, 0, i_length);
+            double d_salt_entropy = Melting.salt_entropy(pst_param, i_window);
+
+            boolean i_run = false;   /* is a WIG fixedStep block open? */
+            for (int k = 0; k < i_count; k++) {
+                int i_from = k * i_step;
+                int i_to = i_from + i_window;
+                if (i_bad[i_to] != i_bad[i_from]) {
+                    i_run = false;
+                    continue;
+                }
+                double d_tm;
+                if (i_exact) {
+                    int i_first = NnTable.CODE[b_bases[i_from] & 0xff];
+                    int i_last = NnTable.CODE[b_bases[i_to - 1] & 0xff];
+                    double d_h = pst_table.d_init_enthalpy[i_first] + pst_table.d_init_enthalpy[i_last]
+                            + d_cum_h[i_to - 1] - d_cum_h[i_from];
+                    double d_s = pst_table.d_init_entropy[i_first] + pst_table.d_init_entropy[i_last]
+                            + d_cum_s[i_to - 1] - d_cum_s[i_from];
+                    d_tm = Melting.tm_exact(pst_param, d_h, d_s + d_salt_entropy);
+                } else {
+                    d_tm = Melting.tm_approx(pst_param, i_window, GcBitmap.count(l_gc, i_from, i_to));
+                }
+                long l_begin = l_start + i_from + i_shift;
+                if (i_wig) {
+                    if (!i_run) {
+                        s_out.append("fixedStep chrom=").append(s_name).append(" start=").append(l_begin + 1)
+                                .append(" step=").append(i_step).append(" span=").append(i_span).append('\n');
+                        i_run = true;
+                    }
+                } else {
+                    s_out.append(s_name).append('\t').append(l_begin).append('\t').append(l_begin + i_span).append('\t');
+                }
+                append_fixed2(s_out, d_tm);
+                s_out.append('\n');
+            }
+            return s_out.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /* same as %.2f, without the cost of a Formatter */
+    static void append_fixed2(StringBuilder s_out, double d_value) {
+        append_fixed(s_out, d_value, 2);
+    }
+
+    /* same as %.<i_digits>f (up to 9 digits), without the cost of a Formatter */
+    static void append_fixed(StringBuilder s_out, double d_value, int i_digits) {
+        if (Double.isNaN(d_value) || Double.isInfinite(d_value)) {
+            s_out.append(d_value);
+            return;
+        }
+        long l_scale = 1;
+        for (int i = 0; i < i_digits; i++) l_scale *= 10;
+        long l_units = Math.round(d_value * l_scale);
+        if (l_units < 0) {
+            s_out.append('-');
+            l_units = -l_units;
+        }
+        s_out.append(l_units / l_scale);
+        if (i_digits == 0) return;
+        s_out.append('.');
+        long l_rest = l_units % l_scale;
+        for (long l_digit = l_scale / 10; l_digit > 1 && l_rest < l_digit; l_digit /= 10)
+            s_out.append('0');
+        s_out.append(l_rest);
+    }
+}
@@ -0,0 +1,101 @@
+
+package jmelt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/******************************************************************************
+ * File: CoordinatorTest.java                                                 *
+ * Aim : a batch file shared by worker JVMs (--workers) must give the bytes  *
+ *       of the same batch computed by one JVM, in the modes printing a     *
+ *       header once (--json, --curve, --set-matrix) or a line of comment   *
+ *       before each duplex (--design).                                      *
+ ******************************************************************************/
+
+public class CoordinatorTest {
+
+    static final int LINES = 3000;              /* several chunks of Coordinator.MIN_CHUNK bytes */
+    static final String BASES = "ACGT";
+
+    Path dir;
+    Path input;
+
+    @Before
+    public void write_batch() throws IOException {
+        dir = Files.createTempDirectory("melting-test-");
+        input = dir.resolve("batch.txt");
+        Random random = new Random(7);
+        try (PrintStream out = new PrintStream(Files.newOutputStream(input))) {
+            for (int i = 0; i < LINES; i++) {
+                StringBuilder s_line = new StringBuilder(60);
+                for (int j = 0; j < 60; j++) s_line.append(BASES.charAt(random.nextInt(4)));
+                out.println(s_line);
+            }
+        }
+    }
+
+    @After
+    public void delete_batch() throws IOException {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(dir);
+    }
+
+    /* the output of the batch with these options */
+    String batch(String... ps_options) {
+        String[] args = new String[ps_options.length + 5];
+        args[0] = "-B";
+        args[1] = "-Hdnadna";
+        args[2] = "-N0.05";
+        args[3] = "-P1e-6";
+        args[4] = "--input=" + input;
+        System.arraycopy(ps_options, 0, args, 5, ps_options.length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        assertEquals(0, Melting.run(args, new BufferedReader(new StringReader("")), out, System.err));
+        return bytes.toString();
+    }
+
+    void same_with_workers(String... ps_options) {
+        String ps_expected = batch(ps_options);
+        String[] ps_shared = Arrays.copyOf(ps_options, ps_options.length + 1);
+        ps_shared[ps_options.length] = "--workers=2";
+        assertEquals(ps_expected, batch(ps_shared));
+        ps_shared[ps_options.length] = "--workers=3";
+        assertEquals(ps_expected, batch(ps_shared));
+    }
+
+    @Test
+    public void results() {
+        same_with_workers();
+    }
+
+    @Test
+    public void json() {
+        same_with_workers("--json");
+    }
+
+    @Test
+    public void curve() {
+        same_with_workers("--curve=40:90:5");
+    }
+
+    @Test
+    public void set_matrix() {
+        same_with_workers("--set-matrix");
+    }
+
+    @Test
+    public void design() {
+        same_with_workers("--design=60", "--design-min=18", "--design-max=25");
+        assertEquals(LINES, batch("--design=60", "--design-min=18", "--design-max=25", "--workers=2")
+                .lines().filter(ps_line -> ps_line.startsWith("#")).count());
+    }
+}
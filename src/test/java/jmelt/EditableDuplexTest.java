@@ -0,0 +1,94 @@
+
+package jmelt;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import jmelt.Melting.MeltingParams;
+import jmelt.Melting.Thermodynamic;
+
+/******************************************************************************
+ * File: EditableDuplexTest.java                                              *
+ * Aim : random substitutions, insertions and deletions applied both to an  *
+ *       EditableDuplex and to a StringBuilder; after each edit, the Tm of  *
+ *       the whole sequence and of a random region must be the ones of      *
+ *       get_results on the same bases and their complement.                 *
+ ******************************************************************************/
+
+public class EditableDuplexTest {
+
+    static final double EPSILON = 1e-9;        /* degrees */
+    static final String BASES = "ACGT";
+
+    final MeltingParams pst_param = new MeltingParams();
+
+    /* Tm of get_results for the perfectly matched duplex of ps_sequence */
+    double reference(String ps_sequence) {
+        Thermodynamic pst_results = Melting.get_results(pst_param, ps_sequence,
+                Melting.make_complement(ps_sequence), false);
+        assertFalse(pst_results.i_approx);
+        return pst_results.d_tm;
+    }
+
+    static String random_bases(Random random, int i_count) {
+        StringBuilder s_bases = new StringBuilder(i_count);
+        for (int i = 0; i < i_count; i++) s_bases.append(BASES.charAt(random.nextInt(4)));
+        return s_bases.toString();
+    }
+
+    @Test
+    public void random_edits_match_get_results() {
+        Random random = new Random(42);
+        String ps_start = random_bases(random, 30);
+        EditableDuplex pst_duplex = new EditableDuplex(pst_param, ps_start);
+        StringBuilder s_expected = new StringBuilder(ps_start);
+
+        for (int i_edit = 0; i_edit < 5000; i_edit++) {
+            int i_length = s_expected.length();
+            int i_kind = random.nextInt(3);
+            if (i_kind == 0) {                                 /* substitution */
+                int i = random.nextInt(i_length);
+                char c = BASES.charAt(random.nextInt(4));
+                pst_duplex.set(i, c);
+                s_expected.setCharAt(i, c);
+            } else if (i_kind == 1 && i_length < Melting.MAX_SIZE_NN - 3) {  /* insertion */
+                int i = random.nextInt(i_length + 1);
+                String ps_bases = random_bases(random, 1 + random.nextInt(3));
+                pst_duplex.insert(i, ps_bases);
+                s_expected.insert(i, ps_bases);
+            } else if (i_length > 5) {                         /* deletion */
+                int i_count = 1 + random.nextInt(3);
+                int i = random.nextInt(i_length - i_count + 1);
+                pst_duplex.delete(i, i_count);
+                s_expected.delete(i, i + i_count);
+            }
+
+            String ps_expected = s_expected.toString();
+            assertEquals(ps_expected, pst_duplex.toString());
+            assertEquals(ps_expected.length(), pst_duplex.length());
+            assertEquals(reference(ps_expected), pst_duplex.tm(), EPSILON);
+
+            int i_from = random.nextInt(ps_expected.length() - 1);
+            int i_to = i_from + 2 + random.nextInt(ps_expected.length() - i_from - 1);
+            assertEquals(reference(ps_expected.substring(i_from, i_to)), pst_duplex.tm(i_from, i_to), EPSILON);
+        }
+    }
+
+    @Test
+    public void base_reads_the_edited_sequence() {
+        EditableDuplex pst_duplex = new EditableDuplex(pst_param, "ACGTACGT");
+        pst_duplex.insert(4, "GG");
+        pst_duplex.delete(0, 1);
+        pst_duplex.set(0, 'T');
+        assertEquals("TGTGGACGT", pst_duplex.toString());
+        for (int i = 0; i < pst_duplex.length(); i++) assertEquals("TGTGGACGT".charAt(i), pst_duplex.base(i));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void a_region_has_two_bases() {
+        new EditableDuplex(pst_param, "ACGTACGT").tm(3, 4);
+    }
+}